@@ -0,0 +1,346 @@
+package nl.nikhef.jgridstart;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+/** Notifies when certificates of a {@link CertificateStore} need renewal or expire.
+ * <p>
+ * The moments at which each certificate crosses its renewal warning threshold
+ * (see {@literal jgridstart.renewal.warndays} and the property
+ * {@code valid.notafter.warning} of {@link CertificatePair}) and at which it
+ * expires are kept in a priority queue, soonest first. A single background
+ * thread sleeps until the first one is due, so no certificate needs to be
+ * checked periodically. Changes to the store are picked up automatically;
+ * only certificates that were added or changed are looked at again. When the
+ * expiry date of a certificate changes, its old entries are left in the queue,
+ * and skipped when they come up.
+ * <p>
+ * Thresholds that have already passed when a certificate is added are
+ * reported right away. Each threshold is reported once per certificate,
+ * unless its expiry date changes, e.g. because it was renewed.
+ * <p>
+ * Listeners are called on the scheduler's thread.
+ *
+ * @author wvengen
+ */
+public class CertificateExpiryScheduler implements ListDataListener {
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart");
+
+    /** Milliseconds in a day */
+    protected static final long DAY = 1000*60*60*24;
+
+    /** Certificate store to watch */
+    protected CertificateStore store;
+    /** Listeners to notify */
+    protected List<ExpiryListener> listeners = new ArrayList<ExpiryListener>();
+    /** Pending thresholds, soonest first */
+    protected PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+    /** Thresholds reported so far for each certificate, by identity */
+    protected IdentityHashMap<CertificatePair, Entry> reported = new IdentityHashMap<CertificatePair, Entry>();
+    /** Expiry time of each certificate in the queue, by identity; entries with another time are stale */
+    protected IdentityHashMap<CertificatePair, Long> queued = new IdentityHashMap<CertificatePair, Long>();
+    /** Certificates added or changed since they were last queued */
+    protected Set<CertificatePair> changed = Collections.newSetFromMap(new IdentityHashMap<CertificatePair, Boolean>());
+    /** Whether certificates may have been removed from the store */
+    protected boolean removed = false;
+    /** Whether the queue needs to be rebuilt from the store */
+    protected boolean outdated = true;
+    /** Background thread, or {@code null} when not started */
+    protected ScheduledExecutorService scheduler = null;
+    /** Next wakeup of the background thread */
+    protected ScheduledFuture<?> next = null;
+
+    /** Create a new scheduler for a certificate store; call {@link #start} to run it. */
+    public CertificateExpiryScheduler(CertificateStore store) {
+	this.store = store;
+    }
+
+    /** Start notifying listeners. */
+    public synchronized void start() {
+	if (scheduler != null) return;
+	scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, "jGridstart certificate expiry scheduler");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+	store.addListDataListener(this);
+	outdated = true;
+	reschedule(0);
+    }
+
+    /** Stop notifying listeners. */
+    public synchronized void stop() {
+	if (scheduler == null) return;
+	store.removeListDataListener(this);
+	scheduler.shutdownNow();
+	scheduler = null;
+	next = null;
+    }
+
+    /** Return whether this scheduler is running. */
+    public synchronized boolean isRunning() {
+	return scheduler != null;
+    }
+
+    public synchronized void addExpiryListener(ExpiryListener l) {
+	listeners.add(l);
+    }
+    public synchronized void removeExpiryListener(ExpiryListener l) {
+	listeners.remove(l);
+    }
+
+    /** Return the certificate that reaches a threshold first, or {@code null} if none. */
+    public synchronized CertificatePair peek() {
+	Entry e = first();
+	return e==null ? null : e.cert;
+    }
+
+    /** Return the time in milliseconds at which the next threshold is reached,
+     * or {@link Long#MAX_VALUE} if none. */
+    public synchronized long getNextTime() {
+	Entry e = first();
+	return e==null ? Long.MAX_VALUE : e.time;
+    }
+
+    /** Bring the queue up-to-date and return its first entry, or {@code null} if none. */
+    protected Entry first() {
+	update();
+	while (!queue.isEmpty() && isStale(queue.peek()))
+	    queue.poll();
+	return queue.peek();
+    }
+
+    /** Bring the queue up-to-date with changes to the store. */
+    protected void update() {
+	if (outdated) {
+	    rebuild();
+	    return;
+	}
+	for (CertificatePair cert: changed)
+	    add(cert);
+	changed.clear();
+	// don't let stale entries pile up
+	if (queue.size() > 4*queued.size() + 16)
+	    compact();
+    }
+
+    /** Rebuild the queue from the store. */
+    protected void rebuild() {
+	queue.clear();
+	IdentityHashMap<CertificatePair, Entry> wasReported = reported;
+	reported = new IdentityHashMap<CertificatePair, Entry>();
+	queued.clear();
+	changed.clear();
+	for (CertificatePair cert: store.toArray(new CertificatePair[0])) {
+	    if (wasReported.containsKey(cert))
+		reported.put(cert, wasReported.get(cert));
+	    add(cert);
+	}
+	outdated = false;
+    }
+
+    /** Add the thresholds of a certificate to the queue, unless they are present already. */
+    protected void add(CertificatePair cert) {
+	String s = cert.getProperty("valid.notafter.time");
+	if (s==null) {
+	    queued.remove(cert);
+	    reported.remove(cert);
+	    return;
+	}
+	long notAfter = Long.valueOf(s);
+	Long old = queued.get(cert);
+	if (old!=null && old==notAfter) return;
+	queued.put(cert, notAfter);
+	Entry last = reported.get(cert);
+	if (last!=null && last.notAfter!=notAfter) {
+	    reported.remove(cert);
+	    last = null;
+	}
+	queueEntries(cert, notAfter, last);
+    }
+
+    /** Add the thresholds of a certificate that were not reported yet to the queue. */
+    private void queueEntries(CertificatePair cert, long notAfter, Entry last) {
+	long warnTime = (CertificatePair.getRenewalWarnDays()+1) * DAY;
+	// same moment as valid.notafter.warning becomes true
+	if (last==null)
+	    queue.add(new Entry(cert, notAfter, notAfter - warnTime + 1, false));
+	if (last==null || !last.expired)
+	    queue.add(new Entry(cert, notAfter, notAfter, true));
+    }
+
+    /** Rebuild the queue without stale entries, from the expiry times known already. */
+    protected void compact() {
+	queue.clear();
+	for (Map.Entry<CertificatePair, Long> q: queued.entrySet())
+	    queueEntries(q.getKey(), q.getValue(), reported.get(q.getKey()));
+    }
+
+    /** Forget certificates that are not present in the store anymore.
+     *
+     * @param certs contents of the store
+     */
+    protected void retain(CertificatePair[] certs) {
+	Set<CertificatePair> present = Collections.newSetFromMap(new IdentityHashMap<CertificatePair, Boolean>());
+	Collections.addAll(present, certs);
+	for (Iterator<CertificatePair> it = queued.keySet().iterator(); it.hasNext(); ) {
+	    CertificatePair cert = it.next();
+	    if (!present.contains(cert)) {
+		it.remove();
+		reported.remove(cert);
+	    }
+	}
+    }
+
+    /** Return whether an entry of the queue is outdated or was reported already. */
+    protected boolean isStale(Entry e) {
+	Long notAfter = queued.get(e.cert);
+	if (notAfter==null || notAfter!=e.notAfter) return true;
+	// can be present twice when the expiry time changed back
+	Entry last = reported.get(e.cert);
+	return last!=null && last.notAfter==e.notAfter && (last.expired || !e.expired);
+    }
+
+    /** Report all thresholds that were reached and wait for the next one. */
+    protected void runDue() {
+	List<Entry> due = new ArrayList<Entry>();
+	List<ExpiryListener> ls;
+	CertificatePair[] present = null;
+	boolean sweep;
+	synchronized(this) {
+	    sweep = removed;
+	    removed = false;
+	}
+	if (sweep) {
+	    // listeners are notified before entries are removed, so wait for
+	    // that to finish; not while holding our lock, which listeners need
+	    synchronized(store) {
+		present = store.toArray(new CertificatePair[0]);
+	    }
+	}
+	synchronized(this) {
+	    if (scheduler == null) return;
+	    if (present != null) retain(present);
+	    long now = System.currentTimeMillis();
+	    while (first()!=null && queue.peek().time <= now) {
+		Entry e = queue.poll();
+		// when expired already, a renewal warning is superfluous
+		if (!e.expired && e.notAfter <= now) continue;
+		reported.put(e.cert, e);
+		due.add(e);
+	    }
+	    ls = new ArrayList<ExpiryListener>(listeners);
+	    reschedule(queue.isEmpty() ? -1 : queue.peek().time - now);
+	}
+	for (Entry e: due) {
+	    // memoised properties like valid.notafter.warning have changed
+	    e.cert.invalidateCache();
+	    e.cert.notifyChanged();
+	    for (ExpiryListener l: ls) {
+		try {
+		    if (e.expired)
+			l.certificateExpired(e.cert);
+		    else
+			l.renewalDue(e.cert);
+		} catch (RuntimeException ex) {
+		    logger.warning("Expiry listener failed for "+e.cert.getPath()+": "+ex);
+		}
+	    }
+	}
+    }
+
+    /** Wake up the background thread after {@code delay} milliseconds, or never when negative. */
+    protected void reschedule(long delay) {
+	if (next != null) next.cancel(false);
+	next = null;
+	if (delay < 0 || scheduler == null) return;
+	next = scheduler.schedule(new Runnable() {
+	    public void run() {
+		runDue();
+	    }
+	}, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /** Certificates in the store were added or changed; update the queue on the background thread. */
+    protected synchronized void storeChanged(ListDataEvent e) {
+	if (e.getIndex0() < 0 || e.getIndex1() < e.getIndex0()) {
+	    // unknown range
+	    outdated = true;
+	} else if (!outdated) {
+	    // the list as seen by listeners, for which the indices are valid
+	    for (int i=e.getIndex0(); i<=e.getIndex1() && i<store.getSize(); i++)
+		changed.add(store.getElementAt(i));
+	}
+	reschedule(0);
+    }
+
+    public void contentsChanged(ListDataEvent e) {
+	storeChanged(e);
+    }
+    public void intervalAdded(ListDataEvent e) {
+	storeChanged(e);
+    }
+    public synchronized void intervalRemoved(ListDataEvent e) {
+	// removed certificates are not known anymore; look for them in runDue()
+	removed = true;
+	reschedule(0);
+    }
+
+    /** Listener for certificates reaching their renewal or expiry threshold. */
+    public interface ExpiryListener {
+	/** Called when a certificate enters its renewal warning period.
+	 *
+	 * @param cert certificate that should be renewed
+	 */
+	void renewalDue(CertificatePair cert);
+
+	/** Called when a certificate has expired.
+	 *
+	 * @param cert certificate that is no longer valid
+	 */
+	void certificateExpired(CertificatePair cert);
+    }
+
+    /** Threshold of a certificate in the queue. */
+    protected static class Entry implements Comparable<Entry> {
+	final CertificatePair cert;
+	/** Expiry time of the certificate when this entry was created */
+	final long notAfter;
+	/** Time at which the threshold is reached */
+	final long time;
+	/** Whether this is the expiry, or else the renewal warning threshold */
+	final boolean expired;
+
+	Entry(CertificatePair cert, long notAfter, long time, boolean expired) {
+	    this.cert = cert;
+	    this.notAfter = notAfter;
+	    this.time = time;
+	    this.expired = expired;
+	}
+
+	public int compareTo(Entry o) {
+	    if (time != o.time) return time < o.time ? -1 : 1;
+	    // warning before expiry
+	    if (expired != o.expired) return expired ? 1 : -1;
+	    return 0;
+	}
+    }
+}
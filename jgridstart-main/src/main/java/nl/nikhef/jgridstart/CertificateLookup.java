@@ -0,0 +1,220 @@
+package nl.nikhef.jgridstart;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Hash indexes on the certificates of a {@link CertificateStore}.
+ * <p>
+ * This allows a {@linkplain CertificatePair} to be found by its path, serial
+ * number, subject or issuer without going through the whole store. The
+ * indexes are built once by {@link #CertificateLookup(List)}, and then kept
+ * up-to-date by {@linkplain CertificateStore} using {@link #add},
+ * {@link #remove} and {@link #update} for each certificate that was added,
+ * removed or changed. The keys of each certificate are remembered, so that
+ * removing it doesn't need to look at its properties.
+ * <p>
+ * This class is not thread-safe; {@linkplain CertificateStore} only uses it
+ * while holding its lock.
+ *
+ * @author wvengen
+ */
+public class CertificateLookup {
+
+    /** Position of each certificate in the store, by identity */
+    protected IdentityHashMap<CertificatePair, Integer> positions = new IdentityHashMap<CertificatePair, Integer>();
+    /** Keys each certificate is indexed by, see {@link #add} */
+    protected IdentityHashMap<CertificatePair, Keys> indexed = new IdentityHashMap<CertificatePair, Keys>();
+    /** Certificates by path */
+    protected HashMap<File, CertificatePair> byPath = new HashMap<File, CertificatePair>();
+    /** Certificates by serial number */
+    protected HashMap<String, List<CertificatePair>> bySerial = new HashMap<String, List<CertificatePair>>();
+    /** Certificates by subject hash, see {@link nl.nikhef.jgridstart.util.CryptoUtils#getSubjectHash} */
+    protected HashMap<String, List<CertificatePair>> bySubjectHash = new HashMap<String, List<CertificatePair>>();
+    /** Certificates by issuer hash, see {@link nl.nikhef.jgridstart.util.CryptoUtils#getIssuerHash} */
+    protected HashMap<String, List<CertificatePair>> byIssuerHash = new HashMap<String, List<CertificatePair>>();
+    /** Certificates by issuer distinguished name, in slash-notation */
+    protected HashMap<String, List<CertificatePair>> byIssuer = new HashMap<String, List<CertificatePair>>();
+    /** Certificates by public key modulus */
+    protected HashMap<String, List<CertificatePair>> byModulus = new HashMap<String, List<CertificatePair>>();
+    /** Certificates by expiry time in milliseconds */
+    protected TreeMap<Long, List<CertificatePair>> byExpiry = new TreeMap<Long, List<CertificatePair>>();
+    /** Certificate signing requests without a certificate */
+    protected ArrayList<CertificatePair> pending = new ArrayList<CertificatePair>();
+
+    /** Build the positions index only.
+     * <p>
+     * Other lookups can be added by {@link #addProperties}.
+     */
+    protected CertificateLookup(List<CertificatePair> certs, boolean withProperties) {
+	for (int i=0; i<certs.size(); i++) {
+	    CertificatePair cert = certs.get(i);
+	    // first one wins, like List.indexOf()
+	    if (!positions.containsKey(cert))
+		positions.put(cert, i);
+	}
+	if (withProperties) addProperties(certs);
+    }
+
+    /** Build all indexes for a list of certificates. */
+    public CertificateLookup(List<CertificatePair> certs) {
+	this(certs, true);
+    }
+
+    /** Build indexes based on certificate properties. */
+    protected void addProperties(List<CertificatePair> certs) {
+	for (CertificatePair cert: certs)
+	    add(cert);
+    }
+
+    /** Keys a certificate is indexed by */
+    protected static class Keys {
+	File path;
+	String serial, subjectHash, issuerHash, issuer, modulus;
+	Long expiry;
+	boolean pending;
+
+	Keys(CertificatePair cert) {
+	    path = cert.getPath();
+	    serial = cert.getProperty("cert.serial");
+	    subjectHash = cert.getProperty("subject.hash");
+	    issuerHash = cert.getProperty("issuer.hash");
+	    issuer = cert.getProperty("issuer");
+	    modulus = cert.getProperty("modulus");
+	    String notafter = cert.getProperty("valid.notafter.time");
+	    if (notafter!=null) expiry = Long.valueOf(notafter);
+	    pending = cert.getProperty("cert")==null && cert.getProperty("request")!=null;
+	}
+    }
+
+    /** Add a certificate to the indexes based on its properties.
+     * <p>
+     * When it is present already, it is updated instead. */
+    public void add(CertificatePair cert) {
+	Keys k = new Keys(cert);
+	remove(cert);
+	indexed.put(cert, k);
+	if (k.path!=null && !byPath.containsKey(k.path))
+	    byPath.put(k.path, cert);
+	addTo(bySerial, k.serial, cert);
+	addTo(bySubjectHash, k.subjectHash, cert);
+	addTo(byIssuerHash, k.issuerHash, cert);
+	addTo(byIssuer, k.issuer, cert);
+	addTo(byModulus, k.modulus, cert);
+	addTo(byExpiry, k.expiry, cert);
+	if (k.pending) pending.add(cert);
+    }
+
+    /** Remove a certificate from the indexes, using the keys it was added with. */
+    public void remove(CertificatePair cert) {
+	Keys k = indexed.remove(cert);
+	if (k==null) return;
+	if (k.path!=null && byPath.get(k.path)==cert)
+	    byPath.remove(k.path);
+	removeFrom(bySerial, k.serial, cert);
+	removeFrom(bySubjectHash, k.subjectHash, cert);
+	removeFrom(byIssuerHash, k.issuerHash, cert);
+	removeFrom(byIssuer, k.issuer, cert);
+	removeFrom(byModulus, k.modulus, cert);
+	removeFrom(byExpiry, k.expiry, cert);
+	if (k.pending) removeIdentical(pending, cert);
+    }
+
+    /** Update the indexes of a certificate of which properties were changed. */
+    public void update(CertificatePair cert) {
+	add(cert);
+    }
+
+    /** Return the position of a certificate in the store, or -1 if not present. */
+    public int indexOf(CertificatePair cert) {
+	Integer i = positions.get(cert);
+	return i==null ? -1 : i;
+    }
+
+    /** Return the certificate with the specified path, or {@code null}. */
+    public CertificatePair findByPath(File path) {
+	return byPath.get(path);
+    }
+
+    /** Return certificates with the specified serial number. */
+    public List<CertificatePair> findBySerial(String serial) {
+	return get(bySerial, serial);
+    }
+
+    /** Return certificates (or requests) with the specified subject hash. */
+    public List<CertificatePair> findBySubjectHash(String hash) {
+	return get(bySubjectHash, hash);
+    }
+
+    /** Return certificates issued by a CA with the specified subject hash. */
+    public List<CertificatePair> findByIssuerHash(String hash) {
+	return get(byIssuerHash, hash);
+    }
+
+    /** Return certificates issued by the specified distinguished name, in slash-notation. */
+    public List<CertificatePair> findByIssuer(String issuer) {
+	return get(byIssuer, issuer);
+    }
+
+    /** Return certificates (or requests) with the specified public key modulus. */
+    public List<CertificatePair> findByModulus(String modulus) {
+	return get(byModulus, modulus);
+    }
+
+    /** Return certificates that expire before the specified time, soonest first. */
+    public List<CertificatePair> findExpiringBefore(long time) {
+	ArrayList<CertificatePair> result = new ArrayList<CertificatePair>();
+	for (List<CertificatePair> certs: byExpiry.headMap(time).values())
+	    result.addAll(certs);
+	return result;
+    }
+
+    /** Return certificate signing requests for which no certificate is present yet. */
+    public List<CertificatePair> findPendingRequests() {
+	return Collections.unmodifiableList(new ArrayList<CertificatePair>(pending));
+    }
+
+    /** Add a certificate to a lookup map, if the key is not {@code null}. */
+    protected static <K> void addTo(Map<K, List<CertificatePair>> map, K key, CertificatePair cert) {
+	if (key==null) return;
+	List<CertificatePair> certs = map.get(key);
+	if (certs==null) {
+	    certs = new ArrayList<CertificatePair>(1);
+	    map.put(key, certs);
+	}
+	certs.add(cert);
+    }
+
+    /** Remove a certificate from a lookup map, if the key is not {@code null}. */
+    protected static <K> void removeFrom(Map<K, List<CertificatePair>> map, K key, CertificatePair cert) {
+	if (key==null) return;
+	List<CertificatePair> certs = map.get(key);
+	if (certs==null) return;
+	removeIdentical(certs, cert);
+	if (certs.isEmpty()) map.remove(key);
+    }
+
+    /** Remove a certificate from a list by identity, since certificates
+     * with the same properties are equal. */
+    protected static void removeIdentical(List<CertificatePair> certs, CertificatePair cert) {
+	for (Iterator<CertificatePair> it = certs.iterator(); it.hasNext(); ) {
+	    if (it.next()==cert) {
+		it.remove();
+		return;
+	    }
+	}
+    }
+
+    /** Return a copy of the certificates for a key from a lookup map, never {@code null}. */
+    protected static List<CertificatePair> get(Map<String, List<CertificatePair>> map, String key) {
+	List<CertificatePair> certs = map.get(key);
+	if (certs==null) return Collections.emptyList();
+	return Collections.unmodifiableList(new ArrayList<CertificatePair>(certs));
+    }
+}
@@ -10,11 +10,9 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -28,8 +26,11 @@ import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPublicKey;
 import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import java.util.TooManyListenersException;
@@ -40,13 +41,14 @@ import nl.nikhef.jgridstart.CertificateCheck.CertificateCheckException;
 import nl.nikhef.jgridstart.ca.CA;
 import nl.nikhef.jgridstart.ca.CAException;
 import nl.nikhef.jgridstart.ca.CAFactory;
+import nl.nikhef.jgridstart.util.CompactProperties;
 import nl.nikhef.jgridstart.util.CryptoUtils;
+import nl.nikhef.jgridstart.util.KeyPairPool;
 import nl.nikhef.jgridstart.osutils.FileUtils;
 import nl.nikhef.jgridstart.passwordcache.PEMReader;
 import nl.nikhef.jgridstart.passwordcache.PEMWriter;
 import nl.nikhef.jgridstart.util.PKCS12KeyStoreUnlimited;
 import nl.nikhef.jgridstart.passwordcache.PasswordCache;
-import nl.nikhef.jgridstart.osutils.PrivateFileWriter;
 import nl.nikhef.jgridstart.passwordcache.PasswordCancelledException;
 
 import org.apache.commons.lang.ArrayUtils;
@@ -77,10 +79,11 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
  * desired, but some are specifically reserved and queried directly from the
  * certificate and/or certificate signing request. Please see {@link #getProperty}.
  * When the object is loaded, properties found in the file indicated by
- * {@link #getPropertiesFile} are set. On destruction, the properties are written back
- * as to provide transparent presistency. When a property shouldn't be written,
- * one can set the property name with {@code .volatile} appended to {@code true}
- * to make the property not persistent, e.g. with
+ * {@link #getPropertiesFile} are set. On exit, changed properties are written
+ * back as to provide transparent presistency (see {@link CertificatePairFlusher}).
+ * When a property shouldn't be written, one can set the property name with
+ * {@code .volatile} appended to {@code true} to make the property not
+ * persistent, e.g. with
  * <pre><code>
  *   foo.html=&gt;b&lt;hi there&gt;/b&lt;
  *   foo.html.volatile=true
@@ -96,7 +99,7 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
  * 
  * @author wvengen
  */
-public class CertificatePair extends Properties implements ItemSelectable {
+public class CertificatePair extends CompactProperties implements ItemSelectable {
 
     static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart");
 
@@ -107,6 +110,49 @@ public class CertificatePair extends Properties implements ItemSelectable {
     protected X509Certificate cert = null;
     /** If no certificate exists we can get info from the CSR */
     protected PKCS10CertificationRequest req = null;
+    /** Properties derived from the certificate files by a {@link CertificateStoreIndex},
+     * used until the certificate or request is parsed; or {@code null}. */
+    protected Properties indexed = null;
+    /** Whether to postpone checking and parsing until needed, see {@link #CertificatePair(File, boolean)} */
+    protected boolean lazy = false;
+    /** Whether the certificate files were checked, see {@link #validate} */
+    protected boolean validated = false;
+    /** Size and modification time of the certificate files when they were
+     * last read, see {@link #isChangedOnDisk} */
+    protected long[] stamps = null;
+
+    /** Properties that are stored in a {@link CertificateStoreIndex} as they are */
+    protected static final String[] indexedKeys = {
+	"cert", "cert.serial", "subject", "subject.cn", "subject.o", "subject.ou",
+	"subject.hash", "issuer", "issuer.hash", "keysize", "keyalgname", "modulus",
+	"valid.notbefore.time", "valid.notafter.time"
+    };
+    /** Properties that are computed from a {@link CertificateStoreIndex} entry */
+    protected static final String[] indexedDerivedKeys = {
+	"modulus.first20", "valid", "valid.notbefore", "valid.notafter",
+	"valid.notafter.remaining", "valid.notafter.warning"
+    };
+
+    /** Persistence of properties, see {@link #getPropertiesStore} */
+    protected transient PropertiesFile propertiesStore = null;
+    /** Derived properties that are memoised, see {@link #getProperty};
+     * {@code subject.*}, {@code issuer.*} and {@code usage*} are as well. */
+    protected static final String[] cachedKeys = {
+	"cert", "cert.serial", "subject", "issuer", "keysize", "keyalgname",
+	"sigalgname", "modulus", "modulus.first20", "valid.notbefore", "valid.notafter",
+	"valid.notbefore.time", "valid.notafter.time",
+	"valid", "valid.notafter.remaining", "valid.notafter.warning", "state.icon"
+    };
+    /** Memoised properties that depend on the current time */
+    protected static final String[] timedKeys = {
+	"valid", "valid.notafter.remaining", "valid.notafter.warning", "state.icon"
+    };
+    /** Maximum time in milliseconds to keep memoised time-dependent properties */
+    public static long cacheTimeout = 60*1000;
+    /** Memoised derived properties, see {@link #getProperty} */
+    protected transient HashMap<String, CachedValue> derivedCache = new HashMap<String, CachedValue>();
+    /** Incremented on each {@link #invalidateCache} */
+    protected int cacheGeneration = 0;
 
     // we need BouncyCastle as a provider for PKCS#12 keystore import/export
     static {
@@ -117,16 +163,6 @@ public class CertificatePair extends Properties implements ItemSelectable {
     /** Create new empty certificate pair */
     protected CertificatePair() {
 	super();
-	Runtime.getRuntime().addShutdownHook(new Thread() {
-	    @Override
-	    public void run() {
-		if (path!=null) {
-		    try {
-			store();
-		    } catch (IOException e) { }
-		}
-	    }
-	});
     }
 
     /** New certificate pair of a directory */
@@ -134,6 +170,31 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	this();
 	load(f);
     }
+
+    /** New certificate pair of a directory, optionally parsed lazily.
+     * <p>
+     * In lazy mode only the presence and modification times of the files
+     * are recorded when loading. The key, certificate and certificate signing
+     * request are checked and parsed only when a property is requested that
+     * needs them; the outcome of the check is remembered (see {@link #validate}).
+     */
+    public CertificatePair(File f, boolean lazy) throws IOException {
+	this();
+	this.lazy = lazy;
+	load(f);
+    }
+
+    /** New certificate pair of a directory with properties from an index.
+     * <p>
+     * The certificate files are not checked nor parsed until information
+     * is required that is not present in {@code derived}.
+     * 
+     * @see CertificateStoreIndex
+     */
+    protected CertificatePair(File f, Properties derived) throws IOException {
+	this();
+	load(f, derived);
+    }
     
     /** Return the value of a property.
      * <p>
@@ -146,6 +207,8 @@ public class CertificatePair extends Properties implements ItemSelectable {
      *     <dd>is {@code true} if the certificate is valid, {@code null} otherwise</dd>
      * <dt>valid.notafter, valid.notbefore</dt>
      *     <dd>localised validity interval</dd>
+     * <dt>valid.notafter.time, valid.notbefore.time</dt>
+     *     <dd>validity interval in milliseconds since the epoch</dd>
      * <dt>valid.notafter.remaining</dt>
      *     <dd>Number of days until certificate expires</dd>
      * <dt>valid.notafter.warning</dt>
@@ -158,6 +221,9 @@ public class CertificatePair extends Properties implements ItemSelectable {
      *     Specific fields can be requested as well, e.g. {@code subject.o} for
      *     a comma-separated list of subject organisations; see
      *     {@link #getSubjectPrincipalValue}.</dd>
+     * <dt>subject.hash, issuer.hash</dt>
+     *     <dd>hash of the subject or issuer as used by OpenSSL, see
+     *     {@link CryptoUtils#getSubjectHash}.</dd>
      * <dt>cert.serial</dt>
      *     <dd>certificate serial number, when certificate is present</dd>
      * <dt>path</dt>
@@ -182,9 +248,15 @@ public class CertificatePair extends Properties implements ItemSelectable {
      *     <dd>Icon for certificate state, one of {@code valid}, {@code warning},
      *     {@code renew} or {@code error}.</dd>
      * <dt>ca_supported</dt>
-     *     <dd>if the this certificate is issued by the CA jGridstart is
-     *     connected to.</dd>
+     *     <dd>if the this certificate is issued by one of the CAs jGridstart
+     *     is connected to.</dd>
      * </dl>
+     * <p>
+     * Properties derived from the certificate or request are memoised, since
+     * they are requested often when showing certificates. The memoised values
+     * are discarded when the files are reread or a property is set. Properties
+     * that depend on the current time, like {@code valid}, are kept for at most
+     * {@link #cacheTimeout} milliseconds.
      * 
      * You can postfix each property with {@code .html} to get an html representation.
      * If no html representation is present, it just returns the same as the
@@ -202,6 +274,44 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	    String r = getPropertyHtml(key);
 	    if (r!=null) return r;
 	}
+	// check certificate files when the outcome is first needed
+	if (key.equals("state.message") && !validated)
+	    validate();
+	// return memoised derived property
+	if (isCachedKey(key)) {
+	    long now = System.currentTimeMillis();
+	    int generation;
+	    synchronized(derivedCache) {
+		CachedValue c = derivedCache.get(key);
+		if (c!=null && (c.expires==0 || c.expires > now)) return c.value;
+		generation = cacheGeneration;
+	    }
+	    String value = getDerivedProperty(key);
+	    synchronized(derivedCache) {
+		// don't store when invalidated in the meantime
+		if (generation == cacheGeneration) {
+		    long expires = ArrayUtils.contains(timedKeys, key) ? now + cacheTimeout : 0;
+		    derivedCache.put(key, new CachedValue(value, expires));
+		}
+	    }
+	    return value;
+	}
+	return getDerivedProperty(key);
+    }
+
+    /** Return the value of a property without memoisation.
+     * @see #getProperty */
+    protected String getDerivedProperty(String key) {
+	// answer from index as long as nothing was parsed
+	if (indexed!=null) {
+	    if (cert==null && req==null) {
+		String r = getIndexedProperty(key);
+		if (r!=null || ArrayUtils.contains(indexedKeys, key) || ArrayUtils.contains(indexedDerivedKeys, key))
+		    return r;
+	    } else {
+		indexed = null;
+	    }
+	}
 	try {
 	    // return generated property
 	    if (key.equals("path"))
@@ -219,11 +329,18 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	    if (key.equals("subject"))
 		if (getCertificate()==null && getCSR()==null) return null;
 		else return getSubjectPrincipalValue("x-dn-slash");
+	    if (key.equals("subject.hash"))
+		if (getCertificate()!=null) return CryptoUtils.getSubjectHash(getCertificate());
+		else if (getCSR()!=null) return CryptoUtils.getSubjectHash(getCSR());
+		else return null;
 	    if (key.startsWith("subject."))
 		return getSubjectPrincipalValue(key.substring(8));
 	    if (key.equals("issuer"))
 		if (getCertificate()==null) return null;
 		else return getIssuerPrincipalValue("x-dn-slash");
+	    if (key.equals("issuer.hash"))
+		if (getCertificate()==null) return null;
+		else return CryptoUtils.getIssuerHash(getCertificate());
 	    if (key.startsWith("issuer."))
 		return getIssuerPrincipalValue(key.substring(7));
 	    if (key.equals("org")) {
@@ -271,17 +388,21 @@ public class CertificatePair extends Properties implements ItemSelectable {
 		if (getCertificate()==null) return null;
 		return DateFormat.getDateInstance().format(getCertificate().getNotAfter());
 	    }
+	    if (key.equals("valid.notbefore.time")) {
+		if (getCertificate()==null) return null;
+		return Long.toString(getCertificate().getNotBefore().getTime());
+	    }
+	    if (key.equals("valid.notafter.time")) {
+		if (getCertificate()==null) return null;
+		return Long.toString(getCertificate().getNotAfter().getTime());
+	    }
 	    if (key.equals("valid.notafter.remaining")) {
 		if (getCertificate()==null) return null;
 		return String.valueOf(CryptoUtils.getX509DaysValid(getCertificate()));
 	    }
 	    if (key.equals("valid.notafter.warning")) {
 		if (getCertificate()==null) return null;
-		int days = 30;
-		try {
-		    days = Integer.valueOf(System.getProperty("jgridstart.renewal.warndays"));
-		} catch(NumberFormatException e) { }
-		return Boolean.toString(CryptoUtils.getX509DaysValid(getCertificate()) <= days);
+		return Boolean.toString(CryptoUtils.getX509DaysValid(getCertificate()) <= getRenewalWarnDays());
 	    }
 	    if (key.equals("state.icon")) {
 		if (Boolean.valueOf(getProperty("cert")) && !Boolean.valueOf(getProperty("valid")))
@@ -317,7 +438,7 @@ public class CertificatePair extends Properties implements ItemSelectable {
 		return null;
 	    }
 	    if (key.equals("ca_supported")) {
-		return Boolean.toString(CAFactory.getDefault().isIssuer(getCertificate()));
+		return Boolean.toString(CAFactory.getIssuer(getCertificate())!=null);
 	    }
 	} catch (Exception e) {
 	    return null;
@@ -325,6 +446,83 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	// else return property set before with setProperty()
 	return super.getProperty(key);
     }
+    /** Return whether a property is memoised by {@link #getProperty}. */
+    protected static boolean isCachedKey(String key) {
+	return ArrayUtils.contains(cachedKeys, key) ||
+		key.startsWith("subject.") || key.startsWith("issuer.") || key.startsWith("usage");
+    }
+
+    /** Discard all memoised properties. */
+    protected void invalidateCache() {
+	synchronized(derivedCache) {
+	    derivedCache.clear();
+	    cacheGeneration++;
+	}
+    }
+
+    /** Return a property from the index entry, or {@code null} if not present.
+     * <p>
+     * Validity properties are computed from the stored dates, so that they are
+     * correct at the time of calling.
+     */
+    protected String getIndexedProperty(String key) {
+	if (key.equals("modulus.first20")) {
+	    String modulus = indexed.getProperty("modulus");
+	    if (modulus==null || modulus.length()<20) return null;
+	    return modulus.substring(0, 20);
+	}
+	if (key.startsWith("valid")) {
+	    String snotbefore = indexed.getProperty("valid.notbefore.time");
+	    String snotafter = indexed.getProperty("valid.notafter.time");
+	    if (snotbefore==null || snotafter==null) return null;
+	    Date notbefore = new Date(Long.parseLong(snotbefore));
+	    Date notafter = new Date(Long.parseLong(snotafter));
+	    long days = (notafter.getTime() - System.currentTimeMillis()) / (1000*60*60*24);
+	    if (key.equals("valid")) {
+		Date now = new Date();
+		if (now.before(notbefore) || now.after(notafter)) return null;
+		return "true";
+	    }
+	    if (key.equals("valid.notbefore"))
+		return DateFormat.getDateInstance().format(notbefore);
+	    if (key.equals("valid.notafter"))
+		return DateFormat.getDateInstance().format(notafter);
+	    if (key.equals("valid.notafter.remaining"))
+		return String.valueOf(days);
+	    if (key.equals("valid.notafter.warning"))
+		return Boolean.toString(days <= getRenewalWarnDays());
+	}
+	return indexed.getProperty(key);
+    }
+
+    /** Return properties for a {@link CertificateStoreIndex} entry.
+     * <p>
+     * This parses the certificate files when that wasn't done already.
+     */
+    protected Properties getIndexProperties() {
+	indexed = null;
+	Properties p = new Properties();
+	for (int i=0; i<indexedKeys.length; i++) {
+	    String value = getProperty(indexedKeys[i]);
+	    if (value!=null) p.setProperty(indexedKeys[i], value);
+	}
+	if (getProperty("state.message")!=null)
+	    p.setProperty("state.message", getProperty("state.message"));
+	return p;
+    }
+
+    /** Return the number of days before expiry to warn about renewal.
+     * <p>
+     * This is set by the property {@literal jgridstart.renewal.warndays}.
+     */
+    protected static int getRenewalWarnDays() {
+	int days = 30;
+	try {
+	    days = Integer.valueOf(System.getProperty("jgridstart.renewal.warndays"));
+	} catch(NumberFormatException e) { }
+	return days;
+    }
+
     /** Return a property in html format, or null if not defined. */
     protected String getPropertyHtml(String key) {
 	if (key.endsWith(".o")) {
@@ -369,84 +567,185 @@ public class CertificatePair extends Properties implements ItemSelectable {
      * <p>
      * On setting a property, all {@link ItemListener}s are notified using
      * {@linkplain #notifyChanged} if the value is different from the old one.
+     * To notify them only once when setting many properties, use
+     * {@link #beginUpdate} and {@link #endUpdate}.
      */
     @Override
     public Object setProperty(String name, String value) {
 	String old = getProperty(name);
 	Object o = super.setProperty(name, value);
-	if (!value.equals(old))
+	if (!value.equals(old)) {
+	    invalidateCache();
+	    markDirty(name);
 	    notifyChanged();
+	}
+	return o;
+    }
+
+    /** {@inheritDoc}
+     * <p>
+     * Removing a persistent property marks this as changed.
+     */
+    @Override
+    public synchronized Object remove(Object key) {
+	boolean persistent = !isVolatile(key.toString());
+	Object o = super.remove(key);
+	if (o!=null && persistent) markDirty(key.toString());
 	return o;
     }
 
+    /** Return whether a property is not stored, see {@link #store}. */
+    protected boolean isVolatile(String key) {
+	return key.endsWith(".volatile") || isFlagSet(key, VOLATILE);
+    }
+
+    /** Mark this as changed, so that it will be stored on exit.
+     * <p>
+     * Changes to volatile properties are ignored.
+     * 
+     * @see CertificatePairFlusher
+     */
+    protected void markDirty(String key) {
+	if (!isVolatile(key))
+	    CertificatePairFlusher.markDirty(this);
+    }
+
     /** Reset the contents to this object to the empty state */
     @Override
     public void clear() {
 	path = null;
 	cert = null;
 	req = null;
+	indexed = null;
+	validated = false;
+	stamps = null;
+	if (derivedCache!=null) invalidateCache();
 	super.clear();
     }
 
     /** Load a certificate from a directory */
     protected void load(File f) throws IOException {
-	clear();
-	path = f;
+	load(f, null);
+    }
 
-	// make sure it's ok
+    /** Load a certificate from a directory, using properties from an index.
+     * <p>
+     * When {@code derived} is {@code null}, the certificate files are checked
+     * and parsed directly, unless this object is lazy. Otherwise, this is
+     * postponed until information is requested that is not present in the index.
+     * 
+     * @see CertificateStoreIndex
+     */
+    protected void load(File f, Properties derived) throws IOException {
+	beginUpdate();
 	try {
-	    check(false);
-	} catch(CertificateCheckException e) {
-	    setProperty("state.message", e.getMessage());
-	    setProperty("state.message.volatile", "true");
-	}
+	    clear();
+	    path = f;
+	    stamps = CertificateStoreIndex.getStamps(f);
 
-	// read additional properties, not fatal if not present
-	if (getPropertiesFile().exists()) {
-	    InputStream in = new FileInputStream(getPropertiesFile());
-	    try {
-		super.load(in);
-	    } finally {
-		in.close();
+	    if (derived==null) {
+		// make sure it's ok
+		if (!lazy) validate();
+	    } else {
+		// result of check was recorded in the index
+		validated = true;
+		indexed = derived;
+		if (derived.getProperty("state.message")!=null) {
+		    setProperty("state.message.volatile", "true");
+		    setProperty("state.message", derived.getProperty("state.message"));
+		}
 	    }
+
+	    // read additional properties, not fatal if not present
+	    putAll(getPropertiesStore().read());
+	    // just loaded, so nothing to store
+	    CertificatePairFlusher.markClean(this);
+
+	    notifyChanged();
+	} finally {
+	    endUpdate();
 	}
+    }
 
-	notifyChanged();
+    /** Reread the certificate files after they were changed on disk.
+     * <p>
+     * Unlike {@link #load}, properties set on this object are kept; only
+     * information derived from the key, certificate and request is refreshed.
+     */
+    protected void reloadFiles() {
+	cert = null;
+	req = null;
+	indexed = null;
+	validated = false;
+	stamps = CertificateStoreIndex.getStamps(path);
+	invalidateCache();
+	beginUpdate();
+	try {
+	    if (!lazy) validate();
+	    notifyChanged();
+	} finally {
+	    endUpdate();
+	}
     }
-    
+
+    /** Return whether the key, certificate or request was changed on disk
+     * since it was last read. */
+    public boolean isChangedOnDisk() {
+	if (path==null || stamps==null) return false;
+	return !Arrays.equals(stamps, CertificateStoreIndex.getStamps(path));
+    }
+
+    /** Check the certificate files and record the outcome.
+     * <p>
+     * When the check fails, its message is put in the volatile property
+     * {@code state.message}. This is done only once, until the files are
+     * read again.
+     */
+    protected void validate() {
+	if (validated) return;
+	validated = true;
+	remove("state.message");
+	remove("state.message.volatile");
+	try {
+	    check(false);
+	} catch(CertificateCheckException e) {
+	    setProperty("state.message.volatile", "true");
+	    setProperty("state.message", e.getMessage());
+	}
+    }
+
     /** Store the properties in the file indicated by {@link #getPropertiesFile}.
      * <p>
      * This file is written with permissions so that only the user can read
-     * it, because it may contain personal information. 
+     * it, because it may contain personal information. It is written
+     * atomically, and only when its contents would change; see
+     * {@link PropertiesFile}.
      */
     public void store() throws FileNotFoundException, IOException {
-	logger.finest("Storing certificate properties: "+getPropertiesFile());
-	Properties p = (Properties)CertificatePair.super.clone();
-	// remove volatile properties
-	ArrayList<String> propsToRemove = new ArrayList<String>();
-	for (Enumeration<?> en=p.propertyNames(); en.hasMoreElements(); ) {
-	    String key = (String)en.nextElement();	    
-	    if (Boolean.valueOf(p.getProperty(key+".volatile")))
-		propsToRemove.add(key);
-	    // remove "*.volatile" entries, also stray ones without a property
-	    if (key.endsWith(".volatile"))
-		propsToRemove.add(key);
-	}
-	for (String key: propsToRemove) {
-	    p.remove(key);
-	}
-	// and store with OutputStream for Java 1.5 and below
-	if (p.size() > 0) {
-	    PrivateFileWriter writer = new PrivateFileWriter(getPropertiesFile());
-	    try {
-		p.store(writer.getOutputStream(),
-		    	"jGridstart certificate properties");
-	    } finally {
-		writer.close();
+	// changes made while storing will mark it dirty again
+	CertificatePairFlusher.markClean(this);
+	// copy all but volatile properties, also stray "*.volatile" entries
+	Properties p = new Properties();
+	synchronized(this) {
+	    for (Enumeration<?> en=propertyNames(); en.hasMoreElements(); ) {
+		String key = (String)en.nextElement();
+		if (!isVolatile(key))
+		    p.setProperty(key, super.getProperty(key));
 	    }
-	} else {
-	    getPropertiesFile().delete();
 	}
+	if (getPropertiesStore().write(p))
+	    logger.finest("Stored certificate properties: "+getPropertiesFile());
+    }
+
+    /** Return the persistence of the properties file.
+     * <p>
+     * A new one is returned when the path was changed.
+     */
+    protected synchronized PropertiesFile getPropertiesStore() {
+	File f = getPropertiesFile();
+	if (propertiesStore==null || !propertiesStore.getFile().equals(f))
+	    propertiesStore = new PropertiesFile(f);
+	return propertiesStore;
     }
 
     /** Import a {@linkplain CertificatePair} from a keystore into a (new) directory.
@@ -619,6 +918,7 @@ public class CertificatePair extends Properties implements ItemSelectable {
 		    // we want only the user certificate, which is the first one
 		    // TODO check it really is an X509Certificate
 		    cert = (X509Certificate) chain[0];
+		    invalidateCache();
 		    PEMWriter.writeObject(getCertFile(), cert);
 		    // we're done!
 		    return;
@@ -788,6 +1088,17 @@ public class CertificatePair extends Properties implements ItemSelectable {
      */
     static public CertificatePair generateRequest(File dst, Properties p, final char[] pw)
 	    throws IOException, GeneralSecurityException, PasswordCancelledException, CAException {
+	return generateRequest(dst, p, pw, null);
+    }
+    /** Generate a new CSR for an existing key pair with specified password.
+     * <p>
+     * The key pair must match {@link #getKeyAlgorithm} and {@link #getKeySize};
+     * when {@code null}, a new one is obtained from {@link KeyPairPool}.
+     * 
+     * @see #generateRequest(File, Properties, char[])
+     */
+    static public CertificatePair generateRequest(File dst, Properties p, final char[] pw, KeyPair keyPair)
+	    throws IOException, GeneralSecurityException, PasswordCancelledException, CAException {
 	// functionally based on
 	// org.globus.tools.GridCertRequest.genCertificateRequest()
 	
@@ -801,15 +1112,6 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	if (sigAlgName==null) sigAlgName = System.getProperty("jgridstart.sigalgname");
 	if (sigAlgName==null) sigAlgName = "SHA1WithRSA";
 	
-	String keyAlgName = p.getProperty("keyalgname");
-	keyAlgName = System.getProperty("jgridstart.keyalgname");
-	if (keyAlgName==null) keyAlgName = "RSA";
-
-	int keysize = 2048;
-	if (p.getProperty("keysize")!=null)
-	    keysize = Integer.valueOf(p.getProperty("keysize"));
-	else if (System.getProperty("jgridstart.keysize")!=null)
-	    keysize = Integer.valueOf(System.getProperty("jgridstart.keysize"));
 
 	// need comma-notation, so convert if slash-notation
 	if (subject.trim().startsWith("/"))
@@ -827,10 +1129,9 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	    }
 	});
 
-	// Generate new key pair
-	KeyPairGenerator keygen = KeyPairGenerator.getInstance(keyAlgName);
-	keygen.initialize(keysize);
-	KeyPair keyPair = keygen.genKeyPair();
+	// Generate new key pair, or use one generated in the background
+	if (keyPair==null)
+	    keyPair = KeyPairPool.getInstance().get(getKeyAlgorithm(p), getKeySize(p));
 	PrivateKey privKey = keyPair.getPrivate();
 	PublicKey pubKey = keyPair.getPublic();
 
@@ -854,6 +1155,24 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	
 	return cert;
     }
+    /** Return the key algorithm to use for a new request, from property {@code keyalgname},
+     * system property {@code jgridstart.keyalgname}, or {@literal RSA}. */
+    static public String getKeyAlgorithm(Properties p) {
+	String keyAlgName = p.getProperty("keyalgname");
+	if (keyAlgName==null) keyAlgName = System.getProperty("jgridstart.keyalgname");
+	if (keyAlgName==null) keyAlgName = "RSA";
+	return keyAlgName;
+    }
+    /** Return the key size to use for a new request, from property {@code keysize},
+     * system property {@code jgridstart.keysize}, or 2048. */
+    static public int getKeySize(Properties p) {
+	int keysize = 2048;
+	if (p.getProperty("keysize")!=null)
+	    keysize = Integer.valueOf(p.getProperty("keysize"));
+	else if (System.getProperty("jgridstart.keysize")!=null)
+	    keysize = Integer.valueOf(System.getProperty("jgridstart.keysize"));
+	return keysize;
+    }
     /** Generate a new private key+CSR pair, request password.
      * @see #generateRequest(File, Properties) */
     static public CertificatePair generateRequest(File dst, Properties p) throws GeneralSecurityException, IOException, PasswordCancelledException, CAException {
@@ -870,11 +1189,19 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	    return;
 	}
 	String csrData = FileUtils.readFile(getCSRFile());
-	getCA().uploadCertificationRequest(csrData, this);
-	setProperty("request.submitted", "true");
-	if (getProperty("request.serial")!=null)
-	    logger.finer("Got certificate request serial "+getProperty("request.serial")+" for: "+this);
-	notifyChanged();
+	beginUpdate();
+	try {
+	    CA ca = getCA();
+	    ca.uploadCertificationRequest(csrData, this);
+	    setProperty("request.submitted", "true");
+	    // so that the certificate is retrieved from the same CA later
+	    setProperty("ca.provider", ca.getClass().getName());
+	    if (getProperty("request.serial")!=null)
+		logger.finer("Got certificate request serial "+getProperty("request.serial")+" for: "+this);
+	    notifyChanged();
+	} finally {
+	    endUpdate();
+	}
 	store();
     }
     
@@ -903,20 +1230,39 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	logger.finer("Downloading certificate: "+this);
 	
 	cert = getCA().downloadCertificate(getCSR(), this);
+	invalidateCache();
 	if (cert!=null) {
-	    setProperty("request.processed", Boolean.toString(true));
-	    PEMWriter.writeObject(getCertFile(), cert);
-	    notifyChanged();
+	    beginUpdate();
+	    try {
+		setProperty("request.processed", Boolean.toString(true));
+		PEMWriter.writeObject(getCertFile(), cert);
+		notifyChanged();
+	    } finally {
+		endUpdate();
+	    }
 	}
 	// TODO what when cert is null, throw Exception; can downloadCertificate() return null anyway?
 	check(false);
     }
     
-    /** Return the correct CA for this CertificatePair. Currently this is
-     * fixed, but eventually it should be possible to have certificates with
-     * different CA's.
+    /** Return the correct CA for this CertificatePair.
+     * <p>
+     * When a certificate is present, this is the CA that issued it, if it is
+     * known (see {@link CAFactory#getIssuer}). Otherwise it is the CA that
+     * the request was uploaded to, as recorded in the property
+     * {@code ca.provider}, or else the default CA.
      */
     protected CA getCA() throws GeneralSecurityException, CAException {
+	try {
+	    X509Certificate c = getCertificate();
+	    if (c!=null) {
+		CA ca = CAFactory.getIssuer(c);
+		if (ca!=null) return ca;
+	    }
+	} catch (IOException e) { }
+	String provider = getProperty("ca.provider");
+	if (provider!=null)
+	    return CAFactory.getCA(provider);
 	return CAFactory.getDefault();
     }
 
@@ -1052,7 +1398,7 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	return new String[] {
 		"userkey.pem", "usercert.pem", "usercert_request.pem", "userrequest.pem",
 		"usercert.p12",
-		"userinfo.properties"
+		"userinfo.properties", "userinfo.properties.journal"
 	};
     }
 
@@ -1262,6 +1608,19 @@ public class CertificatePair extends Properties implements ItemSelectable {
 	return getPath().equals(((CertificatePair)other).getPath());
     }
 
+    /** Memoised property value, see {@link CertificatePair#getProperty} */
+    protected static class CachedValue {
+	/** value, may be {@code null} */
+	public String value;
+	/** time in milliseconds after which value is invalid, or 0 */
+	public long expires;
+
+	public CachedValue(String value, long expires) {
+	    this.value = value;
+	    this.expires = expires;
+	}
+    }
+
     /*
      * ItemListener interface
      */
@@ -1278,8 +1637,43 @@ public class CertificatePair extends Properties implements ItemSelectable {
     public void removeItemListener(ItemListener l) {
 	itemListeners.remove(l);
     }
+    /** Nesting depth of updates, see {@link #beginUpdate} */
+    private transient int updateDepth = 0;
+    /** Whether listeners need to be notified at the end of the update */
+    private transient boolean updateChanged = false;
+
+    /** Start an update of multiple properties.
+     * <p>
+     * Until the matching {@link #endUpdate}, {@link ItemListener}s are not
+     * notified of changes. Then they are notified once, if anything changed.
+     * Updates can be nested. This can be used when setting many properties,
+     * so that a user-interface showing this certificate is only updated once.
+     * <p>
+     * Always call {@link #endUpdate} in a {@code finally} block.
+     */
+    public synchronized void beginUpdate() {
+	updateDepth++;
+    }
+
+    /** End an update of multiple properties, see {@link #beginUpdate}. */
+    public void endUpdate() {
+	synchronized(this) {
+	    if (updateDepth == 0)
+		throw new IllegalStateException("endUpdate() without beginUpdate()");
+	    if (--updateDepth > 0 || !updateChanged) return;
+	    updateChanged = false;
+	}
+	notifyChanged();
+    }
+
     /** notify itemlisteners that the item was changed */
     protected void notifyChanged() {
+	synchronized(this) {
+	    if (updateDepth > 0) {
+		updateChanged = true;
+		return;
+	    }
+	}
 	ItemEvent e = new ItemEvent(CertificatePair.this, ItemEvent.ITEM_STATE_CHANGED, CertificatePair.this, 0);
 	synchronized(itemListeners) {
 	    for (ItemListener l: itemListeners) {
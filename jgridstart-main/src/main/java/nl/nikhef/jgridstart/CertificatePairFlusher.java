@@ -0,0 +1,153 @@
+package nl.nikhef.jgridstart;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/** Writes back changed properties of {@link CertificatePair}s.
+ * <p>
+ * A {@linkplain CertificatePair} whose properties were changed since they
+ * were last loaded or stored is marked dirty here. On exit, a single
+ * shutdown hook stores all dirty certificate pairs; unchanged pairs are not
+ * written at all. Optionally, dirty pairs can be written periodically as
+ * well using {@link #startPeriodic}.
+ * <p>
+ * Only dirty pairs are referenced, so clean ones can be garbage collected.
+ *
+ * @author wvengen
+ */
+public class CertificatePairFlusher {
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart");
+
+    /** Certificate pairs that need to be stored; by identity, since both
+     * {@link CertificatePair#equals} and its hash code depend on contents. */
+    protected static Set<CertificatePair> dirty =
+	Collections.newSetFromMap(new IdentityHashMap<CertificatePair, Boolean>());
+    /** Whether the shutdown hook was installed */
+    protected static boolean hookInstalled = false;
+    /** Scheduler for periodic flushing, or {@code null} */
+    protected static ScheduledExecutorService periodic = null;
+
+    /** Static class, no instances */
+    private CertificatePairFlusher() { }
+
+    /** Mark a certificate pair as changed, so that it will be stored. */
+    public static synchronized void markDirty(CertificatePair cert) {
+	dirty.add(cert);
+	if (!hookInstalled) {
+	    Runtime.getRuntime().addShutdownHook(new Thread("jGridstart certificate flusher") {
+		@Override
+		public void run() {
+		    flush();
+		}
+	    });
+	    hookInstalled = true;
+	}
+    }
+
+    /** Mark a certificate pair as unchanged, e.g. after it was stored. */
+    public static synchronized void markClean(CertificatePair cert) {
+	dirty.remove(cert);
+    }
+
+    /** Return whether a certificate pair has changes that are not yet stored. */
+    public static synchronized boolean isDirty(CertificatePair cert) {
+	return dirty.contains(cert);
+    }
+
+    /** Store all dirty certificate pairs.
+     * <p>
+     * When there are multiple, they are written in parallel. Failures are
+     * logged, and the certificate pair remains dirty.
+     */
+    public static void flush() {
+	final List<CertificatePair> certs;
+	synchronized(CertificatePairFlusher.class) {
+	    if (dirty.isEmpty()) return;
+	    certs = new ArrayList<CertificatePair>(dirty);
+	}
+	int nthreads = Math.min(certs.size(), Runtime.getRuntime().availableProcessors());
+	logger.fine("Storing "+certs.size()+" changed certificates using "+nthreads+" threads");
+	if (nthreads <= 1) {
+	    for (CertificatePair cert: certs)
+		tryStore(cert);
+	    return;
+	}
+	ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+	try {
+	    ArrayList<Future<?>> results = new ArrayList<Future<?>>(certs.size());
+	    for (final CertificatePair cert: certs) {
+		results.add(pool.submit(new Callable<Object>() {
+		    public Object call() {
+			tryStore(cert);
+			return null;
+		    }
+		}));
+	    }
+	    for (Future<?> result: results)
+		result.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} catch (ExecutionException e) {
+	    logger.warning("Could not store certificate properties: "+e.getCause());
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    /** Store dirty certificate pairs every {@code interval} milliseconds as well.
+     * <p>
+     * This limits the loss of changes when the program is not terminated
+     * normally.
+     */
+    public static synchronized void startPeriodic(long interval) {
+	stopPeriodic();
+	periodic = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, "jGridstart periodic certificate flusher");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+	periodic.scheduleWithFixedDelay(new Runnable() {
+	    public void run() {
+		flush();
+	    }
+	}, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop storing dirty certificate pairs periodically.
+     * @see #startPeriodic */
+    public static synchronized void stopPeriodic() {
+	if (periodic == null) return;
+	periodic.shutdown();
+	periodic = null;
+    }
+
+    /** Store a certificate pair, logging any failure. */
+    protected static void tryStore(CertificatePair cert) {
+	if (cert.getPath()==null) {
+	    markClean(cert);
+	    return;
+	}
+	try {
+	    cert.store();
+	} catch (IOException e) {
+	    logger.warning("Could not store certificate properties of "+cert.getPath()+": "+e.getMessage());
+	    markDirty(cert);
+	}
+    }
+}
@@ -31,43 +31,48 @@ public class CertificateRequest {
      * @param parent Parent Properties to copy from 
      */
     static public void preFillData(Properties p, Properties parent) {
-	// parse parent properties
-	if (parent!=null) {
-	    // just copy most properties
-	    for (Enumeration<?> it = parent.propertyNames(); it.hasMoreElements(); ) {
-		String name = (String)it.nextElement();
-		String value = parent.getProperty(name);
-		// filter out state properties that shouldn't be copied
-		if (name.equals("request.submitted")) continue;
-		if (name.equals("request.processed")) continue;
-		if (name.equals("install.done")) continue;
-		if (name.equals("request.serial")) continue;
-		// copy if unset
-		if (!p.containsKey(name))
-		    p.setProperty(name, value);
+	beginUpdate(p);
+	try {
+	    // parse parent properties
+	    if (parent!=null) {
+		// just copy most properties
+		for (Enumeration<?> it = parent.propertyNames(); it.hasMoreElements(); ) {
+		    String name = (String)it.nextElement();
+		    String value = parent.getProperty(name);
+		    // filter out state properties that shouldn't be copied
+		    if (name.equals("request.submitted")) continue;
+		    if (name.equals("request.processed")) continue;
+		    if (name.equals("install.done")) continue;
+		    if (name.equals("request.serial")) continue;
+		    // copy if unset
+		    if (!p.containsKey(name))
+			p.setProperty(name, value);
+		}
+		// this is a renewal
+		p.setProperty("renewal", Boolean.toString(true));
+		// and as the organisation can be a virtual property, really copy that
+		p.setProperty("org", parent.getProperty("org"));
 	    }
-	    // this is a renewal
-	    p.setProperty("renewal", Boolean.toString(true));
-	    // and as the organisation can be a virtual property, really copy that
-	    p.setProperty("org", parent.getProperty("org"));
-	}
-	// key properties are not taken from parent, since it would be good to have
-	// renewals default to stronger crypto, when configured so
-	p.setProperty("keyalgname", System.getProperty("jgridstart.keyalgname"));
-	p.setProperty("keyalgname.volatile", "true");
-	p.setProperty("keysize", System.getProperty("jgridstart.keysize"));
-	p.setProperty("keysize.volatile", "true");
-	p.setProperty("sigalgname", System.getProperty("jgridstart.sigalgname"));
-	p.setProperty("sigalgname.volatile", "true");
-	// read defaults from system properties
-	for (Enumeration<?> it = System.getProperties().propertyNames(); it.hasMoreElements(); ) {
-	    String name = (String)it.nextElement();
-	    String value = System.getProperty(name);
-	    if (name.startsWith(defaultsPrefix) ) {
-		String localName = name.substring(defaultsPrefix.length()+1);
-		if (!p.containsKey(localName))
-		    p.setProperty(name.substring(defaultsPrefix.length()), value);
+	    // key properties are not taken from parent, since it would be good to have
+	    // renewals default to stronger crypto, when configured so
+	    p.setProperty("keyalgname", System.getProperty("jgridstart.keyalgname"));
+	    p.setProperty("keyalgname.volatile", "true");
+	    p.setProperty("keysize", System.getProperty("jgridstart.keysize"));
+	    p.setProperty("keysize.volatile", "true");
+	    p.setProperty("sigalgname", System.getProperty("jgridstart.sigalgname"));
+	    p.setProperty("sigalgname.volatile", "true");
+	    // read defaults from system properties
+	    for (Enumeration<?> it = System.getProperties().propertyNames(); it.hasMoreElements(); ) {
+		String name = (String)it.nextElement();
+		String value = System.getProperty(name);
+		if (name.startsWith(defaultsPrefix) ) {
+		    String localName = name.substring(defaultsPrefix.length()+1);
+		    if (!p.containsKey(localName))
+			p.setProperty(name.substring(defaultsPrefix.length()), value);
+		}
 	    }
+	} finally {
+	    endUpdate(p);
 	}
     }
     /** Set default properties to aid user in filling in the form.
@@ -93,28 +98,33 @@ public class CertificateRequest {
      * @param p Properties to update
      */
     static public void postFillData(Properties p) {
-	// construct subject
-	String subject = "";
-	if (p.getProperty("level", "").equals("tutorial"))
-	    subject += "O=edgtutorial";
-	else
-	    subject += "O=dutchgrid";
-	if (p.getProperty("level", "").equals("demo"))
-	    subject += ", O=dutch-demo";
-	subject += ", O=users";
+	beginUpdate(p);
+	try {
+	    // construct subject
+	    String subject = "";
+	    if (p.getProperty("level", "").equals("tutorial"))
+		subject += "O=edgtutorial";
+	    else
+		subject += "O=dutchgrid";
+	    if (p.getProperty("level", "").equals("demo"))
+		subject += ", O=dutch-demo";
+	    subject += ", O=users";
 	
-	String[] orgs = p.getProperty("org").split(",\\s*");
-	subject += ", O=" + orgs[0];
-	for (int i=1; i<orgs.length; i++)
-	    subject += ", OU=" + orgs[i];
+	    String[] orgs = p.getProperty("org").split(",\\s*");
+	    subject += ", O=" + orgs[0];
+	    for (int i=1; i<orgs.length; i++)
+		subject += ", OU=" + orgs[i];
 	
-	p.setProperty("fullname", p.getProperty("givenname").trim() +
-		" " + p.getProperty("surname").trim());
-	p.setProperty("fullname.lock", "true");
-	subject += ", CN=" + p.getProperty("fullname");;
-	// simulate x-full propery from certificate to generate request
-	p.setProperty("subject", subject);
-	p.setProperty("subject.volatile", "true");
+	    p.setProperty("fullname", p.getProperty("givenname").trim() +
+		    " " + p.getProperty("surname").trim());
+	    p.setProperty("fullname.lock", "true");
+	    subject += ", CN=" + p.getProperty("fullname");;
+	    // simulate x-full propery from certificate to generate request
+	    p.setProperty("subject", subject);
+	    p.setProperty("subject.volatile", "true");
+	} finally {
+	    endUpdate(p);
+	}
     }
     
     /** Lock fields on which the request is dependent.
@@ -125,14 +135,19 @@ public class CertificateRequest {
      * the fields cannot be edited in {@linkplain TemplateDocument}s. 
      */
     static public void postFillDataLock(Properties p) {
-	p.setProperty("givenname.lock", Boolean.toString(true));
-	p.setProperty("surname.lock", Boolean.toString(true));
-	p.setProperty("subject.lock", Boolean.toString(true));
-	p.setProperty("level.lock", Boolean.toString(true));
-	p.setProperty("org.lock", Boolean.toString(true));
-	p.setProperty("keysize.lock", Boolean.toString(true));
-	p.setProperty("keyalgname.lock", Boolean.toString(true));
-	p.setProperty("sigalgname.lock", Boolean.toString(true));
+	beginUpdate(p);
+	try {
+	    p.setProperty("givenname.lock", Boolean.toString(true));
+	    p.setProperty("surname.lock", Boolean.toString(true));
+	    p.setProperty("subject.lock", Boolean.toString(true));
+	    p.setProperty("level.lock", Boolean.toString(true));
+	    p.setProperty("org.lock", Boolean.toString(true));
+	    p.setProperty("keysize.lock", Boolean.toString(true));
+	    p.setProperty("keyalgname.lock", Boolean.toString(true));
+	    p.setProperty("sigalgname.lock", Boolean.toString(true));
+	} finally {
+	    endUpdate(p);
+	}
     }
     
     /** Completes fields from certificate.
@@ -141,17 +156,22 @@ public class CertificateRequest {
      * to get names, level, etc. This is kinda reverse of {#postFillData}.
      */
     static public void completeData(Properties p) {
-	// by default medium level, overriden if O=dutch-demo is present
-	if (p.getProperty("subject")!=null &&
-		p.getProperty("subject").toUpperCase().contains("O=DUTCH-DEMO"))
-	    p.setProperty("level", "demo");
-	else
-	    p.setProperty("level", "medium");
+	beginUpdate(p);
+	try {
+	    // by default medium level, overriden if O=dutch-demo is present
+	    if (p.getProperty("subject")!=null &&
+		    p.getProperty("subject").toUpperCase().contains("O=DUTCH-DEMO"))
+		p.setProperty("level", "demo");
+	    else
+		p.setProperty("level", "medium");
 
-	// name
-	if (p.getProperty("subject.cn")!=null) {
-	    p.setProperty("fullname", p.getProperty("subject.cn"));
-	    p.setProperty("fullname.lock", "true");
+	    // name
+	    if (p.getProperty("subject.cn")!=null) {
+		p.setProperty("fullname", p.getProperty("subject.cn"));
+		p.setProperty("fullname.lock", "true");
+	    }
+	} finally {
+	    endUpdate(p);
 	}
     }
     
@@ -233,4 +253,17 @@ public class CertificateRequest {
 	}
     }
     
+    /** Start an update of properties, so that listeners are notified once.
+     * @see CertificatePair#beginUpdate */
+    static private void beginUpdate(Properties p) {
+	if (p instanceof CertificatePair)
+	    ((CertificatePair)p).beginUpdate();
+    }
+    /** End an update of properties.
+     * @see CertificatePair#endUpdate */
+    static private void endUpdate(Properties p) {
+	if (p instanceof CertificatePair)
+	    ((CertificatePair)p).endUpdate();
+    }
+    
 }
@@ -0,0 +1,262 @@
+package nl.nikhef.jgridstart;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import nl.nikhef.jgridstart.ca.CA;
+
+/** Checks all pending certificate signing requests of a {@link CertificateStore}.
+ * <p>
+ * Each entry of the store that has a request but no certificate is checked
+ * with its certificate authority, and when the request was processed, the
+ * certificate is downloaded and stored (see
+ * {@link CertificatePair#downloadCertificate}). This is done in parallel on
+ * a bounded number of threads, see {@link #setThreads}.
+ * <p>
+ * To avoid overloading a certificate authority, consecutive requests to the
+ * same one are spaced at least {@link #getInterval} milliseconds apart. When
+ * a certificate authority cannot be reached, the request is retried after
+ * a delay that doubles each time, up to {@link #getRetries} times.
+ * <p>
+ * When done, the listeners are notified once with a {@link Result}; the store
+ * itself sends its change events as one batch.
+ *
+ * @author wvengen
+ */
+public class CertificateRequestPoller {
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart");
+
+    /** Certificate store to poll */
+    protected CertificateStore store;
+    /** Maximum number of threads */
+    protected int threads = getDefaultThreads();
+    /** Minimum time between requests to the same CA in milliseconds */
+    protected long interval = getDefaultInterval();
+    /** Number of retries when a CA cannot be reached */
+    protected int retries = 3;
+    /** Delay before the first retry in milliseconds, doubled for each next one */
+    protected long backoff = 1000;
+    /** Listeners to notify */
+    protected List<PollListener> listeners = new CopyOnWriteArrayList<PollListener>();
+    /** Time at which the next request may be sent to each CA */
+    private IdentityHashMap<CA, Long> nextRequest = new IdentityHashMap<CA, Long>();
+
+    /** Create a new poller for a certificate store. */
+    public CertificateRequestPoller(CertificateStore store) {
+	this.store = store;
+    }
+
+    /** Set the maximum number of threads to poll with.
+     * <p>
+     * The default is taken from the system property
+     * {@code jgridstart.poll.threads}, or else 4.
+     */
+    public void setThreads(int n) {
+	threads = Math.max(1, n);
+    }
+    public int getThreads() {
+	return threads;
+    }
+
+    /** Set the minimum time between requests to the same certificate authority.
+     * <p>
+     * The default is taken from the system property
+     * {@code jgridstart.poll.interval}, or else 200 milliseconds.
+     */
+    public void setInterval(long ms) {
+	interval = Math.max(0, ms);
+    }
+    public long getInterval() {
+	return interval;
+    }
+
+    /** Set the number of retries and the delay before the first one in milliseconds. */
+    public void setRetries(int n, long backoff) {
+	this.retries = Math.max(0, n);
+	this.backoff = Math.max(0, backoff);
+    }
+    public int getRetries() {
+	return retries;
+    }
+
+    public void addPollListener(PollListener l) {
+	listeners.add(l);
+    }
+    public void removePollListener(PollListener l) {
+	listeners.remove(l);
+    }
+
+    /** Return default number of threads. */
+    protected static int getDefaultThreads() {
+	try {
+	    String s = System.getProperty("jgridstart.poll.threads");
+	    if (s!=null) return Math.max(1, Integer.parseInt(s));
+	} catch (NumberFormatException e) { }
+	return 4;
+    }
+
+    /** Return default interval between requests to the same CA. */
+    protected static long getDefaultInterval() {
+	try {
+	    String s = System.getProperty("jgridstart.poll.interval");
+	    if (s!=null) return Math.max(0, Long.parseLong(s));
+	} catch (NumberFormatException e) { }
+	return 200;
+    }
+
+    /** Check all pending requests and download issued certificates.
+     * <p>
+     * This blocks until all requests were checked.
+     *
+     * @return outcome for each pending request
+     */
+    public Result poll() {
+	List<CertificatePair> pending = new ArrayList<CertificatePair>(store.findPendingRequests());
+	Result result = new Result();
+	if (pending.size() == 0) {
+	    fireDone(result);
+	    return result;
+	}
+	// resolve CAs up front, requests to the same CA are rate-limited together
+	final List<CA> cas = new ArrayList<CA>(pending.size());
+	for (CertificatePair cert: pending) {
+	    try {
+		cas.add(cert.getCA());
+	    } catch (Exception e) {
+		cas.add(null);
+		result.failed.put(cert, e);
+	    }
+	}
+	int nthreads = Math.min(threads, pending.size());
+	logger.fine("Polling "+pending.size()+" pending requests using "+nthreads+" threads");
+	ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+	store.beginBatch();
+	try {
+	    ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>(pending.size());
+	    for (int i=0; i<pending.size(); i++) {
+		final CertificatePair cert = pending.get(i);
+		final CA ca = cas.get(i);
+		results.add(ca==null ? null : pool.submit(new Callable<Boolean>() {
+		    public Boolean call() throws Exception {
+			return poll(cert, ca);
+		    }
+		}));
+	    }
+	    for (int i=0; i<results.size(); i++) {
+		if (results.get(i)==null) continue;
+		CertificatePair cert = pending.get(i);
+		try {
+		    if (results.get(i).get())
+			result.issued.add(cert);
+		    else
+			result.pending.add(cert);
+		} catch (ExecutionException e) {
+		    logger.warning("Failed to poll certificate request "+cert.getPath()+": "+e.getCause());
+		    result.failed.put(cert, e.getCause());
+		}
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} finally {
+	    pool.shutdownNow();
+	    store.endBatch();
+	}
+	fireDone(result);
+	return result;
+    }
+
+    /** Check a single request and download its certificate when issued.
+     *
+     * @return whether the certificate was downloaded
+     */
+    protected boolean poll(CertificatePair cert, CA ca) throws Exception {
+	for (int attempt=0; ; attempt++) {
+	    try {
+		if (!Boolean.valueOf(cert.getProperty("request.processed"))) {
+		    acquire(ca);
+		    boolean processed = ca.isCertificationRequestProcessed(cert.getCSR(), cert);
+		    cert.setProperty("request.processed", Boolean.toString(processed));
+		    if (!processed) return false;
+		}
+		acquire(ca);
+		cert.downloadCertificate();
+		return cert.getCertificate()!=null;
+	    } catch (IOException e) {
+		if (attempt >= retries) throw e;
+		long delay = backoff << attempt;
+		logger.fine("Polling "+cert.getPath()+" failed, retrying in "+delay+"ms: "+e);
+		Thread.sleep(delay);
+	    }
+	}
+    }
+
+    /** Wait until a request may be sent to a CA. */
+    protected void acquire(CA ca) throws InterruptedException {
+	long wait;
+	synchronized(nextRequest) {
+	    long now = System.currentTimeMillis();
+	    Long next = nextRequest.get(ca);
+	    long at = next==null ? now : Math.max(now, next);
+	    nextRequest.put(ca, at + interval);
+	    wait = at - now;
+	}
+	if (wait > 0) Thread.sleep(wait);
+    }
+
+    /** Notify listeners that polling is done. */
+    protected void fireDone(Result result) {
+	for (PollListener l: listeners) {
+	    try {
+		l.pollDone(result);
+	    } catch (RuntimeException e) {
+		logger.warning("Poll listener failed: "+e);
+	    }
+	}
+    }
+
+    /** Listener for the outcome of {@link CertificateRequestPoller#poll}. */
+    public interface PollListener {
+	/** Called once when all pending requests were checked.
+	 *
+	 * @param result outcome for each request
+	 */
+	void pollDone(Result result);
+    }
+
+    /** Outcome of checking all pending requests. */
+    public static class Result {
+	/** Requests for which the certificate was downloaded */
+	protected List<CertificatePair> issued = new ArrayList<CertificatePair>();
+	/** Requests that were not processed yet by the CA */
+	protected List<CertificatePair> pending = new ArrayList<CertificatePair>();
+	/** Requests that could not be checked, with the reason */
+	protected Map<CertificatePair, Throwable> failed = new IdentityHashMap<CertificatePair, Throwable>();
+
+	public List<CertificatePair> getIssued() {
+	    return Collections.unmodifiableList(issued);
+	}
+	public List<CertificatePair> getPending() {
+	    return Collections.unmodifiableList(pending);
+	}
+	public Map<CertificatePair, Throwable> getFailed() {
+	    return Collections.unmodifiableMap(failed);
+	}
+
+	@Override
+	public String toString() {
+	    return issued.size()+" issued, "+pending.size()+" pending, "+failed.size()+" failed";
+	}
+    }
+}
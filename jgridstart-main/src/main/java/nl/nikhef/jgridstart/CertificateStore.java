@@ -6,13 +6,28 @@ import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.security.GeneralSecurityException;
+import java.security.KeyPair;
 import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import nl.nikhef.jgridstart.osutils.FileUtils;
@@ -21,6 +36,7 @@ import nl.nikhef.jgridstart.passwordcache.PasswordCancelledException;
 import nl.nikhef.jgridstart.CertificateCheck.CertificateCheckException;
 import nl.nikhef.jgridstart.ca.CAException;
 import nl.nikhef.jgridstart.gui.util.ArrayListModel;
+import nl.nikhef.jgridstart.util.CryptoUtils;
 
 /** Management of multiple {@code .globus}-type certificates on disk
  * <p>
@@ -44,6 +60,39 @@ import nl.nikhef.jgridstart.gui.util.ArrayListModel;
  * {@linkplain CertificatePair}, while the latter notifies its listeners when
  * an item is added or removed.
  * <p>
+ * This store can be read and modified from multiple threads; reads use a
+ * snapshot without locking. When used as a model for Swing components, events
+ * can be delivered on the event dispatch thread, see
+ * {@link ArrayListModel#setNotifyOnEDT}.
+ * <p>
+ * <h3>Loading</h3>
+ * Each entry is checked when it is loaded, which involves parsing its key,
+ * certificate signing request and certificate, unless entries are loaded
+ * lazily (see {@link #setLazyLoad}). For stores with many entries
+ * this is done in parallel on a bounded number of threads (see
+ * {@link #setLoadThreads}). Entries are still added in directory order, and
+ * listeners are notified once for all entries loaded. When refreshing,
+ * listeners are notified of all removals and additions at once as well.
+ * <p>
+ * Information derived from the certificate files is kept in a
+ * {@link CertificateStoreIndex} in the store's directory, so that only entries
+ * whose files were changed need to be parsed on startup. This can be disabled
+ * with the system property {@code jgridstart.store.index}.
+ * <p>
+ * Large stores can put entries in shard subdirectories, see {@link #setShards}.
+ * <p>
+ * <h3>Lookups</h3>
+ * Certificates can be found by path, serial number, subject, issuer and
+ * public key using the {@code find*} methods, which use hash indexes that are
+ * kept up-to-date with this store.
+ * <p>
+ * <h3>Watching</h3>
+ * Long-running programs can use {@link #startWatching} to pick up changes
+ * made by other programs. Only entries whose files have changed are reread.
+ * A {@link CertificateExpiryScheduler} can notify when certificates need to
+ * be renewed or expire. All pending certificate signing requests can be
+ * checked at once with {@link #pollPendingRequests}.
+ * <p>
  * 
  * @author wvengen
  *
@@ -58,6 +107,30 @@ public class CertificateStore extends ArrayListModel<CertificatePair> implements
     protected CertificatePair defaultCert = null;
     /** Prefix of user certificate subdirs of {@code ~/.globus} to load from */
     protected final String userCertPrefix = "user-cert-";
+    /** Prefix of shard subdirs of the store, see {@link #setShards} */
+    protected final String shardPrefix = "shard-";
+    /** Number of shard subdirs to create new entries in; or {@code 0} for none */
+    protected int shards = getDefaultShards();
+    /** Next sequence number of new entries for each creation date, see {@link #newItem(Calendar)} */
+    protected HashMap<String, Integer> nextSequence = new HashMap<String, Integer>();
+    /** Maximum number of threads used to load entries, see {@link #setLoadThreads} */
+    protected int loadThreads = getDefaultLoadThreads();
+    /** Index of derived certificate properties, or {@code null} if not used */
+    protected CertificateStoreIndex index = null;
+    /** Whether to use an index, see {@link #setUseIndex} */
+    protected boolean useIndex = !"false".equals(System.getProperty("jgridstart.store.index"));
+    /** Lookup indexes, see {@link #getLookup}; {@code null} when not built yet */
+    protected CertificateLookup lookup = null;
+    /** Entries that were added or changed since they were last put in {@link #lookup} */
+    protected Set<CertificatePair> lookupStale = Collections.newSetFromMap(new IdentityHashMap<CertificatePair, Boolean>());
+    /** Positions of entries for {@link #indexOf}; {@code null} when outdated */
+    protected CertificateLookup positions = null;
+    /** Modification count of this list when lookups were built */
+    protected int lookupModCount = -1;
+    /** Scheduler that watches the store directory, or {@code null} when not watching */
+    protected ScheduledExecutorService watcher = null;
+    /** Whether to load entries lazily, see {@link #setLazyLoad} */
+    protected boolean lazyLoad = !"false".equals(System.getProperty("jgridstart.store.lazy"));
 
     /** new empty certificate store */
     public CertificateStore() {
@@ -119,7 +192,8 @@ public class CertificateStore extends ArrayListModel<CertificatePair> implements
     /** Load certificates from store path
      * <p>
      * All subdirectories of the supplied path that start with
-     * {@link #userCertPrefix} are loaded as separate certificates; in
+     * {@link #userCertPrefix} are loaded as separate certificates, also
+     * when they are in a shard subdirectory (see {@link #setShards}); in
      * addition to this, the directory itself is loaded as well.
      * 
      * @param path Directory to load certificates from
@@ -127,27 +201,299 @@ public class CertificateStore extends ArrayListModel<CertificatePair> implements
     public void load(File path) {
 	this.path = path;
 	if (!path.isDirectory()) return;
+	if (useIndex && (index==null || !index.getRoot().equals(path))) {
+	    index = new CertificateStoreIndex(path);
+	    index.read();
+	}
+	// find new items
+	HashSet<File> existing = getPaths();
+	ArrayList<File> newFiles = new ArrayList<File>();
+	for (File f: listItems()) {
+	    // filter out unwanted items
+	    if (!f.isDirectory()) continue;
+	    // add when it doesn't exist already in this store
+	    if (!existing.contains(f))
+		newFiles.add(f);
+	}
+	// load without holding the lock, and add them at once
+	List<CertificatePair> certs = tryLoadAll(newFiles);
+	synchronized(this) {
+	    // another thread may have added some in the meantime
+	    existing = getPaths();
+	    for (Iterator<CertificatePair> it = certs.iterator(); it.hasNext(); ) {
+		if (existing.contains(it.next().getPath()))
+		    it.remove();
+	    }
+	    addAll(certs);
+	}
+	updateIndex();
+    }
+    
+    /** Return the paths of all entries in this store. */
+    protected HashSet<File> getPaths() {
+	HashSet<File> paths = new HashSet<File>(size());
+	for (CertificatePair cert: this)
+	    paths.add(cert.getPath());
+	return paths;
+    }
+
+    /** Return the subdirectories of the store path that may be entries.
+     * <p>
+     * These are those starting with {@link #userCertPrefix}, directly in
+     * the store path or in one of its shard subdirectories.
+     */
+    protected List<File> listItems() {
+	ArrayList<File> items = new ArrayList<File>();
 	File[] files = path.listFiles();
-	
-	// add new items
+	if (files==null) return items;
 	for (int i=0; i<files.length; i++) {
 	    File f = files[i];
-	    // filter out unwanted items
-	    if (!f.getName().startsWith(userCertPrefix)) continue;
-	    if (!f.isDirectory()) continue;
-	    // make sure it doesn't exist already in this store
-	    boolean found = false;
-	    for (int j = 0; j < size(); j++) {
-		File a = get(j).getPath();
-		if (a.equals(f)) {
-		    found = true;
-		    break;
+	    if (f.getName().startsWith(userCertPrefix)) {
+		items.add(f);
+	    } else if (f.getName().startsWith(shardPrefix) && f.isDirectory()) {
+		File[] sharded = f.listFiles();
+		if (sharded==null) continue;
+		for (int j=0; j<sharded.length; j++) {
+		    if (sharded[j].getName().startsWith(userCertPrefix))
+			items.add(sharded[j]);
 		}
 	    }
-	    // add when required
-	    if (!found)
-		tryAdd(f);
 	}
+	return items;
+    }
+
+    /** Set the number of shard subdirectories to create new entries in.
+     * <p>
+     * With many entries, a single directory can become slow. When set to a
+     * positive number, new entries are put in one of this many subdirectories
+     * of the store path, named {@code shard-xx}, based on a hash of the
+     * entry's name. Existing entries are not moved, and entries are always
+     * loaded from both the store path and its shard subdirectories. The
+     * default is taken from the system property {@code jgridstart.store.shards},
+     * or else {@code 0} (no sharding).
+     * 
+     * @param n number of shards, at most 256; or {@code 0} to disable sharding
+     */
+    public void setShards(int n) {
+	shards = Math.max(0, Math.min(256, n));
+    }
+
+    /** Return the number of shards used for new entries.
+     * @see #setShards */
+    public int getShards() {
+	return shards;
+    }
+
+    /** Return default number of shards.
+     * @see #setShards */
+    protected static int getDefaultShards() {
+	try {
+	    String s = System.getProperty("jgridstart.store.shards");
+	    if (s!=null) return Math.max(0, Math.min(256, Integer.parseInt(s)));
+	} catch (NumberFormatException e) { }
+	return 0;
+    }
+
+    /** Set the maximum number of threads used for loading entries.
+     * <p>
+     * When set to {@code 1}, entries are loaded one after another on the
+     * calling thread. The default is taken from the system property
+     * {@code jgridstart.store.threads}, or else the number of available
+     * processors.
+     * 
+     * @param n maximum number of loader threads
+     */
+    public void setLoadThreads(int n) {
+	loadThreads = Math.max(1, n);
+    }
+    
+    /** Return the maximum number of threads used for loading entries. */
+    public int getLoadThreads() {
+	return loadThreads;
+    }
+    
+    /** Return default number of loader threads.
+     * @see #setLoadThreads */
+    protected static int getDefaultLoadThreads() {
+	try {
+	    String s = System.getProperty("jgridstart.store.threads");
+	    if (s!=null) return Math.max(1, Integer.parseInt(s));
+	} catch (NumberFormatException e) { }
+	return Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Set whether to use an index of derived certificate properties.
+     * <p>
+     * This is enabled by default, unless the system property
+     * {@code jgridstart.store.index} is {@code false}. It takes effect
+     * on the next {@link #load}.
+     * 
+     * @see CertificateStoreIndex
+     */
+    public void setUseIndex(boolean use) {
+	useIndex = use;
+	if (!use) index = null;
+    }
+
+    /** Set whether to load entries lazily.
+     * <p>
+     * Lazily loaded entries are not checked and parsed until information is
+     * requested that requires it, see {@link CertificatePair#CertificatePair(File, boolean)}.
+     * Entries that are added to the index are always parsed on load, since their
+     * information is needed for the index anyway. This is enabled by default,
+     * unless the system property {@code jgridstart.store.lazy} is {@code false}.
+     */
+    public void setLazyLoad(boolean lazy) {
+	lazyLoad = lazy;
+    }
+
+    /** Bring the index up-to-date with the entries of this store and save it.
+     * <p>
+     * Failure to write the index is not fatal, it just means that certificates
+     * will be parsed on the next load.
+     */
+    protected void updateIndex() {
+	if (index==null) return;
+	ArrayList<File> paths = new ArrayList<File>(size());
+	for (CertificatePair cert: this) {
+	    index.put(cert);
+	    paths.add(cert.getPath());
+	}
+	index.retain(paths);
+	try {
+	    index.write();
+	} catch (IOException e) {
+	    logger.warning("Could not write certificate store index: " + e.getMessage());
+	}
+    }
+
+    /** Return the directory of this store, or {@code null} if not loaded. */
+    public File getPath() {
+	return path;
+    }
+
+    /** Return the lookup indexes of this store; must be called with the lock held.
+     * <p>
+     * They are built on first use. After that, removed entries are taken out
+     * right away, and entries that were added or changed are (re-)indexed
+     * here, so that a certificate that changes often is only indexed once
+     * for each lookup.
+     */
+    protected CertificateLookup getLookup() {
+	if (lookup == null) {
+	    lookupStale.clear();
+	    lookup = new CertificateLookup(this);
+	} else if (!lookupStale.isEmpty()) {
+	    for (CertificatePair cert: lookupStale)
+		lookup.update(cert);
+	    lookupStale.clear();
+	}
+	return lookup;
+    }
+
+    /** Discard entry positions when entries were added or removed. */
+    private void checkLookup() {
+	if (lookupModCount != modCount) {
+	    positions = null;
+	    lookupModCount = modCount;
+	}
+    }
+
+    /** Return the certificate in this store with the specified path, or {@code null}. */
+    public synchronized CertificatePair findByPath(File f) {
+	return getLookup().findByPath(f);
+    }
+
+    /** Return the certificates in this store with the specified serial number. */
+    public synchronized List<CertificatePair> findBySerial(String serial) {
+	return getLookup().findBySerial(serial);
+    }
+
+    /** Return the certificates and requests in this store with the specified
+     * subject hash, see {@link CryptoUtils#getSubjectHash}. */
+    public synchronized List<CertificatePair> findBySubjectHash(String hash) {
+	return getLookup().findBySubjectHash(hash);
+    }
+
+    /** Return the certificates and requests in this store with the specified
+     * public key modulus (see property {@code modulus} of {@link CertificatePair}). */
+    public synchronized List<CertificatePair> findByModulus(String modulus) {
+	return getLookup().findByModulus(modulus);
+    }
+
+    /** Return the certificates in this store issued by the specified
+     * distinguished name, in slash-notation. */
+    public synchronized List<CertificatePair> findByIssuer(String issuer) {
+	return getLookup().findByIssuer(issuer);
+    }
+
+    /** Return the certificates in this store issued by a certificate authority.
+     * 
+     * @param caCert certificate of the certificate authority
+     */
+    public List<CertificatePair> findIssuedBy(X509Certificate caCert) throws GeneralSecurityException, IOException {
+	String hash = CryptoUtils.getSubjectHash(caCert);
+	synchronized(this) {
+	    return getLookup().findByIssuerHash(hash);
+	}
+    }
+
+    /** Return the certificates in this store that expire before the specified
+     * date, soonest first. */
+    public synchronized List<CertificatePair> findExpiringBefore(Date date) {
+	return getLookup().findExpiringBefore(date.getTime());
+    }
+
+    /** Return the certificate signing requests in this store for which no
+     * certificate is present yet. */
+    public synchronized List<CertificatePair> findPendingRequests() {
+	return getLookup().findPendingRequests();
+    }
+
+    /** Check all pending certificate signing requests with their certificate
+     * authority, and download the certificates that were issued.
+     * <p>
+     * See {@link CertificateRequestPoller} for details and options.
+     *
+     * @return outcome for each pending request
+     */
+    public CertificateRequestPoller.Result pollPendingRequests() {
+	return new CertificateRequestPoller(this).poll();
+    }
+
+    /** {@inheritDoc}
+     * <p>
+     * Certificates from this store are found by identity without a search.
+     */
+    @Override
+    public int indexOf(Object o) {
+	if (o instanceof CertificatePair) {
+	    int index;
+	    synchronized(this) {
+		checkLookup();
+		if (positions == null)
+		    positions = new CertificateLookup(this, false);
+		index = positions.indexOf((CertificatePair)o);
+	    }
+	    if (index >= 0) return index;
+	}
+	return super.indexOf(o);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized CertificatePair set(int index, CertificatePair cert) {
+	// not a structural modification, so not caught by checkLookup()
+	lookupModCount = -1;
+	CertificatePair old = super.set(index, cert);
+	old.removeItemListener(this);
+	cert.addItemListener(this);
+	if (lookup != null) {
+	    lookupStale.remove(old);
+	    lookup.remove(old);
+	    lookupStale.add(cert);
+	}
+	return old;
     }
 
     /** refresh the certificate list from its source and each certificate as well */
@@ -156,19 +502,101 @@ public class CertificateStore extends ArrayListModel<CertificatePair> implements
 	    logger.warning("Refresh of empty certificate store");
 	    return;
 	}
-	List<File> files = Arrays.asList(path.listFiles());
+	HashSet<File> files = new HashSet<File>(listItems());
 	ArrayList<CertificatePair> removals = new ArrayList<CertificatePair>();
 	// refresh each existing item and remove old ones
-	for (int i = 0; i < size(); i++) {
-	    CertificatePair c = get(i);
+	for (CertificatePair c: this) {
 	    if (c.getPath() == path || files.contains(c.getPath()))
 		c.refresh();
 	    else
 		removals.add(c);
 	}
-	removeAll(removals);
-	// add new items
-	load(path);
+	// notify listeners of removals and additions at once
+	beginBatch();
+	try {
+	    removeAll(removals);
+	    // add new items
+	    load(path);
+	} finally {
+	    endBatch();
+	}
+    }
+
+    /** Refresh only those entries whose files were changed on disk.
+     * <p>
+     * Entries whose directory was removed are removed from the store, entries
+     * with a changed key, certificate or request file are reread (see
+     * {@link CertificatePair#reloadFiles}), and new directories are added.
+     * In contrast to {@link #refresh}, this does not contact the certificate
+     * authority and only parses certificates that were changed.
+     */
+    public synchronized void refreshChanged() {
+	if (path == null || !path.isDirectory()) return;
+	HashSet<File> files = new HashSet<File>(listItems());
+	ArrayList<CertificatePair> removals = new ArrayList<CertificatePair>();
+	// notify listeners of all changes at once
+	beginBatch();
+	try {
+	    for (CertificatePair c: this) {
+		File f = c.getPath();
+		if (!f.equals(path) && !files.contains(f)) {
+		    removals.add(c);
+		    continue;
+		}
+		if (c.isChangedOnDisk()) {
+		    logger.fine("Certificate changed on disk, reloading: "+f);
+		    c.reloadFiles();
+		}
+	    }
+	    if (removals.size() > 0)
+		removeAll(removals);
+	    // add new items
+	    load(path);
+	} finally {
+	    endBatch();
+	}
+    }
+
+    /** Watch the store directory for changes.
+     * <p>
+     * Every {@code interval} milliseconds {@link #refreshChanged} is called
+     * on a background thread, so that changes made by other programs are
+     * picked up. Note that listeners are then notified on that thread.
+     * 
+     * @param interval time between checks, in milliseconds
+     */
+    public synchronized void startWatching(long interval) {
+	stopWatching();
+	watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, "jGridstart certificate store watcher");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+	watcher.scheduleWithFixedDelay(new Runnable() {
+	    public void run() {
+		try {
+		    refreshChanged();
+		} catch (RuntimeException e) {
+		    // don't let a single failure stop watching
+		    logger.warning("Could not refresh certificate store: "+e);
+		}
+	    }
+	}, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop watching the store directory.
+     * @see #startWatching */
+    public synchronized void stopWatching() {
+	if (watcher == null) return;
+	watcher.shutdownNow();
+	watcher = null;
+    }
+
+    /** Return whether the store directory is being watched for changes. */
+    public synchronized boolean isWatching() {
+	return watcher != null;
     }
 
     /** Try to add a certificate path to this store but don't fail if an error occurs.
@@ -177,16 +605,79 @@ public class CertificateStore extends ArrayListModel<CertificatePair> implements
      * @return true if the certificate was succesfully added
      */
     protected boolean tryAdd(File f) {
+	CertificatePair cert = tryLoad(f);
+	if (cert==null) return false;
+	add(cert);
+	return true;
+    }
+    
+    /** Try to load a certificate path but don't fail if an error occurs.
+     * <p>
+     * This may be called from multiple threads at once.
+     * 
+     * @param f File to load
+     * @return newly loaded certificate, or {@code null} if it could not be loaded
+     */
+    protected CertificatePair tryLoad(File f) {
 	try {
-	    add(new CertificatePair(f));
+	    Properties indexed = null;
+	    if (index!=null) indexed = index.get(f);
+	    if (indexed!=null)
+		return new CertificatePair(f, indexed);
+	    // parse now when it's going to be indexed anyway
+	    return new CertificatePair(f, lazyLoad && index==null);
 	} catch (IOException e) {
 	    logger.warning("Failed to load certificate from " + f + ": " + e.getMessage());
-	    return false;
-	} catch (CertificateCheckException e) {
-	    logger.warning("Certificate invalid " + f + ": " + e.getMessage());
-	    return false;
 	}
-	return true;
+	return null;
+    }
+    
+    /** Try to load a number of certificate paths, skipping those that fail.
+     * <p>
+     * When more than one loader thread is allowed, the entries are loaded in
+     * parallel on a pool of at most {@link #getLoadThreads} threads. The
+     * returned list is in the same order as the supplied files.
+     * 
+     * @param files Files to load
+     * @return list of succesfully loaded certificates
+     */
+    protected List<CertificatePair> tryLoadAll(List<File> files) {
+	ArrayList<CertificatePair> certs = new ArrayList<CertificatePair>(files.size());
+	int nthreads = Math.min(loadThreads, files.size());
+	// just load them here if not worth the trouble
+	if (nthreads <= 1) {
+	    for (File f: files) {
+		CertificatePair cert = tryLoad(f);
+		if (cert!=null) certs.add(cert);
+	    }
+	    return certs;
+	}
+	// or else in parallel, retrieving results in order
+	logger.fine("Loading "+files.size()+" certificates using "+nthreads+" threads");
+	ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+	try {
+	    ArrayList<Future<CertificatePair>> results = new ArrayList<Future<CertificatePair>>(files.size());
+	    for (final File f: files) {
+		results.add(pool.submit(new Callable<CertificatePair>() {
+		    public CertificatePair call() {
+			return tryLoad(f);
+		    }
+		}));
+	    }
+	    for (int i=0; i<results.size(); i++) {
+		try {
+		    CertificatePair cert = results.get(i).get();
+		    if (cert!=null) certs.add(cert);
+		} catch (ExecutionException e) {
+		    logger.warning("Failed to load certificate from " + files.get(i) + ": " + e.getCause());
+		}
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	} finally {
+	    pool.shutdownNow();
+	}
+	return certs;
     }
     
     /** Create a new subdirectory for a {@linkplain CertificatePair} in this store.
@@ -194,25 +685,81 @@ public class CertificateStore extends ArrayListModel<CertificatePair> implements
      * It is formatted as {@code user-cert-YYYYddMM-xx} so each item is unique and
      * can be recognised by its creation date. When {@code when} is non-null, it will
      * be used as the date, otherwise the current date will be used. 
+     * <p>
+     * The sequence number {@code xx} has more digits when there are more than
+     * 100 entries on a day. It continues from the highest one present in this
+     * store, so existing directories don't need to be probed. Since creating a
+     * directory fails when it already exists, entries created at the same time
+     * by another program are skipped. When sharding is enabled (see
+     * {@link #setShards}), the directory is created in a shard subdirectory.
+     * Another program may use a different number of shards, so after creating
+     * the directory, the other places where it could have been created are
+     * checked as well.
      *
      * @param when Creation date or start of validity period of certificate; or {@literal null}.
      * @return Newly created directory name
      * @throws IOException
      */
     protected File newItem(Calendar when) throws IOException {
-	File dst = null;
-	for (int i = 0; i < 100; i++) {
-	    dst = new File(path, String.format("user-cert-%1$tY%1$tm%1$td-%2$02d", when, i));
-	    if (!dst.exists()) break;
+	String day = String.format("%1$s%2$tY%2$tm%2$td-", userCertPrefix, when);
+	while (true) {
+	    String name = String.format("%s%02d", day, nextSequence(day));
+	    File parent = getShardDir(name, shards);
+	    File dst = new File(parent, name);
+	    parent.mkdirs();
+	    // atomic, fails if it exists already
+	    if (dst.mkdir()) {
+		if (!existsElsewhere(dst))
+		    return dst;
+		// created by another program in another place; when both
+		// programs see each other's, they both continue with the next
+		dst.delete();
+		continue;
+	    }
+	    if (!dst.exists())
+		throw new IOException("Could not create new certificate directory: " +
+			dst + ".\n" +
+			"Please check permissions, disk space and quota.");
 	}
-	if (dst.exists())
-	    throw new IOException("Maximum number of certificates reached"); // very unlikely
-	dst.mkdirs();
-	if (!dst.exists())
-	    throw new IOException("Could not create new certificate directory: " +
-		    dst + ".\n" +
-		    "Please check permissions, disk space and quota.");
-	return dst;
+    }
+
+    /** Return the directory to create an entry in, for a number of shards.
+     * @see #setShards */
+    protected File getShardDir(String name, int n) {
+	if (n <= 0) return path;
+	return new File(path, String.format("%s%02x", shardPrefix, (name.hashCode() & 0x7fffffff) % n));
+    }
+
+    /** Return whether an entry with the same name exists in another place
+     * where it could be created, with or without any number of shards. */
+    private boolean existsElsewhere(File dst) {
+	HashSet<File> places = new HashSet<File>();
+	for (int n=0; n<=256; n++)
+	    places.add(getShardDir(dst.getName(), n));
+	places.remove(dst.getParentFile());
+	for (File parent: places) {
+	    if (new File(parent, dst.getName()).exists())
+		return true;
+	}
+	return false;
+    }
+
+    /** Return the next sequence number for a new entry with the specified name prefix. */
+    private synchronized int nextSequence(String prefix) {
+	Integer next = nextSequence.get(prefix);
+	if (next==null) {
+	    // continue after entries present
+	    next = 0;
+	    for (CertificatePair cert: this) {
+		File f = cert.getPath();
+		if (f==null || !f.getName().startsWith(prefix)) continue;
+		try {
+		    next = Math.max(next, Integer.parseInt(f.getName().substring(prefix.length()))+1);
+		} catch (NumberFormatException e) { }
+	    }
+	}
+	nextSequence.put(prefix, next+1);
+	return next;
     }
     
     protected File newItem() throws IOException {
@@ -256,20 +803,32 @@ public class CertificateStore extends ArrayListModel<CertificatePair> implements
     @Override
     protected void notifyAdded(int start, int end) {
 	super.notifyAdded(start, end);
-	for (int i=start; i<=end; i++)
+	for (int i=start; i<=end; i++) {
 	    get(i).addItemListener(this);
+	    if (lookup != null) lookupStale.add(get(i));
+	}
     }
     /** Hook parent to remove an {@linkplain ItemListener} when an item is removed
      * <p>
      * {@inheritDoc} */
     @Override
     protected void notifyRemoved(int start, int end) {
-	for (int i=start; i<=end; i++)
-	    get(i).removeItemListener(this);
+	for (int i=start; i<=end; i++) {
+	    CertificatePair cert = get(i);
+	    cert.removeItemListener(this);
+	    if (lookup != null) {
+		lookupStale.remove(cert);
+		lookup.remove(cert);
+	    }
+	}
 	super.notifyRemoved(start, end);
     }
     /** {@linkplain ItemListener} handler to catch changes in {@linkplain CertificatePair} */
     public void itemStateChanged(ItemEvent e) {
+	// properties used for lookups may have changed
+	synchronized(this) {
+	    if (lookup != null) lookupStale.add((CertificatePair)e.getItem());
+	}
 	// and notify selection change listeners
 	notifyChanged(indexOf(e.getItem()));
     }
@@ -286,7 +845,7 @@ public class CertificateStore extends ArrayListModel<CertificatePair> implements
      * 
      * @throws IOException 
      */
-    public CertificatePair delete(int index) throws IOException {
+    public synchronized CertificatePair delete(int index) throws IOException {
 	logger.info("Deleting certificate #"+index+": "+get(index));
 	CertificatePair cert = super.remove(index);
 	deletePath(cert.getPath());
@@ -311,7 +870,7 @@ public class CertificateStore extends ArrayListModel<CertificatePair> implements
 		    certPath + ".\n" +
 		    "Please check permissions, disk space and quota."); 
     }
-    public CertificatePair delete(CertificatePair cert) throws IOException {
+    public synchronized CertificatePair delete(CertificatePair cert) throws IOException {
 	return delete(indexOf(cert));
     }
 
@@ -379,9 +938,19 @@ public class CertificateStore extends ArrayListModel<CertificatePair> implements
      * @see CertificatePair#generateRequest
      */
     public CertificatePair generateRequest(Properties p, char[] pw) throws IOException, GeneralSecurityException, PasswordCancelledException, CAException {
+	return generateRequest(p, pw, null);
+    }
+    /** Create a new certificate request for an existing key pair with preset password
+     *
+     * @param p Properties to use for generation
+     * @param pw password to use for new private key
+     * @param keyPair key pair to use, or {@code null} to generate one
+     * @see CertificatePair#generateRequest(File, Properties, char[], KeyPair)
+     */
+    public CertificatePair generateRequest(Properties p, char[] pw, KeyPair keyPair) throws IOException, GeneralSecurityException, PasswordCancelledException, CAException {
 	File dst = newItem();
 	try {
-	    CertificatePair cert = CertificatePair.generateRequest(dst, p, pw);
+	    CertificatePair cert = CertificatePair.generateRequest(dst, p, pw, keyPair);
 	    add(cert);
 	    return cert;
 	} catch(IOException e) {
@@ -0,0 +1,228 @@
+package nl.nikhef.jgridstart;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import nl.nikhef.jgridstart.osutils.FileUtils;
+
+/** Persistent index of derived certificate information in a {@link CertificateStore}.
+ * <p>
+ * Showing the list of certificates requires information that is only present
+ * in the certificate, certificate signing request and private key files, like
+ * the subject, serial number and validity. Parsing all of these on startup
+ * is expensive for larger stores, so this index keeps the derived properties
+ * (see {@link CertificatePair#getIndexProperties}) in a single binary file in
+ * the store's directory.
+ * <p>
+ * Each entry records the size and modification time of the certificate files
+ * it was derived from. An entry is only used when these are unchanged, so
+ * changes made by other tools are picked up on the next load.
+ * <p>
+ * All methods are synchronized, since entries may be loaded from multiple
+ * threads at once.
+ *
+ * @author wvengen
+ */
+public class CertificateStoreIndex {
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart");
+
+    /** Name of the index file in the store's directory */
+    public static final String indexFilename = ".jgridstart-index";
+    /** Magic number at start of index file */
+    protected static final int MAGIC = 0x4a475349; // "JGSI"
+    /** File format version; 3 names entries by their path relative to the store */
+    protected static final int VERSION = 3;
+    /** Files of which size and modification time are recorded */
+    protected static final String[] stampedFiles = {
+	"userkey.pem", "usercert.pem", "userrequest.pem", "usercert_request.pem"
+    };
+
+    /** Directory of the store */
+    protected File root = null;
+    /** Entries by name, see {@link #getName} */
+    protected HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    /** Whether entries were changed since last read or write */
+    protected boolean dirty = false;
+
+    /** Create a new empty index for a store directory. */
+    public CertificateStoreIndex(File root) {
+	this.root = root;
+    }
+
+    /** Return the store directory this index belongs to. */
+    public File getRoot() {
+	return root;
+    }
+
+    /** Return the index file. */
+    public File getFile() {
+	return new File(root, indexFilename);
+    }
+
+    /** Read the index from disk.
+     * <p>
+     * A missing or unreadable index is not an error, it just results in an
+     * empty index, so that all entries are parsed.
+     */
+    public synchronized void read() {
+	entries.clear();
+	dirty = false;
+	File f = getFile();
+	if (!f.exists()) return;
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	    try {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION)
+		    throw new IOException("unrecognised format");
+		int count = in.readInt();
+		for (int i=0; i<count; i++) {
+		    String name = in.readUTF();
+		    long[] stamps = new long[in.readInt()];
+		    for (int j=0; j<stamps.length; j++)
+			stamps[j] = in.readLong();
+		    Properties p = new Properties();
+		    int nprops = in.readInt();
+		    for (int j=0; j<nprops; j++)
+			p.setProperty(in.readUTF(), in.readUTF());
+		    entries.put(name, new Entry(stamps, p));
+		}
+	    } finally {
+		in.close();
+	    }
+	    logger.fine("Read certificate store index with "+entries.size()+" entries: "+f);
+	} catch (IOException e) {
+	    logger.info("Ignoring certificate store index "+f+": "+e.getMessage());
+	    entries.clear();
+	}
+    }
+
+    /** Write the index to disk if it was changed.
+     * <p>
+     * The index is written atomically, so that readers never see a partially
+     * written index.
+     */
+    public synchronized void write() throws IOException {
+	if (!dirty) return;
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bytes);
+	out.writeInt(MAGIC);
+	out.writeInt(VERSION);
+	out.writeInt(entries.size());
+	for (String name: entries.keySet()) {
+	    Entry e = entries.get(name);
+	    out.writeUTF(name);
+	    out.writeInt(e.stamps.length);
+	    for (int j=0; j<e.stamps.length; j++)
+		out.writeLong(e.stamps[j]);
+	    out.writeInt(e.props.size());
+	    for (Enumeration<?> en = e.props.propertyNames(); en.hasMoreElements(); ) {
+		String key = (String)en.nextElement();
+		out.writeUTF(key);
+		out.writeUTF(e.props.getProperty(key));
+	    }
+	}
+	out.close();
+	FileUtils.writeFileAtomic(getFile(), bytes.toByteArray(), true);
+	dirty = false;
+	logger.finer("Wrote certificate store index with "+entries.size()+" entries: "+getFile());
+    }
+
+    /** Return the indexed properties of a certificate directory.
+     *
+     * @param path directory of the certificate
+     * @return properties derived from its files, or {@code null} when not
+     *         present in the index or when any of its files has changed
+     */
+    public synchronized Properties get(File path) {
+	Entry e = entries.get(getName(path));
+	if (e==null) return null;
+	if (!Arrays.equals(e.stamps, getStamps(path))) return null;
+	return (Properties)e.props.clone();
+    }
+
+    /** Add or update the index entry of a {@linkplain CertificatePair}.
+     * <p>
+     * Nothing is done when the existing entry is still up-to-date.
+     */
+    public synchronized void put(CertificatePair cert) {
+	File path = cert.getPath();
+	if (path==null) return;
+	long[] stamps = getStamps(path);
+	Entry e = entries.get(getName(path));
+	if (e!=null && Arrays.equals(e.stamps, stamps)) return;
+	entries.put(getName(path), new Entry(stamps, cert.getIndexProperties()));
+	dirty = true;
+    }
+
+    /** Remove all entries except those of the supplied directories. */
+    public synchronized void retain(Collection<File> paths) {
+	HashSet<String> names = new HashSet<String>();
+	for (File path: paths)
+	    names.add(getName(path));
+	for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+	    if (!names.contains(it.next())) {
+		it.remove();
+		dirty = true;
+	    }
+	}
+    }
+
+    /** Return the name of a certificate directory in the index.
+     * <p>
+     * Entries are named by their path relative to the store directory, with
+     * {@code /} as separator, e.g. {@code shard-0a/user-cert-20090101-00}.
+     * The store directory itself is the empty string. A directory outside
+     * the store is named by its absolute path.
+     */
+    protected String getName(File path) {
+	StringBuffer name = new StringBuffer();
+	for (File f = path; f != null; f = f.getParentFile()) {
+	    if (f.equals(root)) return name.toString();
+	    if (name.length() > 0) name.insert(0, '/');
+	    name.insert(0, f.getName());
+	}
+	return path.getAbsolutePath();
+    }
+
+    /** Return size and modification time of each certificate file in a directory. */
+    protected static long[] getStamps(File path) {
+	long[] stamps = new long[stampedFiles.length*2];
+	for (int i=0; i<stampedFiles.length; i++) {
+	    File f = new File(path, stampedFiles[i]);
+	    if (f.exists()) {
+		stamps[2*i] = f.length();
+		stamps[2*i+1] = f.lastModified();
+	    } else {
+		stamps[2*i] = -1;
+	    }
+	}
+	return stamps;
+    }
+
+    /** Index entry */
+    protected static class Entry {
+	/** file sizes and modification times, see {@link CertificateStoreIndex#getStamps} */
+	public long[] stamps;
+	/** derived properties */
+	public Properties props;
+
+	public Entry(long[] stamps, Properties props) {
+	    this.stamps = stamps;
+	    this.props = props;
+	}
+    }
+}
@@ -3,6 +3,8 @@ package nl.nikhef.jgridstart;
 import java.awt.event.ItemEvent;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+
 import nl.nikhef.jgridstart.osutils.FileUtils;
 
 /** A {@link CertificateStore} which has the notion of a default certificate.
@@ -101,6 +103,7 @@ public class CertificateStoreWithDefault extends CertificateStore {
 	    try {
 		if (findDefaultCertificate()==null) tryAdd(path);
 	    } catch (IOException e) { /* ok */ }
+	    updateIndex();
 	}
     }
     
@@ -218,6 +221,7 @@ public class CertificateStoreWithDefault extends CertificateStore {
 	    //     and only used by this program; not really pretty :/
 	    //     It harms the compareDefaultCertificate() test!
 	    new File(path, "userinfo.properties").delete();
+	    new File(path, "userinfo.properties.journal").delete();
 	} catch (IOException e) {
 	    // TODO rollback move of old default to new subdir
 	    throw e;
@@ -241,8 +245,13 @@ public class CertificateStoreWithDefault extends CertificateStore {
      *         or {@code null} if not found
      */
     protected CertificatePair findDefaultCertificate() throws IOException {
+	// only certificates with the same public key can match, if known
+	List<CertificatePair> candidates = this;
+	String modulus = new CertificatePair(path, true).getProperty("modulus");
+	if (modulus!=null)
+	    candidates = findByModulus(modulus);
 	// now compare with other certificates in store
-	for (CertificatePair cert: this) {
+	for (CertificatePair cert: candidates) {
 	    if (compareDefaultCertificate(cert))
 		return cert;
 	}
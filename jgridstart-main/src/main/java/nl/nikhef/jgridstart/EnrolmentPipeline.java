@@ -0,0 +1,391 @@
+package nl.nikhef.jgridstart;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import nl.nikhef.jgridstart.passwordcache.PasswordCache;
+import nl.nikhef.jgridstart.util.KeyPairPool;
+
+/** Enrols many certificates at once in a number of stages.
+ * <p>
+ * Each enrolment passes the stages key generation, request creation (CSR
+ * signing and encoding, see {@link CertificateStore#generateRequest}),
+ * upload, poll and download. Every stage has its own threads (see
+ * {@link #setThreads}) and is fed by a bounded queue (see {@link #setQueueSize}),
+ * so that a slow stage makes the ones before it wait instead of piling up
+ * work. Requests that are not yet processed are polled again after
+ * {@link #getPollInterval} milliseconds, without occupying a thread.
+ * <p>
+ * Each enrolment is identified by a unique name. Once its request is created,
+ * the name and the last stage completed are stored in the certificate's
+ * properties as {@code pipeline.id} and {@code pipeline.stage}, and errors
+ * as {@code pipeline.error}. When the same enrolments are run again in the
+ * same store, for example after the program was interrupted, each one
+ * continues after the last stage it completed. Using {@link #setLastStage},
+ * a run can stop after uploading the requests, and a later one complete them.
+ *
+ * @author wvengen
+ */
+public class EnrolmentPipeline {
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart");
+
+    /** Stages, in order */
+    public static final String[] STAGES = { "keygen", "request", "upload", "poll", "download" };
+    public static final int KEYGEN = 0;
+    public static final int REQUEST = 1;
+    public static final int UPLOAD = 2;
+    public static final int POLL = 3;
+    public static final int DOWNLOAD = 4;
+
+    /** Store to create requests in */
+    protected CertificateStore store;
+    /** Number of threads for each stage */
+    protected int[] threads = new int[] {
+	    Math.max(1, Runtime.getRuntime().availableProcessors()), 1, 2, 2, 2 };
+    /** Capacity of the queue before each stage */
+    protected int queueSize = 16;
+    /** Time between polls in milliseconds */
+    protected long pollInterval = 5000;
+    /** Maximum number of polls before an enrolment fails */
+    protected int maxPolls = 100;
+    /** Last stage to perform */
+    protected int lastStage = DOWNLOAD;
+
+    /** Enrolments to run, by name */
+    protected Map<String, Item> items = new LinkedHashMap<String, Item>();
+
+    /** Create a new pipeline that creates its requests in a store. */
+    public EnrolmentPipeline(CertificateStore store) {
+	this.store = store;
+    }
+
+    /** Set the number of threads of a stage. */
+    public void setThreads(int stage, int n) {
+	threads[stage] = Math.max(1, n);
+    }
+    public int getThreads(int stage) {
+	return threads[stage];
+    }
+    /** Set the number of enrolments that can wait before each stage. */
+    public void setQueueSize(int n) {
+	queueSize = Math.max(1, n);
+    }
+    public int getQueueSize() {
+	return queueSize;
+    }
+    /** Set the time between polls in milliseconds and the maximum number of polls. */
+    public void setPolling(long interval, int max) {
+	pollInterval = Math.max(0, interval);
+	maxPolls = Math.max(1, max);
+    }
+    public long getPollInterval() {
+	return pollInterval;
+    }
+    /** Set the last stage to perform, e.g. {@link #UPLOAD} to not wait for the
+     * requests to be processed. A later run can continue with the next stages. */
+    public void setLastStage(int stage) {
+	if (stage < REQUEST || stage > DOWNLOAD)
+	    throw new IllegalArgumentException("Invalid last stage: "+stage);
+	lastStage = stage;
+    }
+    public int getLastStage() {
+	return lastStage;
+    }
+
+    /** Add an enrolment.
+     * <p>
+     * Properties are copied to the new certificate, like those of the
+     * request wizard; {@code subject} is required, and the CA may need
+     * others such as {@code email} and {@code fullname}.
+     *
+     * @param id unique name of the enrolment
+     * @param p properties of the new certificate
+     * @param pw password for the private key
+     * @throws IllegalArgumentException when the name was used already
+     */
+    public synchronized void add(String id, Properties p, char[] pw) {
+	if (items.containsKey(id))
+	    throw new IllegalArgumentException("Duplicate enrolment: "+id);
+	items.put(id, new Item(id, p, pw));
+    }
+
+    /** Run all enrolments that were added.
+     * <p>
+     * This blocks until each enrolment is done or failed.
+     */
+    public synchronized Result run() throws InterruptedException {
+	final Result result = new Result();
+	if (items.size()==0) return result;
+	final CountDownLatch remaining = new CountDownLatch(items.size());
+	final Stage[] stages = new Stage[STAGES.length];
+	for (int i=0; i<STAGES.length; i++)
+	    stages[i] = new Stage(i, stages, result, remaining);
+	long start = System.currentTimeMillis();
+	try {
+	    for (Stage s: stages)
+		s.start();
+	    // continue where each enrolment stopped last time
+	    Map<String, CertificatePair> existing = findExisting();
+	    for (Item item: items.values()) {
+		item.cert = existing.get(item.id);
+		item.polls = 0;
+		int stage = getFirstStage(item);
+		if (stage > lastStage) {
+		    result.done(item);
+		    remaining.countDown();
+		} else {
+		    if (stage > REQUEST && item.pw!=null)
+			PasswordCache.getInstance().set(item.cert.getKeyFile().getCanonicalPath(), item.pw);
+		    stages[stage].queue.put(item);
+		}
+	    }
+	    remaining.await();
+	} catch (IOException e) {
+	    // only from getCanonicalPath(), not expected
+	    throw new IllegalStateException(e);
+	} finally {
+	    for (Stage s: stages)
+		s.stop();
+	}
+	StringBuffer counts = new StringBuffer();
+	for (Stage s: stages)
+	    counts.append(" "+STAGES[s.stage]+"="+s.processed.get());
+	logger.info("Enrolled "+result.getDone().size()+" certificates, "+result.getFailed().size()+
+		" failed, in "+(System.currentTimeMillis()-start)+"ms; processed:"+counts);
+	return result;
+    }
+
+    /** Return certificates in the store that were created by a pipeline, by name. */
+    protected Map<String, CertificatePair> findExisting() {
+	Map<String, CertificatePair> existing = new HashMap<String, CertificatePair>();
+	for (CertificatePair cert: store) {
+	    String id = cert.getProperty("pipeline.id");
+	    if (id!=null && items.containsKey(id))
+		existing.put(id, cert);
+	}
+	return existing;
+    }
+
+    /** Return the stage an enrolment needs to continue with, or
+     * {@code STAGES.length} when it is complete. */
+    protected int getFirstStage(Item item) {
+	if (item.cert==null) return KEYGEN;
+	try {
+	    if (item.cert.getCertificate()!=null) return STAGES.length;
+	} catch (IOException e) { }
+	String last = item.cert.getProperty("pipeline.stage");
+	for (int i=REQUEST; i<STAGES.length; i++) {
+	    if (STAGES[i].equals(last)) return i+1;
+	}
+	return UPLOAD;
+    }
+
+    /** Perform one stage of an enrolment.
+     *
+     * @return {@code false} if the request was not processed yet, {@code true} otherwise
+     */
+    protected boolean process(int stage, Item item) throws Exception {
+	switch (stage) {
+	case KEYGEN:
+	    item.keyPair = KeyPairPool.getInstance().get(
+		    CertificatePair.getKeyAlgorithm(item.p), CertificatePair.getKeySize(item.p));
+	    return true;
+	case REQUEST:
+	    CertificatePair cert = store.generateRequest(item.p, item.pw, item.keyPair);
+	    item.keyPair = null;
+	    if (item.pw!=null)
+		PasswordCache.getInstance().set(cert.getKeyFile().getCanonicalPath(), item.pw);
+	    cert.beginUpdate();
+	    try {
+		// properties derived from the request itself are kept
+		for (String key: item.p.stringPropertyNames()) {
+		    if (cert.getProperty(key)==null)
+			cert.setProperty(key, item.p.getProperty(key));
+		}
+		cert.setProperty("pipeline.id", item.id);
+	    } finally {
+		cert.endUpdate();
+	    }
+	    item.cert = cert;
+	    return true;
+	case UPLOAD:
+	    item.cert.uploadRequest();
+	    return true;
+	case POLL:
+	    return item.cert.isCertificationRequestProcessed();
+	case DOWNLOAD:
+	    item.cert.downloadCertificate();
+	    if (item.cert.getCertificate()==null)
+		throw new IOException("No certificate could be downloaded");
+	    return true;
+	}
+	throw new IllegalArgumentException("Unknown stage: "+stage);
+    }
+
+    /** Store the progress of an enrolment with its certificate. */
+    protected void persist(Item item, int stage, Throwable error) {
+	if (item.cert==null) return;
+	item.cert.beginUpdate();
+	try {
+	    if (error==null) {
+		item.cert.setProperty("pipeline.stage", STAGES[stage]);
+		item.cert.remove("pipeline.error");
+	    } else {
+		item.cert.setProperty("pipeline.error", STAGES[stage]+": "+error.getLocalizedMessage());
+	    }
+	} finally {
+	    item.cert.endUpdate();
+	}
+	try {
+	    item.cert.store();
+	} catch (IOException e) {
+	    logger.warning("Could not store progress of "+item.id+": "+e.getLocalizedMessage());
+	}
+    }
+
+    /** A stage with its queue and threads */
+    protected class Stage implements Runnable {
+	final int stage;
+	final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(queueSize);
+	/** Enrolments waiting for their next poll, only for {@link #POLL} */
+	final DelayQueue<Item> waiting = new DelayQueue<Item>();
+	final Stage[] stages;
+	final Result result;
+	final CountDownLatch remaining;
+	final AtomicInteger processed = new AtomicInteger(0);
+	ExecutorService executor = null;
+
+	Stage(int stage, Stage[] stages, Result result, CountDownLatch remaining) {
+	    this.stage = stage;
+	    this.stages = stages;
+	    this.result = result;
+	    this.remaining = remaining;
+	}
+
+	void start() {
+	    executor = Executors.newFixedThreadPool(threads[stage]);
+	    for (int i=0; i<threads[stage]; i++)
+		executor.execute(this);
+	}
+
+	void stop() {
+	    if (executor!=null) executor.shutdownNow();
+	}
+
+	/** Return the next enrolment to process, or {@code null} after a while. */
+	Item next() throws InterruptedException {
+	    Item item = waiting.poll();
+	    if (item!=null) return item;
+	    return queue.poll(stage==POLL ? 50 : 1000, TimeUnit.MILLISECONDS);
+	}
+
+	public void run() {
+	    try {
+		while (!Thread.currentThread().isInterrupted()) {
+		    Item item = next();
+		    if (item==null) continue;
+		    try {
+			boolean ok = process(stage, item);
+			processed.incrementAndGet();
+			if (!ok) {
+			    if (++item.polls >= maxPolls)
+				throw new IOException("Request not processed after "+item.polls+" polls");
+			    item.due = System.currentTimeMillis() + pollInterval;
+			    waiting.add(item);
+			    continue;
+			}
+			persist(item, stage, null);
+			if (stage < lastStage) {
+			    // blocks when the next stage is busy
+			    stages[stage+1].queue.put(item);
+			} else {
+			    result.done(item);
+			    remaining.countDown();
+			}
+		    } catch (InterruptedException e) {
+			throw e;
+		    } catch (Throwable e) {
+			// also errors, or run() would wait for this enrolment forever
+			logger.warning("Enrolment "+item.id+" failed at "+STAGES[stage]+": "+e);
+			try {
+			    persist(item, stage, e);
+			} finally {
+			    result.failed(item, e);
+			    remaining.countDown();
+			}
+		    }
+		}
+	    } catch (InterruptedException e) {
+		// stopped
+	    }
+	}
+    }
+
+    /** An enrolment */
+    protected static class Item implements Delayed {
+	final String id;
+	final Properties p;
+	final char[] pw;
+	volatile KeyPair keyPair = null;
+	volatile CertificatePair cert = null;
+	/** Number of polls done */
+	int polls = 0;
+	/** Time of the next poll */
+	long due = 0;
+
+	Item(String id, Properties p, char[] pw) {
+	    this.id = id;
+	    this.p = p;
+	    this.pw = pw;
+	}
+
+	public long getDelay(TimeUnit unit) {
+	    return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	public int compareTo(Delayed o) {
+	    long d = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+	    return d < 0 ? -1 : (d > 0 ? 1 : 0);
+	}
+    }
+
+    /** Outcome of {@link EnrolmentPipeline#run} */
+    public static class Result {
+	/** Certificates enrolled, by name */
+	protected Map<String, CertificatePair> done = new LinkedHashMap<String, CertificatePair>();
+	/** Enrolments that failed, by name */
+	protected Map<String, Throwable> failed = new LinkedHashMap<String, Throwable>();
+
+	synchronized void done(Item item) {
+	    done.put(item.id, item.cert);
+	}
+	synchronized void failed(Item item, Throwable e) {
+	    failed.put(item.id, e);
+	}
+
+	/** Return the certificates that were enrolled, by name. */
+	public synchronized Map<String, CertificatePair> getDone() {
+	    return Collections.unmodifiableMap(new LinkedHashMap<String, CertificatePair>(done));
+	}
+	/** Return the enrolments that failed with their error, by name. */
+	public synchronized Map<String, Throwable> getFailed() {
+	    return Collections.unmodifiableMap(new LinkedHashMap<String, Throwable>(failed));
+	}
+    }
+}
@@ -16,6 +16,7 @@ import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 
 import nl.nikhef.jgridstart.gui.util.ErrorMessage;
+import nl.nikhef.jgridstart.util.CompactProperties;
 
 /** Grid organisations to which a user can be associated.
  * <p>
@@ -45,7 +46,7 @@ import nl.nikhef.jgridstart.gui.util.ErrorMessage;
  * 
  * @author wvengen
  */
-public class Organisation extends Properties {
+public class Organisation extends CompactProperties {
     
     static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart");
 
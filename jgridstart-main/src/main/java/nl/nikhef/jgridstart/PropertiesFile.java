@@ -0,0 +1,242 @@
+package nl.nikhef.jgridstart;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import nl.nikhef.jgridstart.osutils.FileUtils;
+
+/** Atomic, change-aware persistence of a {@link Properties} file.
+ * <p>
+ * The properties file is written to a temporary file first, which is synced
+ * to disk and then moved into place, so that a crash halfway never leaves a
+ * corrupt file behind. When the contents are the same as last read or written,
+ * nothing is written at all.
+ * <p>
+ * Optionally, changes can be appended to a journal next to the properties file
+ * instead of rewriting it each time. This makes frequent small changes cheap.
+ * The journal is merged into the properties file in the background when it
+ * grows beyond {@link #compactThreshold} records. The journal is enabled by
+ * the system property {@code jgridstart.properties.journal}.
+ * <p>
+ * Journal records are lines of the form {@code +key value;} to set a property
+ * and {@code -key;} to remove one; keys and values are url-encoded. An
+ * incomplete last record, e.g. after a crash, is recognised by its missing
+ * semicolon and ignored. The journal is then merged into the properties file
+ * right away, so that new records are never appended to an incomplete one.
+ *
+ * @author wvengen
+ */
+public class PropertiesFile {
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart");
+
+    /** Number of journal records after which it is merged into the properties file */
+    public static int compactThreshold = 64;
+    /** Background thread for merging journals */
+    protected static ExecutorService compactor = null;
+
+    /** Properties file */
+    protected File file;
+    /** Journal file */
+    protected File journal;
+    /** Whether to write changes to the journal */
+    protected boolean useJournal;
+    /** Properties as present on disk */
+    protected Properties persisted = new Properties();
+    /** Number of records in the journal */
+    protected int journalRecords = 0;
+
+    /** Create a new properties file, using a journal when configured so. */
+    public PropertiesFile(File file) {
+	this(file, Boolean.valueOf(System.getProperty("jgridstart.properties.journal")));
+    }
+
+    /** Create a new properties file.
+     *
+     * @param file properties file
+     * @param useJournal whether to write changes to a journal
+     */
+    public PropertiesFile(File file, boolean useJournal) {
+	this.file = file;
+	this.journal = new File(file.getPath() + ".journal");
+	this.useJournal = useJournal;
+    }
+
+    /** Return the properties file. */
+    public File getFile() {
+	return file;
+    }
+
+    /** Read the properties, including any changes from the journal.
+     *
+     * @return properties read; empty when no file is present
+     */
+    public synchronized Properties read() throws IOException {
+	persisted = new Properties();
+	journalRecords = 0;
+	if (file.exists()) {
+	    InputStream in = new FileInputStream(file);
+	    try {
+		persisted.load(in);
+	    } finally {
+		in.close();
+	    }
+	}
+	if (journal.exists() && !replayJournal()) {
+	    // don't append to an incomplete record
+	    logger.info("Merging incomplete properties journal "+journal);
+	    writeFull(persisted);
+	}
+	return (Properties)persisted.clone();
+    }
+
+    /** Write the properties, if they were changed.
+     *
+     * @param p properties to write; when empty, the file is removed
+     * @return whether anything was written
+     */
+    public synchronized boolean write(Properties p) throws IOException {
+	if (p.equals(persisted) && (p.isEmpty() || file.exists())) return false;
+	if (useJournal && !p.isEmpty() && file.exists()) {
+	    appendJournal(p);
+	    if (journalRecords > compactThreshold)
+		scheduleCompact();
+	} else {
+	    writeFull(p);
+	}
+	persisted = (Properties)p.clone();
+	return true;
+    }
+
+    /** Merge the journal into the properties file. */
+    public synchronized void compact() throws IOException {
+	if (!journal.exists()) return;
+	logger.finer("Compacting properties journal: "+journal);
+	writeFull(persisted);
+    }
+
+    /** Write the complete properties file, removing the journal. */
+    protected void writeFull(Properties p) throws IOException {
+	if (p.isEmpty()) {
+	    file.delete();
+	} else {
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    p.store(out, "jGridstart certificate properties");
+	    FileUtils.writeFileAtomic(file, out.toByteArray(), true);
+	}
+	// only remove journal when its changes are in the properties file
+	journal.delete();
+	journalRecords = 0;
+    }
+
+    /** Append the differences between the persisted properties and {@code p} to the journal. */
+    protected void appendJournal(Properties p) throws IOException {
+	StringBuffer buf = new StringBuffer();
+	int n = 0;
+	for (Enumeration<?> en = p.propertyNames(); en.hasMoreElements(); ) {
+	    String key = (String)en.nextElement();
+	    String value = p.getProperty(key);
+	    if (value.equals(persisted.getProperty(key))) continue;
+	    buf.append('+').append(encode(key)).append(' ').append(encode(value)).append(";\n");
+	    n++;
+	}
+	for (Enumeration<?> en = persisted.propertyNames(); en.hasMoreElements(); ) {
+	    String key = (String)en.nextElement();
+	    if (p.getProperty(key)!=null) continue;
+	    buf.append('-').append(encode(key)).append(";\n");
+	    n++;
+	}
+	boolean isNew = !journal.exists();
+	FileOutputStream out = new FileOutputStream(journal, true);
+	try {
+	    if (isNew) FileUtils.chmod(journal, true, true, false, true);
+	    out.write(buf.toString().getBytes("US-ASCII"));
+	    out.flush();
+	    out.getFD().sync();
+	} finally {
+	    out.close();
+	}
+	journalRecords += n;
+    }
+
+    /** Apply the changes in the journal to the persisted properties.
+     * <p>
+     * Since keys and values are url-encoded, a valid record contains at
+     * most one space; a line with more than that is an incomplete record
+     * with another one appended to it, and is ignored as well.
+     *
+     * @return {@code false} if an incomplete record was found
+     */
+    protected boolean replayJournal() throws IOException {
+	boolean complete = true;
+	BufferedReader in = new BufferedReader(new FileReader(journal));
+	try {
+	    String line;
+	    while ( (line = in.readLine()) != null ) {
+		int sep = line.indexOf(' ');
+		if (!line.endsWith(";") || (sep >= 0 && line.indexOf(' ', sep+1) >= 0)) {
+		    // incomplete record
+		    logger.info("Ignoring incomplete record in properties journal "+journal);
+		    complete = false;
+		    continue;
+		}
+		line = line.substring(0, line.length()-1);
+		if (line.startsWith("+") && sep > 0)
+		    persisted.setProperty(decode(line.substring(1, sep)), decode(line.substring(sep+1)));
+		else if (line.startsWith("-") && sep < 0)
+		    persisted.remove(decode(line.substring(1)));
+		else
+		    continue;
+		journalRecords++;
+	    }
+	} finally {
+	    in.close();
+	}
+	return complete;
+    }
+
+    /** Merge the journal into the properties file in the background. */
+    protected void scheduleCompact() {
+	synchronized(PropertiesFile.class) {
+	    if (compactor == null) {
+		compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "jGridstart properties journal compactor");
+			t.setDaemon(true);
+			return t;
+		    }
+		});
+	    }
+	}
+	compactor.submit(new Runnable() {
+	    public void run() {
+		try {
+		    compact();
+		} catch (IOException e) {
+		    logger.warning("Could not compact properties journal "+journal+": "+e.getMessage());
+		}
+	    }
+	});
+    }
+
+    protected static String encode(String s) throws IOException {
+	return URLEncoder.encode(s, "UTF-8");
+    }
+    protected static String decode(String s) throws IOException {
+	return URLDecoder.decode(s, "UTF-8");
+    }
+}
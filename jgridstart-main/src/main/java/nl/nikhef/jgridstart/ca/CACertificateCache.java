@@ -0,0 +1,253 @@
+package nl.nikhef.jgridstart.ca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import nl.nikhef.jgridstart.osutils.ConnectionUtils;
+import nl.nikhef.jgridstart.osutils.FileUtils;
+import nl.nikhef.jgridstart.util.CryptoUtils;
+import nl.nikhef.jgridstart.util.PEMReader;
+
+import org.bouncycastle.jce.X509Principal;
+
+/** Cache of a CA certificate that is downloaded from a URL.
+ * <p>
+ * The certificate is kept in memory, and on disk in the directory returned by
+ * {@link #getDefaultDirectory}, so that it needn't be downloaded each time the
+ * program is started. The files are named after the subject hash of the CA's
+ * distinguished name: {@code <hash>.pem} contains the certificate as it was
+ * downloaded, {@code <hash>.properties} where it came from and when.
+ * <p>
+ * After {@link #getTTL} milliseconds, or when the certificate expires within
+ * that time, it is checked whether it was changed on the server using
+ * {@code If-Modified-Since} and {@code If-None-Match}, so that it is only
+ * downloaded again when it was. If the server cannot be reached, the cached
+ * certificate is used.
+ *
+ * @author wvengen
+ */
+public class CACertificateCache {
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart.ca");
+
+    /** Directory to store certificates in, or {@code null} to keep them in memory only */
+    private static File defaultDirectory = null;
+
+    /** URL to download the certificate from */
+    protected URL url;
+    /** Distinguished name of the CA */
+    protected String dn;
+    /** Directory to store the certificate in, or {@code null} */
+    protected File directory;
+    /** Time in milliseconds after which to check for a new certificate */
+    protected long ttl = getDefaultTTL();
+
+    /** Cached certificate, or {@code null} */
+    protected X509Certificate cert = null;
+    /** Time at which the certificate was last checked */
+    protected long checked = 0;
+    /** Last-Modified header of the certificate, or 0 */
+    protected long lastModified = 0;
+    /** ETag header of the certificate, or {@code null} */
+    protected String etag = null;
+
+    /** Create a new cache for the CA certificate at a URL.
+     *
+     * @param url location to download the certificate from
+     * @param dn distinguished name of the CA, in comma- or slash-notation
+     */
+    public CACertificateCache(URL url, String dn) {
+	this.url = url;
+	this.dn = dn;
+	this.directory = getDefaultDirectory();
+    }
+
+    /** Set the directory that new caches store certificates in.
+     * <p>
+     * The programs set this to the {@code cacerts} subdirectory of the
+     * certificate store, unless the system property
+     * {@code jgridstart.ca.cache} is set. When {@code null}, certificates
+     * are kept in memory only.
+     */
+    public static synchronized void setDefaultDirectory(File dir) {
+	defaultDirectory = dir;
+    }
+
+    /** Return the directory that new caches store certificates in, or {@code null}.
+     * @see #setDefaultDirectory */
+    public static synchronized File getDefaultDirectory() {
+	String s = System.getProperty("jgridstart.ca.cache");
+	if (s!=null) return s.length()==0 ? null : new File(s);
+	return defaultDirectory;
+    }
+
+    /** Return the default time to live from {@code jgridstart.ca.cache.ttl},
+     * in hours, as milliseconds; one day by default. */
+    protected static long getDefaultTTL() {
+	try {
+	    String s = System.getProperty("jgridstart.ca.cache.ttl");
+	    if (s!=null) return Math.max(0, Long.parseLong(s)) * 60*60*1000;
+	} catch (NumberFormatException e) { }
+	return 24*60*60*1000;
+    }
+
+    public void setTTL(long ms) {
+	ttl = Math.max(0, ms);
+    }
+    public long getTTL() {
+	return ttl;
+    }
+
+    /** Return the CA certificate, downloading it when needed. */
+    public synchronized X509Certificate get() throws IOException {
+	if (cert==null)
+	    read();
+	if (cert!=null && !isOutdated())
+	    return cert;
+	try {
+	    revalidate();
+	} catch (IOException e) {
+	    if (cert==null) throw e;
+	    logger.warning("Could not check CA certificate, using cached one: "+e);
+	}
+	return cert;
+    }
+
+    /** Return whether the certificate should be checked with the server. */
+    protected boolean isOutdated() {
+	long now = System.currentTimeMillis();
+	return now - checked >= ttl || cert.getNotAfter().getTime() - now < ttl;
+    }
+
+    /** Download the certificate if it was changed, or if not present. */
+    protected void revalidate() throws IOException {
+	URLConnection conn = ConnectionUtils.getTransport().openConnection(url);
+	if (cert!=null) {
+	    if (lastModified > 0) conn.setIfModifiedSince(lastModified);
+	    if (etag != null) conn.setRequestProperty("If-None-Match", etag);
+	}
+	if (cert!=null && conn instanceof HttpURLConnection &&
+		((HttpURLConnection)conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+	    conn.getInputStream().close();
+	    logger.fine("CA certificate not modified: "+url);
+	    checked = System.currentTimeMillis();
+	    writeProperties();
+	    return;
+	}
+	byte[] data = readAll(ConnectionUtils.getInputStream(conn));
+	X509Certificate newCert = parse(data);
+	if (newCert==null)
+	    throw new IOException("CA certificate could not be retrieved: "+new String(data));
+	logger.fine("Downloaded CA certificate: "+url);
+	cert = newCert;
+	checked = System.currentTimeMillis();
+	lastModified = conn.getLastModified();
+	etag = conn.getHeaderField("ETag");
+	write(data);
+    }
+
+    /** Read the certificate from disk, if present and for the same URL. */
+    protected void read() {
+	File dir = directory;
+	if (dir==null) return;
+	try {
+	    String hash = getHash();
+	    File propsFile = new File(dir, hash+".properties");
+	    File certFile = new File(dir, hash+".pem");
+	    if (!propsFile.exists() || !certFile.exists()) return;
+	    Properties p = new Properties();
+	    FileInputStream in = new FileInputStream(propsFile);
+	    try {
+		p.load(in);
+	    } finally {
+		in.close();
+	    }
+	    if (!url.toString().equals(p.getProperty("url"))) return;
+	    X509Certificate c = parse(readAll(new FileInputStream(certFile)));
+	    if (c==null) return;
+	    cert = c;
+	    checked = Long.parseLong(p.getProperty("checked", "0"));
+	    lastModified = Long.parseLong(p.getProperty("lastmodified", "0"));
+	    etag = p.getProperty("etag");
+	} catch (Exception e) {
+	    // just download it again
+	    logger.fine("Could not read cached CA certificate: "+e);
+	}
+    }
+
+    /** Store the certificate as downloaded on disk. */
+    protected void write(byte[] data) {
+	File dir = directory;
+	if (dir==null) return;
+	try {
+	    if (!dir.isDirectory() && !dir.mkdirs())
+		throw new IOException("Could not create directory "+dir);
+	    FileUtils.writeFileAtomic(new File(dir, getHash()+".pem"), data, false);
+	    writeProperties();
+	} catch (Exception e) {
+	    logger.warning("Could not cache CA certificate: "+e);
+	}
+    }
+
+    /** Store the validation information on disk. */
+    protected void writeProperties() {
+	File dir = directory;
+	if (dir==null || !dir.isDirectory()) return;
+	try {
+	    Properties p = new Properties();
+	    p.setProperty("url", url.toString());
+	    if (dn!=null) p.setProperty("dn", dn);
+	    p.setProperty("checked", Long.toString(checked));
+	    p.setProperty("lastmodified", Long.toString(lastModified));
+	    if (etag!=null) p.setProperty("etag", etag);
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    p.store(out, "jGridstart CA certificate cache");
+	    FileUtils.writeFileAtomic(new File(dir, getHash()+".properties"), out.toByteArray(), false);
+	} catch (Exception e) {
+	    logger.warning("Could not cache CA certificate: "+e);
+	}
+    }
+
+    /** Return the subject hash of the CA's distinguished name. */
+    protected String getHash() throws Exception {
+	String name = dn;
+	if (name.trim().startsWith("/"))
+	    name = name.trim().substring(1).replace('/', ',');
+	return String.format("%08x", CryptoUtils.getX509NameHash(new X509Principal(name)));
+    }
+
+    /** Parse a PEM-encoded certificate, or return {@code null}. */
+    protected static X509Certificate parse(byte[] data) throws IOException {
+	PEMReader r = new PEMReader(new StringReader(new String(data)));
+	try {
+	    Object o = r.readObject();
+	    return o instanceof X509Certificate ? (X509Certificate)o : null;
+	} finally {
+	    r.close();
+	}
+    }
+
+    /** Read a stream completely and close it. */
+    protected static byte[] readAll(InputStream in) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	try {
+	    byte[] buf = new byte[4096];
+	    int n;
+	    while ((n = in.read(buf)) >= 0)
+		out.write(buf, 0, n);
+	} finally {
+	    in.close();
+	}
+	return out.toByteArray();
+    }
+}
@@ -1,33 +1,73 @@
 package nl.nikhef.jgridstart.ca;
 
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import nl.nikhef.jgridstart.util.CryptoUtils;
+
+import org.bouncycastle.jce.X509Principal;
 
 /** Get or create {@link CA} implementation.
  * <p>
- * This currently returns a singleton instance of the CA specified
- * in the global Java properties named {@code jgridstart.ca.provider}.
- * 
+ * This returns a singleton instance of each CA implementation. The default
+ * one is specified in the global Java property {@code jgridstart.ca.provider};
+ * additional ones can be listed, comma-separated, in
+ * {@code jgridstart.ca.providers}.
+ * <p>
+ * All CAs that were created are registered, so that the CA that issued a
+ * certificate can be found with {@link #getIssuer}. The result is remembered
+ * by issuer hash, so only the first certificate of each issuer requires
+ * asking the CAs.
+ * <p>
+ * This class can be used from multiple threads.
+ *
  * @author wvengen
  *
  */
 public class CAFactory {
-    
-    /** Instances of CAs */
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart.ca");
+
+    /** Instances of CAs, by name */
     private static HashMap<String, CA> CAs = new HashMap<String, CA>();
+    /** Instances of CAs, by class */
+    private static HashMap<Class<?>, CA> CAsByClass = new HashMap<Class<?>, CA>();
+    /** All instances, in order of creation */
+    private static List<CA> registered = new ArrayList<CA>();
     /** The default CA */
     private static CA defaultCA = null;
-    
+    /** Issuing CAs by issuer hash, {@link #NO_CA} when none of the registered ones */
+    private static ConcurrentHashMap<String, Object> byIssuerHash = new ConcurrentHashMap<String, Object>();
+    /** Marker for issuers without registered CA */
+    private static final Object NO_CA = new Object();
+
     /** Returns the default CA implementation, or {@code null} if not found.
      * <p>
      * @see #getCA
      */
-    public static CA getDefault() throws CAException {
+    public static synchronized CA getDefault() throws CAException {
 	if (defaultCA==null) {
 	    defaultCA = getCA(System.getProperty("jgridstart.ca.provider"));
+	    // register additional CAs as well
+	    String others = System.getProperty("jgridstart.ca.providers");
+	    if (others!=null) {
+		for (String name: others.split(",")) {
+		    if (name.trim().length() == 0) continue;
+		    try {
+			getCA(name.trim());
+		    } catch (CAException e) {
+			logger.warning("Could not load CA "+name.trim()+": "+e.getLocalizedMessage());
+		    }
+		}
+	    }
 	}
 	return defaultCA;
     }
-    
+
     /** Returns a CA by name.
      * <p>
      * The name can be either a fully qualified Java class name, or a classname
@@ -35,23 +75,85 @@ public class CAFactory {
      * <p>
      * @throws CAException when CA could not be instantiated
      */
-    public static CA getCA(String name) throws CAException {
+    public static synchronized CA getCA(String name) throws CAException {
 	// get cached instance
 	if (CAs.containsKey(name))
 	    return CAs.get(name);
-	// or create and store; first by fully qualified class name
-	CA ca = null;
-    	try {
-	    ca = (CA)Class.forName(name).newInstance();
+	// or find class; first by fully qualified class name
+	Class<?> cls = null;
+	try {
+	    cls = Class.forName(name);
 	} catch (Exception e1) {
 	    // then try to locate in current package
 	    try {
-		ca = (CA)Class.forName(CAFactory.class.getPackage().getName()+"."+name).newInstance();
+		cls = Class.forName(CAFactory.class.getPackage().getName()+"."+name);
 	    } catch (Exception e2) {
 		throw new CAException("Invalid CA in configuration:\n"+e1.getLocalizedMessage());
 	    }
 	}
+	// use existing instance when it was known under another name
+	CA ca = CAsByClass.get(cls);
+	if (ca==null) {
+	    try {
+		ca = (CA)cls.newInstance();
+	    } catch (Exception e) {
+		throw new CAException("Invalid CA in configuration:\n"+e.getLocalizedMessage());
+	    }
+	    CAsByClass.put(cls, ca);
+	    registered.add(ca);
+	    // issuers without CA may have one now
+	    byIssuerHash.clear();
+	}
 	CAs.put(name, ca);
 	return ca;
     }
+
+    /** Return all CAs that were created so far. */
+    public static synchronized List<CA> getRegistered() {
+	return new ArrayList<CA>(registered);
+    }
+
+    /** Return the CA that issued a certificate.
+     * <p>
+     * The registered CAs are asked using {@link CA#isIssuer}, but the outcome
+     * is remembered by the certificate's issuer hash.
+     *
+     * @return issuing CA, or {@code null} if none of the registered CAs issued it
+     */
+    public static CA getIssuer(X509Certificate cert) throws CAException {
+	// make sure configured CAs are present
+	getDefault();
+	String hash;
+	try {
+	    hash = CryptoUtils.getIssuerHash(cert);
+	} catch (Exception e) {
+	    return findIssuer(cert);
+	}
+	Object ca = byIssuerHash.get(hash);
+	if (ca==null) {
+	    ca = findIssuer(cert);
+	    byIssuerHash.put(hash, ca==null ? NO_CA : ca);
+	}
+	return ca==NO_CA ? null : (CA)ca;
+    }
+
+    /** Ask each registered CA whether it issued a certificate. */
+    private static CA findIssuer(X509Certificate cert) {
+	for (CA ca: getRegistered()) {
+	    if (ca.isIssuer(cert)) return ca;
+	}
+	return null;
+    }
+
+    /** Return the {@linkplain X509Principal} for a distinguished name.
+     * <p>
+     * Both comma-notation and slash-notation (starting with {@code /}) are
+     * supported. This is to be used by implementations of {@link CA#isIssuer}.
+     */
+    static X509Principal getPrincipal(String dn) {
+	dn = dn.trim();
+	if (dn.startsWith("/"))
+	    dn = dn.substring(1).replace('/', ',');
+	return new X509Principal(dn);
+    }
 }
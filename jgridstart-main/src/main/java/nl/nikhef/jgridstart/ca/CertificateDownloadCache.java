@@ -0,0 +1,82 @@
+package nl.nikhef.jgridstart.ca;
+
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/** Short-lived cache of certificates downloaded from a certificate authority.
+ * <p>
+ * Some {@link CA} implementations can only find out whether a request was
+ * processed by downloading its certificate. Usually
+ * {@link CA#downloadCertificate} is called right after a positive
+ * {@link CA#isCertificationRequestProcessed}, so the certificate found
+ * there is kept here to avoid fetching it again.
+ * <p>
+ * Each certificate can be taken only once, and is forgotten after
+ * {@link #getTimeout} milliseconds so that a stale answer is never used
+ * much later.
+ *
+ * @author wvengen
+ */
+public class CertificateDownloadCache {
+
+    /** Time in milliseconds to keep a certificate */
+    protected long timeout;
+    /** Cached certificates by key */
+    private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    /** Create a new cache that keeps certificates for one minute. */
+    public CertificateDownloadCache() {
+	this(60*1000);
+    }
+
+    /** Create a new cache that keeps certificates for {@code timeout} milliseconds. */
+    public CertificateDownloadCache(long timeout) {
+	this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+	return timeout;
+    }
+
+    /** Remember a downloaded certificate.
+     *
+     * @param key identifier of the request, e.g. its serial number
+     * @param cert certificate; {@code null} is ignored
+     */
+    public synchronized void put(String key, X509Certificate cert) {
+	if (key==null || cert==null) return;
+	long now = System.currentTimeMillis();
+	// remove expired entries, so that unused ones don't pile up
+	for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+	    if (it.next().expires <= now) it.remove();
+	}
+	entries.put(key, new Entry(cert, now + timeout));
+    }
+
+    /** Return and forget a certificate that was downloaded recently.
+     *
+     * @param key identifier of the request, as passed to {@link #put}
+     * @return certificate, or {@code null} if not present or expired
+     */
+    public synchronized X509Certificate take(String key) {
+	if (key==null) return null;
+	Entry e = entries.remove(key);
+	if (e==null || e.expires <= System.currentTimeMillis()) return null;
+	return e.cert;
+    }
+
+    /** Forget all certificates. */
+    public synchronized void clear() {
+	entries.clear();
+    }
+
+    private static class Entry {
+	final X509Certificate cert;
+	final long expires;
+	Entry(X509Certificate cert, long expires) {
+	    this.cert = cert;
+	    this.expires = expires;
+	}
+    }
+}
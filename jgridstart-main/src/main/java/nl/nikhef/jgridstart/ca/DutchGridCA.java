@@ -42,9 +42,13 @@ public class DutchGridCA implements CA {
     protected String baseCaCert = System.getProperty("jgridstart.ca.base.cacert");
     /** CA DN */
     protected String caDN = System.getProperty("jgridstart.ca.dn");
+    /** CA DN as principal, see {@link #isIssuer} */
+    protected volatile X509Principal caPrincipal = null;
     
     /** CA certificate (cached) */
-    protected static X509Certificate cacert = null;
+    protected CACertificateCache cacert = null;
+    /** Certificates found by {@link #isCertificationRequestProcessed}, by public key modulus */
+    protected CertificateDownloadCache downloaded = new CertificateDownloadCache();
 
     /** Create new DutchGridCA 
      * 
@@ -157,9 +161,17 @@ public class DutchGridCA implements CA {
 	logger.info("Uploaded certificate signing request");
     }
     
+    /** {@inheritDoc}
+     * <p>
+     * The certificate is downloaded to find out; it is kept for a short while
+     * so that a subsequent {@link #downloadCertificate} needn't fetch it again.
+     */
     public boolean isCertificationRequestProcessed(
 	    PKCS10CertificationRequest req, Properties info) throws IOException {
-	return downloadCertificate(req, info) != null;
+	String id = getRequestId(req);
+	X509Certificate cert = fetchCertificate(id);
+	downloaded.put(id, cert);
+	return cert != null;
     }
 
     /** Download a certificate from the DutchGrid CA
@@ -170,18 +182,29 @@ public class DutchGridCA implements CA {
      */
     public X509Certificate downloadCertificate(
 	    PKCS10CertificationRequest req, Properties info) throws IOException {
-	
-	// return certificate by serial
-	URL url = new URL(baseQuery);
-	String[] pre;
+	String id = getRequestId(req);
+	X509Certificate cert = downloaded.take(id);
+	if (cert != null) return cert;
+	return fetchCertificate(id);
+    }
+    
+    /** Return the identifier by which the CA knows a request: its modulus in hex */
+    protected String getRequestId(PKCS10CertificationRequest req) throws IOException {
 	try {
-	    pre = new String[] {
-	    	"id", ((RSAPublicKey)req.getPublicKey()).getModulus().toString(16),
-	    	"fmt", "single"
-	    };
+	    return ((RSAPublicKey)req.getPublicKey()).getModulus().toString(16);
 	} catch (Exception e) {
 	    throw new IOException(e.getLocalizedMessage());
 	}
+    }
+    
+    /** Retrieve a certificate from the DutchGrid CA by request identifier */
+    protected X509Certificate fetchCertificate(String id) throws IOException {
+	// return certificate by modulus
+	URL url = new URL(baseQuery);
+	String[] pre = new String[] {
+		"id", id,
+		"fmt", "single"
+	};
 	String scert = ConnectionUtils.pageContents(url, pre, false);
 	StringReader reader = new StringReader(scert);
 	PEMReader r = new PEMReader(reader);
@@ -194,28 +217,18 @@ public class DutchGridCA implements CA {
     
     /** {@inheritDoc}
      * <p>
-     * CA certificate is downloaded once each program run.
+     * The CA certificate is cached on disk, see {@link CACertificateCache}.
      */
-    public X509Certificate getCACertificate() throws IOException {
-	if (cacert==null) {
-	    // download when not present
-	    String scert = ConnectionUtils.pageContents(new URL(baseCaCert));
-	    StringReader reader = new StringReader(scert);
-	    PEMReader r = new PEMReader(reader);
-	    cacert = (X509Certificate)r.readObject();
-	    r.close();
-	    if (cacert==null)
-		throw new IOException("CA certificate could not be retrieved: "+scert);
-	}
-	return cacert;
+    public synchronized X509Certificate getCACertificate() throws IOException {
+	if (cacert==null)
+	    cacert = new CACertificateCache(new URL(baseCaCert), caDN);
+	return cacert.get();
     }
-    
+
     /** {@inheritDoc} */
     public boolean isIssuer(X509Certificate cert) {
-	// TODO cache X500Principal
-	String dn = caDN;
-	if (dn.trim().startsWith("/"))
-	    dn = dn.substring(1).replace('/', ',');
-	return cert.getIssuerDN().equals(new X509Principal(dn));
+	if (caPrincipal==null)
+	    caPrincipal = CAFactory.getPrincipal(caDN);
+	return cert.getIssuerDN().equals(caPrincipal);
     }
 }
@@ -1,12 +1,22 @@
 package nl.nikhef.jgridstart.ca;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import java.security.GeneralSecurityException;
@@ -19,6 +29,7 @@ import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
+import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
 import javax.security.auth.x500.X500Principal;
 import org.bouncycastle.asn1.x509.BasicConstraints;
@@ -33,6 +44,8 @@ import org.bouncycastle.x509.X509V3CertificateGenerator;
 import org.bouncycastle.x509.extension.AuthorityKeyIdentifierStructure;
 import org.bouncycastle.x509.extension.SubjectKeyIdentifierStructure;
 
+import nl.nikhef.jgridstart.osutils.FileUtils;
+
 /**
  * A certificate authority that runs locally and signs using a
  * generated certificate.
@@ -45,7 +58,13 @@ import org.bouncycastle.x509.extension.SubjectKeyIdentifierStructure;
  *   <li><tt>jgridstart.ca.local.valid</tt> - number of seconds the certificates are valid
  *   <li><tt>jgridstart.ca.local.hold</tt> - if <i>true</i>, {@linkplain #isCertificationRequestProcessed}
  *     returns false; this can be used to test the situation where a certificate isn't signed yet.
+ *   <li><tt>jgridstart.ca.local.dir</tt> - directory to keep the CA keys, certificates and
+ *     serial number in, so that they persist across program runs (default: none)
  * </ul>
+ * <p>
+ * Many requests can be signed at once using {@link #signAll}, which uses all
+ * available processors. Together with {@literal jgridstart.ca.local.dir}, this
+ * can be used to create large numbers of test credentials.
  * 
  * @author wvengen
  * 
@@ -58,10 +77,22 @@ public class LocalCA implements CA {
     protected HashMap<String, X509Certificate> cacerts = new HashMap<String, X509Certificate>();
     /** temporary CA private key for different keyalgorithms used to sign requests (generated at instantiation) */
     protected HashMap<String, PrivateKey> cakeys = new HashMap<String, PrivateKey>();
+    /** authority key identifier for different keyalgorithms, added to each certificate */
+    protected HashMap<String, AuthorityKeyIdentifierStructure> cakeyids = new HashMap<String, AuthorityKeyIdentifierStructure>();
     /** serial number of last generated certificate */
-    static protected int serial = 1;
+    static protected AtomicInteger serial = new AtomicInteger(1);
+    /** directory to keep CA keys, certificates and serial number in, or {@code null} */
+    static protected volatile File caDir = null;
+    /** highest serial number that may be used before it needs to be stored again */
+    static private volatile int serialReserved = 0;
+    /** number of serial numbers to reserve at once, to avoid writing each one */
+    static protected final int SERIAL_BLOCK = 100;
+    /** number of seconds a CA certificate stored in {@link #caDir} is valid */
+    static protected final int CA_VALIDTIME = 10 * 365 * 24 * 60 * 60;
     /** DN of local CA */
     static protected String caDN = System.getProperty("jgridstart.ca.local.dn");
+    /** CA DN as principal, see {@link #isIssuer} */
+    protected volatile X509Principal caPrincipal = null;
     /** number of seconds into the future generated certificates are valid */
     static protected int validtime = 60 * 60; 
     
@@ -82,13 +113,28 @@ public class LocalCA implements CA {
 	    try { validtime = Integer.parseInt(validstr);
 	    } catch(NumberFormatException e) { }
 	}
+	String dir = System.getProperty("jgridstart.ca.local.dir");
+	if (dir!=null && dir.length()>0) {
+	    try {
+		loadSerial(new File(dir));
+	    } catch (IOException e) {
+		throw new KeyException("Could not read LocalCA serial number: "+e.getLocalizedMessage());
+	    }
+	}
 	
 	// generate default RSA CA certificate
 	generateCaCert("RSA");
     }
     
-    /** Generates a new CA key/certificate combination for the given algorithm */
+    /** Generates a new CA key/certificate combination for the given algorithm.
+     * <p>
+     * When {@link #caDir} is set, a key and certificate stored there are used
+     * instead, and newly generated ones are stored there.
+     */
     protected void generateCaCert(String keyalgname) throws CertificateException, KeyException, NoSuchAlgorithmException, IllegalStateException, NoSuchProviderException, SignatureException {
+	File dir = caDir;
+	if (dir!=null && loadCaCert(dir, keyalgname))
+	    return;
 	// create CA certificate
 	// find out keysize for algorithm
 	int keysize=1024; // RSA, DSA
@@ -103,7 +149,7 @@ public class LocalCA implements CA {
 	certGen.setSerialNumber(BigInteger.ONE);
 	certGen.setIssuerDN(new X500Principal(caDN));
 	certGen.setNotBefore(new Date(System.currentTimeMillis()-50000));
-	certGen.setNotAfter(new Date(System.currentTimeMillis()+validtime*1000));
+	certGen.setNotAfter(new Date(System.currentTimeMillis()+(dir!=null ? CA_VALIDTIME : validtime)*1000L));
 	certGen.setSubjectDN(new X500Principal(caDN));
 	certGen.setPublicKey(keypair.getPublic());
 	certGen.setSignatureAlgorithm("SHA1With"+keyalgname);
@@ -114,8 +160,101 @@ public class LocalCA implements CA {
 		new KeyUsage(KeyUsage.keyCertSign|KeyUsage.cRLSign));
 
 	PrivateKey cakey = keypair.getPrivate();
+	X509Certificate cacert = certGen.generate(cakey, "BC");
+	if (dir!=null) {
+	    try {
+		if (!dir.isDirectory() && !dir.mkdirs())
+		    throw new IOException("Could not create directory "+dir);
+		// private key is not encrypted, so make sure only the user can read it
+		File keyFile = getCaKeyFile(dir, keyalgname);
+		keyFile.createNewFile();
+		FileUtils.chmod(keyFile, true, true, false, true);
+		nl.nikhef.jgridstart.passwordcache.PEMWriter.writeObject(keyFile, keypair);
+		nl.nikhef.jgridstart.passwordcache.PEMWriter.writeObject(getCaCertFile(dir, keyalgname), cacert);
+	    } catch (IOException e) {
+		throw new KeyException("Could not store LocalCA certificate: "+e.getLocalizedMessage());
+	    }
+	}
 	cakeys.put(keyalgname, cakey);
-	cacerts.put(keyalgname, certGen.generate(cakey, "BC"));
+	cacerts.put(keyalgname, cacert);
+    }
+
+    /** Load the CA key and certificate for an algorithm from a directory.
+     * 
+     * @return whether they were present and usable
+     */
+    protected boolean loadCaCert(File dir, String keyalgname) throws KeyException {
+	File keyFile = getCaKeyFile(dir, keyalgname);
+	File certFile = getCaCertFile(dir, keyalgname);
+	if (!keyFile.exists() || !certFile.exists())
+	    return false;
+	try {
+	    KeyPair keypair = (KeyPair)nl.nikhef.jgridstart.passwordcache.PEMReader.readObject(keyFile, KeyPair.class);
+	    X509Certificate cacert = (X509Certificate)nl.nikhef.jgridstart.passwordcache.PEMReader.readObject(certFile, X509Certificate.class);
+	    if (keypair==null || cacert==null)
+		throw new IOException("no key or certificate found");
+	    if (!cacert.getSubjectX500Principal().equals(new X500Principal(caDN))) {
+		logger.warning("Stored LocalCA certificate has different DN, generating new one: "+certFile);
+		return false;
+	    }
+	    if (cacert.getNotAfter().before(new Date())) {
+		logger.warning("Stored LocalCA certificate has expired, generating new one: "+certFile);
+		return false;
+	    }
+	    logger.fine("Using stored LocalCA certificate ["+keyalgname+"]: "+certFile);
+	    cakeys.put(keyalgname, keypair.getPrivate());
+	    cacerts.put(keyalgname, cacert);
+	    return true;
+	} catch (IOException e) {
+	    throw new KeyException("Could not read LocalCA certificate "+certFile+": "+e.getLocalizedMessage());
+	}
+    }
+
+    protected static File getCaKeyFile(File dir, String keyalgname) {
+	return new File(dir, keyalgname.toLowerCase()+"-cakey.pem");
+    }
+    protected static File getCaCertFile(File dir, String keyalgname) {
+	return new File(dir, keyalgname.toLowerCase()+"-cacert.pem");
+    }
+
+    /** Start using a directory for serial numbers, continuing from the one stored there. */
+    protected static synchronized void loadSerial(File dir) throws IOException {
+	if (dir.equals(caDir)) return;
+	File f = new File(dir, "serial");
+	if (f.exists()) {
+	    try {
+		int stored = Integer.parseInt(FileUtils.readFile(f).trim());
+		// serials up to the stored one may have been used already
+		if (stored > serial.get()) serial.set(stored);
+	    } catch (NumberFormatException e) {
+		throw new IOException("Invalid serial number in "+f);
+	    }
+	}
+	serialReserved = 0;
+	caDir = dir;
+    }
+
+    /** Return a new serial number.
+     * <p>
+     * This is safe to call from multiple threads. When {@link #caDir} is set,
+     * serial numbers are reserved there in blocks, so that they are never
+     * reused, also not after a crash.
+     */
+    protected static int nextSerial() throws IOException {
+	int s = serial.incrementAndGet();
+	if (caDir!=null && s > serialReserved)
+	    reserveSerials(s);
+	return s;
+    }
+
+    /** Store that serial numbers up to a block beyond {@code s} may be in use. */
+    private static synchronized void reserveSerials(int s) throws IOException {
+	if (s <= serialReserved) return;
+	int reserved = s + SERIAL_BLOCK;
+	if (!caDir.isDirectory() && !caDir.mkdirs())
+	    throw new IOException("Could not create directory "+caDir);
+	FileUtils.writeFileAtomic(new File(caDir, "serial"), Integer.toString(reserved).getBytes(), false);
+	serialReserved = reserved;
     }
 
     /** Return CA certificate for key algorithm.
@@ -127,7 +266,7 @@ public class LocalCA implements CA {
      * @return CA certificate
      * @throws IOException when CA generation fails
      */
-    protected X509Certificate getCaCert(String keyalgname) throws IOException {
+    protected synchronized X509Certificate getCaCert(String keyalgname) throws IOException {
 	if (!cacerts.containsKey(keyalgname)) {
 	    try {
 		generateCaCert(keyalgname);
@@ -146,7 +285,7 @@ public class LocalCA implements CA {
      * @return CA certificate
      * @throws IOException when CA generation fails
      */
-    protected PrivateKey getCaKey(String keyalgname) throws IOException {
+    protected synchronized PrivateKey getCaKey(String keyalgname) throws IOException {
 	if (!cakeys.containsKey(keyalgname)) {
 	    getCaCert(keyalgname);
 	}
@@ -172,8 +311,7 @@ public class LocalCA implements CA {
     
     /** Obtain a new serial number for the certificate signing request / certificate */
     public void uploadCertificationRequest(String req, Properties info) throws IOException {
-	serial++;
-	info.setProperty("request.serial", Integer.toString(serial));
+	info.setProperty("request.serial", Integer.toString(nextSerial()));
     }
 
     /** This local CA always processes a certificate on the fly, so it returns always true. */
@@ -191,12 +329,20 @@ public class LocalCA implements CA {
 	if (!isCertificationRequestProcessed(req, info))
 	    return null;
 	
-	X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-	X509Certificate cert = null;
 	String reqserial = info.getProperty("request.serial");
 	if (reqserial==null)
 	    throw new IOException("Request has no serial number!");
+	return sign(req, BigInteger.valueOf(Integer.valueOf(reqserial)));
+    }
 
+    /** Sign a certificate signing request.
+     * 
+     * @param req request to sign
+     * @param serial serial number of the new certificate
+     * @return signed certificate
+     * @throws IOException when signing failed
+     */
+    protected X509Certificate sign(PKCS10CertificationRequest req, BigInteger serial) throws IOException {
 	String sigalgname;
 	try {
 	    sigalgname = req.getPublicKey().getAlgorithm();
@@ -206,8 +352,9 @@ public class LocalCA implements CA {
 	X509Certificate cacert = getCaCert(sigalgname);
 	PrivateKey cakey = getCaKey(sigalgname);
 	
+	X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
 	try {
-	    certGen.setSerialNumber(BigInteger.valueOf(Integer.valueOf(reqserial)));
+	    certGen.setSerialNumber(serial);
 	    certGen.setIssuerDN(cacert.getSubjectX500Principal());
 	    certGen.setNotBefore(new Date(System.currentTimeMillis()-50000));
 	    certGen.setNotAfter(new Date(System.currentTimeMillis()+validtime*1000));
@@ -215,7 +362,7 @@ public class LocalCA implements CA {
 	    certGen.setPublicKey(req.getPublicKey());
 	    certGen.setSignatureAlgorithm(req.getSignatureAlgorithm().getAlgorithm().getId());
 	    certGen.addExtension(X509Extensions.AuthorityKeyIdentifier, false,
-		    new AuthorityKeyIdentifierStructure(cacert));
+		    getCaKeyIdentifier(sigalgname, cacert));
 	    certGen.addExtension(X509Extensions.SubjectKeyIdentifier, false,
 		    new SubjectKeyIdentifierStructure(req.getPublicKey("BC")));
 	    certGen.addExtension(X509Extensions.BasicConstraints, true,
@@ -229,11 +376,61 @@ public class LocalCA implements CA {
 	    certGen.addExtension(X509Extensions.ExtendedKeyUsage, false,
 		    new ExtendedKeyUsage(extendedKeyUsage));
 	    // TODO implement internal CRL for testing and set cRLDistributionPoints
-	    cert = certGen.generate(cakey, "BC");
+	    return certGen.generate(cakey, "BC");
 	} catch (GeneralSecurityException e) {
 	    throw new IOException("Could not sign certificate:\n"+e.getMessage());
 	}
-	return cert;
+    }
+
+    /** Return the authority key identifier of the CA certificate for an algorithm. */
+    protected synchronized AuthorityKeyIdentifierStructure getCaKeyIdentifier(String keyalgname, X509Certificate cacert) throws CertificateParsingException {
+	AuthorityKeyIdentifierStructure id = cakeyids.get(keyalgname);
+	if (id==null) {
+	    id = new AuthorityKeyIdentifierStructure(cacert);
+	    cakeyids.put(keyalgname, id);
+	}
+	return id;
+    }
+
+    /** Sign many certificate signing requests at once.
+     * <p>
+     * Each request gets a new serial number, and is signed on one of a pool of
+     * threads, one for each available processor. The rate is logged when done.
+     * 
+     * @param reqs requests to sign
+     * @return certificates, in the same order as the requests
+     * @throws IOException when one of the requests could not be signed
+     */
+    public List<X509Certificate> signAll(Collection<PKCS10CertificationRequest> reqs) throws IOException {
+	long start = System.currentTimeMillis();
+	int nthreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), reqs.size()));
+	ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+	ArrayList<X509Certificate> certs = new ArrayList<X509Certificate>(reqs.size());
+	try {
+	    ArrayList<Future<X509Certificate>> results = new ArrayList<Future<X509Certificate>>(reqs.size());
+	    for (final PKCS10CertificationRequest req: reqs) {
+		final BigInteger s = BigInteger.valueOf(nextSerial());
+		results.add(pool.submit(new Callable<X509Certificate>() {
+		    public X509Certificate call() throws IOException {
+			return sign(req, s);
+		    }
+		}));
+	    }
+	    for (Future<X509Certificate> r: results)
+		certs.add(r.get());
+	} catch (ExecutionException e) {
+	    if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+	    throw new IOException(e.getCause());
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("Interrupted while signing");
+	} finally {
+	    pool.shutdownNow();
+	}
+	long duration = Math.max(1, System.currentTimeMillis() - start);
+	logger.info("Signed "+certs.size()+" certificates in "+duration+"ms using "+nthreads+" threads ("+
+		(certs.size()*1000L/duration)+" certificates/s)");
+	return certs;
     }
     
     public X509Certificate getCACertificate(String keyalgname) throws IOException {
@@ -246,10 +443,8 @@ public class LocalCA implements CA {
 
     /** {@inheritDoc} */
     public boolean isIssuer(X509Certificate cert) {
-	// TODO cache X500Principal
-	String dn = caDN;
-	if (dn.trim().startsWith("/"))
-	    dn = dn.substring(1).replace('/', ',');
-	return cert.getIssuerDN().equals(new X509Principal(dn));
+	if (caPrincipal==null)
+	    caPrincipal = CAFactory.getPrincipal(caDN);
+	return cert.getIssuerDN().equals(caPrincipal);
     }
 }
@@ -35,9 +35,13 @@ public class TestCA implements CA {
     /** URL of CA cert */
     protected String baseCaCert = System.getProperty("jgridstart.ca.base.cacert");
     /** CA certificate (cached) */
-    protected static X509Certificate cacert = null;
+    protected CACertificateCache cacert = null;
     /** CA DN */
     protected String caDN = System.getProperty("jgridstart.ca.dn");
+    /** CA DN as principal, see {@link #isIssuer} */
+    protected volatile X509Principal caPrincipal = null;
+    /** Certificates found by {@link #isCertificationRequestProcessed}, by request serial */
+    protected CertificateDownloadCache downloaded = new CertificateDownloadCache();
 
     /** Create new TestCA */
     public TestCA() throws NoSuchAlgorithmException, KeyManagementException {
@@ -112,9 +116,16 @@ public class TestCA implements CA {
 	info.setProperty("request.serial", serial);
     }
     
+    /** {@inheritDoc}
+     * <p>
+     * The certificate is downloaded to find out; it is kept for a short while
+     * so that a subsequent {@link #downloadCertificate} needn't fetch it again.
+     */
     public boolean isCertificationRequestProcessed(
 	    PKCS10CertificationRequest req, Properties info) throws IOException {
-	return downloadCertificate(req, info) != null;
+	X509Certificate cert = fetchCertificate(info);
+	downloaded.put(info.getProperty("request.serial"), cert);
+	return cert != null;
     }
 
     /** Download a certificate from the Test CA
@@ -124,7 +135,13 @@ public class TestCA implements CA {
      */
     public X509Certificate downloadCertificate(
 	    PKCS10CertificationRequest req, Properties info) throws IOException {
-	
+	X509Certificate cert = downloaded.take(info.getProperty("request.serial"));
+	if (cert != null) return cert;
+	return fetchCertificate(info);
+    }
+    
+    /** Retrieve a certificate from the Test CA by its request serial */
+    protected X509Certificate fetchCertificate(Properties info) throws IOException {
 	String reqserial = info.getProperty("request.serial");
 	if (reqserial==null || reqserial.equals(""))
 	    throw new IOException("Cannot download certificate without request serial number");
@@ -147,28 +164,18 @@ public class TestCA implements CA {
     
     /** {@inheritDoc}
      * <p>
-     * Test CA certificate is downloaded once each program run.
+     * The Test CA certificate is cached on disk, see {@link CACertificateCache}.
      */
-    public X509Certificate getCACertificate() throws IOException {
-	if (cacert==null) {
-	    // download when not present
-	    String scert = ConnectionUtils.pageContents(new URL(baseCaCert));
-	    StringReader reader = new StringReader(scert);
-	    PEMReader r = new PEMReader(reader);
-	    cacert = (X509Certificate)r.readObject();
-	    r.close();
-	    if (cacert==null)
-		throw new IOException("CA certificate could not be retrieved: "+scert);
-	}
-	return cacert;
+    public synchronized X509Certificate getCACertificate() throws IOException {
+	if (cacert==null)
+	    cacert = new CACertificateCache(new URL(baseCaCert), caDN);
+	return cacert.get();
     }
 
     /** {@inheritDoc} */
     public boolean isIssuer(X509Certificate cert) {
-	// TODO cache X500Principal
-	String dn = caDN;
-	if (dn.trim().startsWith("/"))
-	    dn = dn.substring(1).replace('/', ',');
-	return cert.getIssuerDN().equals(new X509Principal(dn));
+	if (caPrincipal==null)
+	    caPrincipal = CAFactory.getPrincipal(caDN);
+	return cert.getIssuerDN().equals(caPrincipal);
     }
 }
@@ -0,0 +1,287 @@
+package nl.nikhef.jgridstart.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import nl.nikhef.jgridstart.CertificatePair;
+import nl.nikhef.jgridstart.CertificateRequest;
+import nl.nikhef.jgridstart.CertificateStore;
+import nl.nikhef.jgridstart.EnrolmentPipeline;
+import nl.nikhef.jgridstart.osutils.FileUtils;
+
+/** Requests certificates for many users at once, as listed in a manifest.
+ * <p>
+ * The manifest is a CSV file of which the first line contains the names of
+ * the columns. Each next line describes one user with the same properties
+ * as the request wizard asks for: {@code givenname}, {@code surname},
+ * {@code email}, {@code org} (organisation followed by any organisational
+ * units, comma-separated), the private key's {@code password}, and optionally
+ * {@code level} and other properties. The column {@code id} names each entry;
+ * when absent, the line number is used. Empty lines and lines starting with
+ * {@code #} are ignored.
+ * <p>
+ * Each entry is checked like the request wizard does, and the valid ones are
+ * generated and uploaded using an {@link EnrolmentPipeline}. Since progress
+ * is stored with each certificate, running the same manifest again continues
+ * where the previous run stopped.
+ * <p>
+ * The outcome of each entry can be written as CSV with {@link #writeResults}.
+ *
+ * @author wvengen
+ */
+public class BatchEnrolment {
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart.cli");
+
+    /** Columns of the result file; {@code status} is one of {@literal invalid},
+     * {@literal failed}, {@literal submitted} or {@literal certificate}, and
+     * {@code stage} is the last stage of {@link EnrolmentPipeline} completed. */
+    public static final String[] RESULT_COLUMNS = {
+	"id", "status", "stage", "certificate", "subject", "request.serial", "error"
+    };
+
+    /** Store to create requests in */
+    protected CertificateStore store;
+    /** Pipeline that performs the enrolments */
+    protected EnrolmentPipeline pipeline;
+    /** Outcome of each entry, by id; see {@link #getResults} */
+    protected Map<String, String[]> results = new LinkedHashMap<String, String[]>();
+    /** Entries that were valid, by id */
+    protected Map<String, Properties> valid = new LinkedHashMap<String, Properties>();
+
+    /** Create a new batch enrolment that stops after uploading the requests. */
+    public BatchEnrolment(CertificateStore store) {
+	this.store = store;
+	this.pipeline = new EnrolmentPipeline(store);
+	pipeline.setLastStage(EnrolmentPipeline.UPLOAD);
+    }
+
+    /** Return the pipeline, e.g. to configure threads or the last stage. */
+    public EnrolmentPipeline getPipeline() {
+	return pipeline;
+    }
+
+    /** Read entries from a manifest file.
+     * @see #load(Reader) */
+    public void load(File manifest) throws IOException {
+	Reader in = new InputStreamReader(new FileInputStream(manifest), "UTF-8");
+	try {
+	    load(in);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** Read entries from a manifest.
+     * <p>
+     * Each entry is validated; invalid ones are recorded as such in the
+     * results and are not enrolled.
+     */
+    public void load(Reader manifest) throws IOException {
+	BufferedReader in = new BufferedReader(manifest);
+	List<String> header = null;
+	String line;
+	int lineno = 0;
+	while ((line = in.readLine()) != null) {
+	    lineno++;
+	    if (line.trim().length()==0 || line.startsWith("#")) continue;
+	    List<String> fields = parseCSVLine(line);
+	    if (header==null) {
+		header = fields;
+		continue;
+	    }
+	    Properties p = new Properties();
+	    for (int i=0; i<header.size() && i<fields.size(); i++) {
+		if (fields.get(i).length() > 0)
+		    p.setProperty(header.get(i).trim(), fields.get(i));
+	    }
+	    String id = p.getProperty("id", "line"+lineno);
+	    p.remove("id");
+	    add(id, p);
+	}
+	if (header==null)
+	    throw new IOException("Manifest is empty");
+    }
+
+    /** Validate an entry and add it to the pipeline when valid.
+     * <p>
+     * An entry with the id of an earlier one is invalid. Its outcome is
+     * recorded separately, see {@link #getResults}. */
+    public void add(String id, Properties p) {
+	if (results.containsKey(id)) {
+	    // keep the outcome of the first entry with this id
+	    String key = id;
+	    for (int n=2; results.containsKey(key); n++)
+		key = id+"#"+n;
+	    results.put(key, newResult(id, null, "invalid", "validate", null, "Duplicate id"));
+	    return;
+	}
+	String pw = p.getProperty("password");
+	p.remove("password");
+	try {
+	    validate(p, pw);
+	    CertificateRequest.postFillData(p);
+	} catch (Exception e) {
+	    setResult(id, "invalid", "validate", null, e.getLocalizedMessage());
+	    return;
+	}
+	pipeline.add(id, p, pw.toCharArray());
+	valid.put(id, p);
+	setResult(id, "pending", null, null, null);
+    }
+
+    /** Check an entry like the request wizard does.
+     *
+     * @throws Exception with a message for the user when invalid
+     */
+    protected void validate(Properties p, String pw) throws Exception {
+	String[] required = { "givenname", "surname", "email", "org" };
+	for (String key: required) {
+	    if (p.getProperty(key)==null || p.getProperty(key).trim().length()==0)
+		throw new Exception("Missing "+key);
+	}
+	if (!p.getProperty("email").matches("^.+@.+\\..+"))
+	    throw new Exception("Invalid email address: "+p.getProperty("email"));
+	try {
+	    CertificateRequest.validateDN(p.getProperty("givenname"));
+	    CertificateRequest.validateDN(p.getProperty("surname"));
+	} catch (Exception e) {
+	    throw new Exception("Name: "+e.getLocalizedMessage());
+	}
+	try {
+	    CertificateRequest.validateDN(p.getProperty("org"));
+	} catch (Exception e) {
+	    throw new Exception("Organisation: "+e.getLocalizedMessage());
+	}
+	if (pw==null)
+	    throw new Exception("Missing password");
+	CertificateRequest.validatePassword(pw, true);
+    }
+
+    /** Enrol all valid entries.
+     *
+     * @return number of entries that were invalid or failed
+     */
+    public int run() throws InterruptedException {
+	EnrolmentPipeline.Result r = pipeline.run();
+	String last = EnrolmentPipeline.STAGES[pipeline.getLastStage()];
+	for (Map.Entry<String, CertificatePair> e: r.getDone().entrySet()) {
+	    CertificatePair cert = e.getValue();
+	    boolean hasCert = false;
+	    try {
+		hasCert = cert.getCertificate()!=null;
+	    } catch (IOException ex) { }
+	    setResult(e.getKey(), hasCert ? "certificate" : "submitted",
+		    hasCert ? "download" : last, cert, null);
+	}
+	for (Map.Entry<String, Throwable> e: r.getFailed().entrySet()) {
+	    String id = e.getKey();
+	    CertificatePair cert = findByPipelineId(id);
+	    String stage = cert!=null ? cert.getProperty("pipeline.stage") : null;
+	    setResult(id, "failed", stage, cert, e.getValue().getLocalizedMessage());
+	}
+	int bad = 0;
+	for (String[] res: results.values()) {
+	    if ("invalid".equals(res[1]) || "failed".equals(res[1])) bad++;
+	}
+	logger.info("Batch enrolment: "+(results.size()-bad)+" entries succeeded, "+bad+" invalid or failed");
+	return bad;
+    }
+
+    /** Return the outcome of each entry, by id, with fields as in {@link #RESULT_COLUMNS}.
+     * <p>
+     * Entries with the id of an earlier one are listed under that id followed
+     * by {@code #2}, {@code #3} and so on, so that each gets its own result. */
+    public Map<String, String[]> getResults() {
+	return results;
+    }
+
+    /** Write the outcome of each entry as CSV, with a header line of {@link #RESULT_COLUMNS}. */
+    public void writeResults(File f) throws IOException {
+	StringBuffer out = new StringBuffer();
+	appendCSVLine(out, RESULT_COLUMNS);
+	for (String[] res: results.values())
+	    appendCSVLine(out, res);
+	FileUtils.writeFileAtomic(f, out.toString().getBytes("UTF-8"), false);
+    }
+
+    /** Record the outcome of an entry. */
+    protected void setResult(String id, String status, String stage, CertificatePair cert, String error) {
+	String subject = null;
+	if (valid.containsKey(id)) subject = valid.get(id).getProperty("subject");
+	results.put(id, newResult(id, subject, status, stage, cert, error));
+    }
+
+    /** Return the outcome of an entry with fields as in {@link #RESULT_COLUMNS}. */
+    protected String[] newResult(String id, String subject, String status, String stage, CertificatePair cert, String error) {
+	return new String[] {
+		id, status, stage,
+		cert!=null && cert.getPath()!=null ? cert.getPath().getName() : null,
+		subject,
+		cert!=null ? cert.getProperty("request.serial") : null,
+		error
+	};
+    }
+
+    /** Return the certificate created for an entry, or {@code null}. */
+    protected CertificatePair findByPipelineId(String id) {
+	for (CertificatePair cert: store) {
+	    if (id.equals(cert.getProperty("pipeline.id")))
+		return cert;
+	}
+	return null;
+    }
+
+    /** Split a line of comma-separated values, with double-quoted fields. */
+    protected static List<String> parseCSVLine(String line) throws IOException {
+	List<String> fields = new ArrayList<String>();
+	StringBuffer field = new StringBuffer();
+	boolean quoted = false;
+	for (int i=0; i<line.length(); i++) {
+	    char c = line.charAt(i);
+	    if (quoted) {
+		if (c=='"' && i+1<line.length() && line.charAt(i+1)=='"') {
+		    field.append('"');
+		    i++;
+		} else if (c=='"') {
+		    quoted = false;
+		} else {
+		    field.append(c);
+		}
+	    } else if (c=='"') {
+		quoted = true;
+	    } else if (c==',') {
+		fields.add(field.toString());
+		field.setLength(0);
+	    } else {
+		field.append(c);
+	    }
+	}
+	if (quoted)
+	    throw new IOException("Unterminated quote in manifest line: "+line);
+	fields.add(field.toString());
+	return fields;
+    }
+
+    /** Append a line of comma-separated values, quoting where needed. */
+    protected static void appendCSVLine(StringBuffer out, String[] fields) {
+	for (int i=0; i<fields.length; i++) {
+	    if (i>0) out.append(',');
+	    String f = fields[i]!=null ? fields[i] : "";
+	    if (f.indexOf(',')>=0 || f.indexOf('"')>=0 || f.indexOf('\n')>=0)
+		f = "\"" + f.replace("\"", "\"\"") + "\"";
+	    out.append(f);
+	}
+	out.append('\n');
+    }
+}
@@ -1,5 +1,6 @@
 package nl.nikhef.jgridstart.cli;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.security.KeyManagementException;
@@ -23,9 +24,12 @@ import org.apache.commons.cli.ParseException;
 
 import nl.nikhef.jgridstart.CertificatePair;
 import nl.nikhef.jgridstart.CertificateStore;
+import nl.nikhef.jgridstart.EnrolmentPipeline;
 import nl.nikhef.jgridstart.CertificateCheck.CertificateCheckException;
+import nl.nikhef.jgridstart.ca.CACertificateCache;
 import nl.nikhef.jgridstart.logging.LogHelper;
 import nl.nikhef.jgridstart.util.GeneralUtils;
+import nl.nikhef.jgridstart.passwordcache.PasswordCache;
 import nl.nikhef.jgridstart.passwordcache.PasswordCancelledException;
 
 /** Command-line user-interface program.
@@ -58,6 +62,8 @@ public class Main {
 		store.load(line.getOptionValue("store"));
 	    else
 		store.load();
+	    // keep downloaded CA certificates in the store
+	    CACertificateCache.setDefaultDirectory(new File(store.getPath(), "cacerts"));
 
 	    // action!
 	    if (line.hasOption("help"))
@@ -70,6 +76,8 @@ public class Main {
 		actionImport(line);
 	    if (line.hasOption("get"))
 		actionGet(line);
+	    if (line.hasOption("batch"))
+		actionBatch(line);
 	    
 	} catch (Exception e) {
 	    logger.severe(e.getLocalizedMessage());
@@ -121,6 +129,9 @@ public class Main {
 	main.addOption(new Option("g", "get", false, "get a signed certificate via the internet"));
 	main.addOption(new Option("s", "install", false, "install certificate into a browser"));
 	main.addOption(new Option("r", "revoke", false, "request revocation of a key+certificate"));
+	main.addOption(OptionBuilder.withArgName("manifest").hasArg()
+		.withDescription("create and upload certificate signing requests for all users in a CSV file")
+		.withLongOpt("batch").create('b'));
 	main.setRequired(true);
 	opts.addOptionGroup(main);
 	
@@ -134,6 +145,10 @@ public class Main {
 	opts.addOption(OptionBuilder.withArgName("certificate").hasArg()
 		.withDescription("operate on a certificate")
 		.withLongOpt("certificate").create('c'));
+	opts.addOption(OptionBuilder.withArgName("file").hasArg()
+		.withDescription("file to write batch results to (default: manifest with .result.csv)")
+		.withLongOpt("output").create('o'));
+	opts.addOption(new Option("w", "wait", false, "with batch, wait for the certificates and download them"));
 	
 	return opts;
     }
@@ -152,6 +167,7 @@ public class Main {
 	out.println( 
 	    "usage: "+prog+" [options] (-h|-l|-i <file>)\n" +
 	    "usage: "+prog+" [options] -n\n" +
+	    "usage: "+prog+" [options] -b <manifest> [-o <file>] [-w]\n" +
 	    "usage: "+prog+" [options] -c <certificate> (-p|-g|-s|-r)");
 	fmt.printOptions(out, fmt.getWidth(),
 		getCLIOptions(), fmt.getLeftPadding(), fmt.getDescPadding());
@@ -161,7 +177,7 @@ public class Main {
     /** print list of certificates */
     protected static void actionList(CommandLine line) throws ParseException {
 	for (int i=0; i<store.getSize(); i++) {
-	    System.out.printf("%s: %s\n", store.get(i).getPath().getName(), store.get(i));
+	    System.out.printf("%s: %s\n", getName(store.get(i)), store.get(i));
 	}
     }
     
@@ -192,17 +208,45 @@ public class Main {
     }
     
     
+    /** request certificates for all users in a manifest
+     * @see BatchEnrolment */
+    protected static void actionBatch(CommandLine line) throws Exception {
+	File manifest = new File(line.getOptionValue("batch"));
+	File output = line.hasOption("output") ? new File(line.getOptionValue("output")) :
+	    new File(manifest.getPath().replaceFirst("\\.csv$", "")+".result.csv");
+	// passwords are given in the manifest
+	PasswordCache.getInstance().setUI(PasswordCache.UI_NONE);
+	PasswordCache.getInstance().setAlwaysAskForEncrypt(false);
+
+	BatchEnrolment batch = new BatchEnrolment(store);
+	if (line.hasOption("wait"))
+	    batch.getPipeline().setLastStage(EnrolmentPipeline.DOWNLOAD);
+	batch.load(manifest);
+	int bad = batch.run();
+	batch.writeResults(output);
+	System.out.printf("%d of %d entries done, results written to %s\n",
+		batch.getResults().size()-bad, batch.getResults().size(), output);
+	if (bad > 0)
+	    throw new Exception(bad+" entries were invalid or failed, see "+output);
+    }
+    
     /** Return a certificate as specified on the command-line */
     protected static CertificatePair getCertificate(CommandLine line) throws ParseException {
 	String value = line.getOptionValue("certificate");
 	if (value==null)
 	    throw new ParseException("please specify certificate");
 	
-	CertificatePair cert = null;
-	for (CertificatePair cur: store) {
-	    if (cur.getPath().getName().equals(value)) {
-		cert = cur;
-		break;
+	// path relative to the store, as listed
+	CertificatePair cert = store.findByPath(new File(store.getPath(), value));
+	if (cert==null && store.getPath().getName().equals(value))
+	    cert = store.findByPath(store.getPath());
+	// or just the directory name, which may be in a shard
+	if (cert==null) {
+	    for (CertificatePair c: store) {
+		if (c.getPath()==null || !c.getPath().getName().equals(value)) continue;
+		if (cert!=null)
+		    throw new ParseException("certificate name is ambiguous, please use its path as listed: "+value);
+		cert = c;
 	    }
 	}
 	if (cert==null)
@@ -210,4 +254,17 @@ public class Main {
 	
 	return cert;
     }
+    
+    /** Return the name of a certificate for the command-line.
+     * <p>
+     * This is its directory relative to the store, so that it includes
+     * any shard subdirectory, see {@link CertificateStore#setShards}. */
+    protected static String getName(CertificatePair cert) {
+	File path = cert.getPath();
+	if (path.equals(store.getPath())) return path.getName();
+	String name = path.getName();
+	for (File f = path.getParentFile(); f!=null && !f.equals(store.getPath()); f = f.getParentFile())
+	    name = f.getName() + "/" + name;
+	return name;
+    }
 }
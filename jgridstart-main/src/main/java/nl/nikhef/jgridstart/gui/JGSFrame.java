@@ -25,6 +25,7 @@ import javax.swing.SwingUtilities;
 
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 
@@ -38,6 +39,7 @@ import org.jdesktop.swingworker.SwingWorker;
 
 import nl.nikhef.jgridstart.CertificatePair;
 import nl.nikhef.jgridstart.CertificateStoreWithDefault;
+import nl.nikhef.jgridstart.ca.CACertificateCache;
 import nl.nikhef.jgridstart.gui.util.CertificateSelection;
 import nl.nikhef.jgridstart.gui.util.TemplateButtonPanel;
 import nl.nikhef.jgridstart.gui.util.URLLauncherCertificate;
@@ -80,6 +82,8 @@ public class JGSFrame extends JFrame {
 	setName("jgridstart-main-window");
 	
 	store = new CertificateStoreWithDefault();
+	// store is modified by background workers too
+	store.setNotifyOnEDT(true);
 	selection = new CertificateSelection(store);
 	PasswordCache.getInstance().setParent(this);
 	URLLauncherCertificate.setSelectionSource(selection);
@@ -139,6 +143,8 @@ public class JGSFrame extends JFrame {
 	    
 	// load certificates from default location
 	store.load();
+	// and keep downloaded CA certificates there too
+	CACertificateCache.setDefaultDirectory(new File(store.getPath(), "cacerts"));
 
 	// select first certificate if present
 	// TODO select default certificate
@@ -245,53 +251,60 @@ public class JGSFrame extends JFrame {
      */
     protected void setupIdentityMenu() {
 	store.addListDataListener(new ListDataListener() {
-	    // only single indices supported
+	    // called on the event dispatch thread, see setNotifyOnEDT;
+	    // menu items are only present when there are two or more certificates
 	    public void intervalAdded(ListDataEvent e) {
-		// TODO use SwingUtilities.invokeLater; problem with non-final ListDataEvent e
-		int index = e.getIndex0();
-		if (index < 0) return;
-		// add item to menu if two or more items
-		if (store.size() > 1) {
-		    // if second item, also add first item and separator
-		    if (store.size() == 2 && index == 1) {
-			identitySeparator.setVisible(true);
-			intervalAdded(new ListDataEvent(e.getSource(), e.getType(), 0, 0));
-		    }
-		    // then add this item
-		    CertificatePair cert = store.get(index);
-		    Action action = new ActionSelectCertificate(JGSFrame.this, cert, selection);
-		    if (index<9)
-			action.putValue(Action.ACCELERATOR_KEY, KeyStroke.getKeyStroke("control "+(index+1)));
-		    JRadioButtonMenuItem jrb = new JRadioButtonMenuItem(action);
-		    //jrb.setText(cert.toString());
-		    identityButtonGroup.add(jrb);
-		    identityMenu.insert(jrb, identityIndex + index);
-		    // show certificate list if we went from 1 to 2 certificates
-		    if (store.size() == 2)
-			setViewCertificateList(true);
+		if (e.getIndex0() < 0) return;
+		int oldSize = store.getSize() - (e.getIndex1() - e.getIndex0() + 1);
+		if (store.getSize() < 2) return;
+		if (oldSize < 2) {
+		    // went from less than two items: add all, and separator
+		    identitySeparator.setVisible(true);
+		    for (int i=0; i<store.getSize(); i++)
+			addItem(i);
+		    setViewCertificateList(true);
+		} else {
+		    for (int i=e.getIndex0(); i<=e.getIndex1(); i++)
+			addItem(i);
 		}
 	    }
 	    public void intervalRemoved(ListDataEvent e) {
-		// TODO use SwingUtilities.invokeLater; problem with non-final ListDataEvent e
-		// remove item from menu
-		int index = e.getIndex0();
-		if (index < 0) return;
-		JMenuItem item = identityMenu.getItem(identityIndex + e.getIndex0());
-		// select previous index if it was currently selected
-		if (item.isSelected()) {
-		    int newIdx = index - 1;
-		    if (newIdx<0) newIdx=0;
-		    selection.setSelection(newIdx);
+		if (e.getIndex0() < 0) return;
+		int oldSize = store.getSize() + (e.getIndex1() - e.getIndex0() + 1);
+		if (oldSize < 2) return;
+		// select previous index if one of the removed items was selected
+		for (int i=e.getIndex0(); i<=e.getIndex1(); i++) {
+		    if (identityMenu.getItem(identityIndex + i).isSelected()) {
+			selection.setSelection(Math.max(e.getIndex0()-1, 0));
+			break;
+		    }
 		}
-		identityButtonGroup.remove(item);
-		identityMenu.remove(item);
+		for (int i=e.getIndex1(); i>=e.getIndex0(); i--)
+		    removeItem(i);
 		// if only one item left, also remove that one since it
 		// adds no useful information for the user
-		if (store.size() == 1 && index != 0) {
-		    intervalRemoved(new ListDataEvent(e.getSource(), e.getType(), 0, 0));
+		if (store.getSize() == 1) {
+		    removeItem(0);
 		    identitySeparator.setVisible(false);
 		}
 	    }
+	    /** Add a menu item for the certificate at an index */
+	    private void addItem(int index) {
+		CertificatePair cert = store.getElementAt(index);
+		Action action = new ActionSelectCertificate(JGSFrame.this, cert, selection);
+		if (index<9)
+		    action.putValue(Action.ACCELERATOR_KEY, KeyStroke.getKeyStroke("control "+(index+1)));
+		JRadioButtonMenuItem jrb = new JRadioButtonMenuItem(action);
+		//jrb.setText(cert.toString());
+		identityButtonGroup.add(jrb);
+		identityMenu.insert(jrb, identityIndex + index);
+	    }
+	    /** Remove the menu item at an index */
+	    private void removeItem(int index) {
+		JMenuItem item = identityMenu.getItem(identityIndex + index);
+		identityButtonGroup.remove(item);
+		identityMenu.remove(item);
+	    }
 	    public void contentsChanged(ListDataEvent e) {
 		// TODO update entry
 	    }
@@ -400,7 +413,7 @@ public class JGSFrame extends JFrame {
 		);
 	
 	// also update selected item in menu
-	if (store.size() > 1 && selection.getIndex() >= 0)
+	if (store.getSize() > 1 && selection.getIndex() >= 0)
 	    identityMenu.getItem(identityIndex + selection.getIndex()).setSelected(true);
 	
 	// update status in background
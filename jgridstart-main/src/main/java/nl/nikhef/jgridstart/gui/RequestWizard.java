@@ -27,6 +27,7 @@ import nl.nikhef.jgridstart.gui.util.CertificateSelection;
 import nl.nikhef.jgridstart.gui.util.ErrorMessage;
 import nl.nikhef.jgridstart.gui.util.TemplateWizard;
 import nl.nikhef.jgridstart.gui.util.URLLauncherCertificate;
+import nl.nikhef.jgridstart.util.KeyPairPool;
 import nl.nikhef.browsers.BrowserFactory;
 import nl.nikhef.browsers.exception.BrowserNotAvailableException;
 import nl.nikhef.jgridstart.passwordcache.PEMReader;
@@ -63,6 +64,8 @@ public class RequestWizard extends TemplateWizard implements TemplateWizard.Page
 	this.store = store;
 	this.selection = sel;
 	setData(new Properties());
+	// generate key while the user fills in the form
+	KeyPairPool.getInstance().prefill();
     }
     /** New certificate request */
     public RequestWizard(Dialog parent, CertificateStore store, CertificateSelection sel) {
@@ -70,6 +73,8 @@ public class RequestWizard extends TemplateWizard implements TemplateWizard.Page
 	this.store = store;
 	this.selection = sel;
 	setData(new Properties());
+	// generate key while the user fills in the form
+	KeyPairPool.getInstance().prefill();
     }
     /** View form of existing CertificatePair */
     public RequestWizard(Frame parent, CertificatePair cert, CertificateSelection sel) {
@@ -103,6 +108,7 @@ public class RequestWizard extends TemplateWizard implements TemplateWizard.Page
     private void setRenewal(CertificatePair certParent) {
 	this.certParent = certParent;
 	setData(new Properties());
+	KeyPairPool.getInstance().prefill();
     }
     /** Return whether we have a renewal or not */
     protected boolean isRenewal() {
@@ -197,45 +203,52 @@ public class RequestWizard extends TemplateWizard implements TemplateWizard.Page
     @Override
     public void setData(Properties p) {
 	super.setData(p);
-	String orgOptions = Organisation.getAllOptionsHTML(cert);
-	// also set static properties for the forms
-	// initialize properties when new request / renewal
-	if (cert==null) {
-	    // help the user by prefilling some elements
-	    if (!isRenewal()) {
-		CertificateRequest.preFillData(p, certParent);
-	    	data().setProperty("wizard.title", "Request a new certificate");
+	// notify listeners only once of all changes below
+	CertificatePair pair = (p instanceof CertificatePair) ? (CertificatePair)p : null;
+	if (pair!=null) pair.beginUpdate();
+	try {
+	    String orgOptions = Organisation.getAllOptionsHTML(cert);
+	    // also set static properties for the forms
+	    // initialize properties when new request / renewal
+	    if (cert==null) {
+		// help the user by prefilling some elements
+		if (!isRenewal()) {
+		    CertificateRequest.preFillData(p, certParent);
+		    data().setProperty("wizard.title", "Request a new certificate");
+		} else {
+		    // parse fields from dn if needed
+		    CertificateRequest.completeData(certParent);
+		    CertificateRequest.preFillData(data(), certParent);
+		    // cannot edit fields for renewal; except email!!!
+		    CertificateRequest.postFillDataLock(data());
+		    data().setProperty("email.lock", Boolean.toString(false));
+		    data().setProperty("agreecps.lock", Boolean.toString(false));
+		    data().setProperty("wizard.title", "Renew a certificate");
+		}
+		// but don't preselect an organisation so the user can't leave it the default
+		orgOptions = "<option value=''>(select your organisation)</option>"+orgOptions;	    
 	    } else {
-		// parse fields from dn if needed
-		CertificateRequest.completeData(certParent);
-		CertificateRequest.preFillData(data(), certParent);
-		// cannot edit fields for renewal; except email!!!
-		CertificateRequest.postFillDataLock(data());
-		data().setProperty("email.lock", Boolean.toString(false));
-		data().setProperty("agreecps.lock", Boolean.toString(false));
-    	    	data().setProperty("wizard.title", "Renew a certificate");
+		CertificateRequest.completeData(cert);
+		if (!data().containsKey("wizard.title"))
+		    data().setProperty("wizard.title", "Certificate Request");
 	    }
-	    // but don't preselect an organisation so the user can't leave it the default
-	    orgOptions = "<option value=''>(select your organisation)</option>"+orgOptions;	    
-	} else {
-	    CertificateRequest.completeData(cert);
-	    if (!data().containsKey("wizard.title"))
-		data().setProperty("wizard.title", "Certificate Request");
+	    data().setProperty("wizard.title.volatile", "true");
+	    data().setProperty("wizard.title.html", data().getProperty("wizard.title"));
+	    data().setProperty("wizard.title.html.volatile", "true");
+	    data().setProperty("organisations.html.options", orgOptions);
+	    data().setProperty("organisations.html.options.volatile", "true");
+	    // workaround for checkboxes without a name; even with checked="checked" they
+	    // would sometimes not be shown as checked (irregular behaviour though)
+	    data().setProperty("true", "true");
+	    data().setProperty("true.volatile", "true");
+	    // make sure to keep the password safe
+	    data().setProperty("password1.volatile", "true");
+	    data().setProperty("password2.volatile", "true");
+	    data().setProperty("wizard.parentpass.volatile", "true");
+	    data().setProperty("wizard.privkeypass.volatile", "true");
+	} finally {
+	    if (pair!=null) pair.endUpdate();
 	}
-	data().setProperty("wizard.title.volatile", "true");
-	data().setProperty("wizard.title.html", data().getProperty("wizard.title"));
-	data().setProperty("wizard.title.html.volatile", "true");
-	data().setProperty("organisations.html.options", orgOptions);
-	data().setProperty("organisations.html.options.volatile", "true");
-	// workaround for checkboxes without a name; even with checked="checked" they
-	// would sometimes not be shown as checked (irregular behaviour though)
-	data().setProperty("true", "true");
-	data().setProperty("true.volatile", "true");
-	// make sure to keep the password safe
-	data().setProperty("password1.volatile", "true");
-	data().setProperty("password2.volatile", "true");
-	data().setProperty("wizard.parentpass.volatile", "true");
-	data().setProperty("wizard.privkeypass.volatile", "true");
     }
     
     /** called before a page in wizard is changed */
@@ -558,10 +571,15 @@ public class RequestWizard extends TemplateWizard implements TemplateWizard.Page
 		    p.remove("password2");
 		    p.remove("password2.volatile");
 		    // copy properties to certificate pair
-		    for (Enumeration<?> en = p.propertyNames(); en.hasMoreElements(); ) {
-			String key = (String)en.nextElement();
-			if (key!=null && p.getProperty(key)!=null)
-			    newCert.setProperty(key, p.getProperty(key));
+		    newCert.beginUpdate();
+		    try {
+			for (Enumeration<?> en = p.propertyNames(); en.hasMoreElements(); ) {
+			    String key = (String)en.nextElement();
+			    if (key!=null && p.getProperty(key)!=null)
+				newCert.setProperty(key, p.getProperty(key));
+			}
+		    } finally {
+			newCert.endUpdate();
 		    }
 		    // and make sure data is saved
 		    newCert.store();
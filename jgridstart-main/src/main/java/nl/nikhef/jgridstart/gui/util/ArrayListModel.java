@@ -1,31 +1,62 @@
 package nl.nikhef.jgridstart.gui.util;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import javax.swing.ListModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ListDataEvent;
 import javax.swing.event.ListDataListener;
 
-/** An ArrayList that can be used as a ListModel.
+/** A thread-safe list that can be used as a ListModel.
  * <p>
  * inspired by <a href="http://www.java2s.com/Code/Java/Swing-JFC/ArrayListwithaListModelforeaseofuse.htm">FilterGUIListModel</>.
- * <p> 
- * TODO implement addAll().
+ * <p>
+ * Reads are done without locking from an immutable snapshot of the list;
+ * writes copy the list and replace the snapshot, so iterating never fails
+ * when the list is modified by another thread at the same time. This makes
+ * writes more expensive, but lists used as a model are read much more often.
+ * <p>
+ * By default, listeners are notified on the thread that modifies the list.
+ * When this list is shown in a user-interface, {@link #setNotifyOnEDT} can be
+ * used to deliver events on the event dispatch thread instead. Events are
+ * then queued and delivered in batches, and {@link #getSize} and
+ * {@link #getElementAt} return the list as it was when the event being
+ * delivered was created, so that Swing components always see a list that
+ * matches the events they received.
+ * <p>
+ * Bulk modifications like {@link #addAll} and {@link #removeAll} notify
+ * listeners once for each range of elements. Other modifications can be
+ * grouped using {@link #beginBatch} and {@link #endBatch}, so that listeners
+ * receive as few events as possible. Listeners must therefore handle events
+ * that span a range of indices, and not only {@link ListDataEvent#getIndex0}.
+ * <p>
  * TODO implement all constructor combinations
- * 
+ *
  * @author wvengen
  * @param <T> class of items in this list
  */
-public class ArrayListModel<T> extends ArrayList<T> implements ListModel {
+public class ArrayListModel<T> extends AbstractList<T> implements ListModel, RandomAccess {
     protected Object source;
-    
+    /** Current contents; replaced on each modification, never modified itself */
+    private volatile Object[] elements = new Object[0];
+
     /** Constructs an empty list with an initial capacity */
     public ArrayListModel() {
 	super();
 	source = this;
     }
     /** Constructs an empty list with an initial capacity
-     * 
+     *
      * @param source the source Object for events
      */
     public ArrayListModel(Object source) {
@@ -34,13 +65,15 @@ public class ArrayListModel<T> extends ArrayList<T> implements ListModel {
     }
     /** Constructs a list containing the elements of the specified collection, in the order
      * they are returned by the collection's iterator.
-     * 
+     *
      * @param c the collection whose elements are to be placed into this list
      * @param source the source Object for events
      */
     public ArrayListModel(Collection<? extends T> c, Object source) {
-	super(c);
+	super();
 	this.source = source;
+	elements = c.toArray();
+	view = elements;
     }
     /** Constructs an empty list with the specified initial capacity.
      *
@@ -48,20 +81,96 @@ public class ArrayListModel<T> extends ArrayList<T> implements ListModel {
      * @param source the source Object for events
      */
     public ArrayListModel(int initialCapacity, Object source) {
-	super(initialCapacity);
-	this.source = source;
+	this(source);
+    }
+
+    /*
+     * List implementation; reads use the current snapshot
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public T get(int index) {
+	return (T)elements[index];
+    }
+    @Override
+    public int size() {
+	return elements.length;
+    }
+    @Override
+    public int indexOf(Object o) {
+	Object[] els = elements;
+	for (int i=0; i<els.length; i++)
+	    if (o==null ? els[i]==null : o.equals(els[i])) return i;
+	return -1;
+    }
+    @Override
+    public boolean contains(Object o) {
+	return indexOf(o) >= 0;
+    }
+    /** {@inheritDoc}
+     * <p>
+     * The iterator traverses the list as it was when the iterator was
+     * created; it does not support {@link Iterator#remove}.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Iterator<T> iterator() {
+	return Collections.unmodifiableList((List<T>)Arrays.asList(elements)).iterator();
+    }
+    @Override
+    public Object[] toArray() {
+	return elements.clone();
+    }
+    @SuppressWarnings("unchecked")
+    @Override
+    public <E> E[] toArray(E[] a) {
+	Object[] els = elements;
+	if (a.length < els.length)
+	    return (E[])Arrays.copyOf(els, els.length, a.getClass());
+	System.arraycopy(els, 0, a, 0, els.length);
+	if (a.length > els.length) a[els.length] = null;
+	return a;
     }
-    
+
+    /** Replace the current contents; must be called with the lock held. */
+    private void setElements(Object[] els, boolean structural) {
+	elements = els;
+	if (structural) modCount++;
+    }
+
     /*
-     * ListModel implementation 
+     * ListModel implementation
+     */
+    protected List<ListDataListener> listeners = new CopyOnWriteArrayList<ListDataListener>();
+    /** Whether to notify listeners on the event dispatch thread */
+    private boolean notifyOnEDT = false;
+    /** Contents as seen by listeners, when notifying on the event dispatch thread */
+    private volatile Object[] view = elements;
+    /** Events waiting to be delivered on the event dispatch thread */
+    private List<PendingEvent> pending = new ArrayList<PendingEvent>();
+    /** Number of pending events that have their snapshot set */
+    private int published = 0;
+    /** Whether delivery of pending events was scheduled */
+    private boolean deliveryScheduled = false;
+    /** Number of nested batches, see {@link #beginBatch} */
+    private int batchDepth = 0;
+
+    /** {@inheritDoc}
+     * <p>
+     * When notifying on the event dispatch thread, this returns the element
+     * as known by listeners, which can lag behind {@link #get}.
      */
-    protected ArrayList<ListDataListener> listeners = new ArrayList<ListDataListener>();
-    
+    @SuppressWarnings("unchecked")
     public T getElementAt(int index) {
-	return get(index);
+	return notifyOnEDT ? (T)view[index] : get(index);
     }
+    /** {@inheritDoc}
+     * <p>
+     * When notifying on the event dispatch thread, this returns the size
+     * as known by listeners, which can lag behind {@link #size}.
+     */
     public int getSize() {
-	return size();
+	return notifyOnEDT ? view.length : size();
     }
     public void addListDataListener(ListDataListener l) {
 	listeners.add(l);
@@ -69,67 +178,301 @@ public class ArrayListModel<T> extends ArrayList<T> implements ListModel {
     public void removeListDataListener(ListDataListener l) {
 	listeners.remove(l);
     }
-    
+
+    /** Set whether to notify listeners on the event dispatch thread.
+     * <p>
+     * This should be enabled when this list is used as a model for Swing
+     * components and may be modified from other threads, like {@link javax.swing.SwingWorker}s.
+     */
+    public synchronized void setNotifyOnEDT(boolean edt) {
+	notifyOnEDT = edt;
+	view = elements;
+    }
+    /** Return whether listeners are notified on the event dispatch thread. */
+    public synchronized boolean isNotifyOnEDT() {
+	return notifyOnEDT;
+    }
+
     protected void notifyAdded(int start, int end) {
-	ListDataEvent e = new ListDataEvent(source, ListDataEvent.INTERVAL_ADDED, start, end);
-	for (ListDataListener l: listeners) {
-	    l.intervalAdded(e);
-	}
+	fire(new ListDataEvent(source, ListDataEvent.INTERVAL_ADDED, start, end));
     }
     protected void notifyRemoved(int start, int end) {
-	ListDataEvent e = new ListDataEvent(source, ListDataEvent.INTERVAL_REMOVED, start, end);
+	fire(new ListDataEvent(source, ListDataEvent.INTERVAL_REMOVED, start, end));
+    }
+    protected void notifyChanged(int index) {
+	fire(new ListDataEvent(source, ListDataEvent.CONTENTS_CHANGED, index, index));
+    }
+
+    /** Start a batch of modifications.
+     * <p>
+     * Until the matching {@link #endBatch}, listeners are not notified.
+     * Then they receive the events of all modifications in the batch, where
+     * events of neighbouring ranges are merged. This means that listeners
+     * may receive events only after the list was modified further. Batches
+     * can be nested; the outermost one determines when events are delivered.
+     * Events of other threads are held back as well during a batch.
+     * <p>
+     * Always call {@link #endBatch} in a {@code finally} block.
+     */
+    public synchronized void beginBatch() {
+	batchDepth++;
+    }
+    /** End a batch of modifications, see {@link #beginBatch}. */
+    public synchronized void endBatch() {
+	if (batchDepth > 0) batchDepth--;
+	publish();
+    }
+
+    /** Deliver an event to listeners now, or queue it for later delivery. */
+    private void fire(ListDataEvent e) {
+	synchronized(this) {
+	    if (notifyOnEDT || batchDepth > 0) {
+		queue(e);
+		// a change is not done inside a write, so publish right away
+		if (e.getType()==ListDataEvent.CONTENTS_CHANGED)
+		    publish();
+		return;
+	    }
+	}
+	deliver(e);
+    }
+
+    /** Add an event to the queue, merging it with the previous one when possible. */
+    private void queue(ListDataEvent e) {
+	if (pending.size() > 0) {
+	    PendingEvent last = pending.get(pending.size()-1);
+	    ListDataEvent merged = merge(last.event, e);
+	    if (merged != null) {
+		last.event = merged;
+		// contents after the merged event are those after the new event
+		last.snapshot = null;
+		if (published == pending.size()) published--;
+		return;
+	    }
+	}
+	pending.add(new PendingEvent(e));
+    }
+
+    /** Return a single event equivalent to two consecutive events, or {@code null} if none.
+     * <p>
+     * Indices of the second event refer to the list after the first event. */
+    private ListDataEvent merge(ListDataEvent a, ListDataEvent b) {
+	if (a.getType() != b.getType()) return null;
+	int a0 = a.getIndex0(), a1 = a.getIndex1(), b0 = b.getIndex0(), b1 = b.getIndex1();
+	if (a0 < 0 || b0 < 0 || a1 < a0 || b1 < b0) return null;
+	switch (a.getType()) {
+	case ListDataEvent.INTERVAL_ADDED:
+	    // inserted within or right after the previous range
+	    if (b0 < a0 || b0 > a1+1) return null;
+	    return new ListDataEvent(source, a.getType(), a0, a1 + b1-b0+1);
+	case ListDataEvent.INTERVAL_REMOVED:
+	    // removed range touches the position of the previous one
+	    if (b0 > a0 || b1+1 < a0) return null;
+	    return new ListDataEvent(source, a.getType(), b0, b1 + a1-a0+1);
+	default:
+	    // overlapping or neighbouring changes
+	    if (b0 > a1+1 || b1+1 < a0) return null;
+	    return new ListDataEvent(source, a.getType(), Math.min(a0, b0), Math.max(a1, b1));
+	}
+    }
+
+    /** Attach the current contents to queued events and schedule their delivery.
+     * <p>
+     * Must be called after each modification, when events are queued.
+     */
+    private synchronized void publish() {
+	for (; published < pending.size(); published++)
+	    pending.get(published).snapshot = elements;
+	if (pending.isEmpty() || deliveryScheduled || batchDepth > 0) return;
+	if (!notifyOnEDT || SwingUtilities.isEventDispatchThread()) {
+	    deliverPending();
+	    return;
+	}
+	deliveryScheduled = true;
+	SwingUtilities.invokeLater(new Runnable() {
+	    public void run() {
+		deliverPending();
+	    }
+	});
+    }
+
+    /** Deliver all queued events; on the event dispatch thread, when so configured. */
+    private void deliverPending() {
+	List<PendingEvent> events;
+	synchronized(this) {
+	    events = pending.subList(0, published);
+	    events = new ArrayList<PendingEvent>(events);
+	    pending.subList(0, published).clear();
+	    published = 0;
+	    deliveryScheduled = false;
+	}
+	for (PendingEvent pe: events) {
+	    if (notifyOnEDT) view = pe.snapshot;
+	    deliver(pe.event);
+	}
+    }
+
+    /** Deliver an event to all listeners. */
+    private void deliver(ListDataEvent e) {
 	for (ListDataListener l: listeners) {
-	    l.intervalRemoved(e);
+	    switch (e.getType()) {
+	    case ListDataEvent.INTERVAL_ADDED: l.intervalAdded(e); break;
+	    case ListDataEvent.INTERVAL_REMOVED: l.intervalRemoved(e); break;
+	    default: l.contentsChanged(e);
+	    }
 	}
     }
-    protected void notifyChanged(int index) {
-	ListDataEvent e = new ListDataEvent(source, ListDataEvent.CONTENTS_CHANGED, index, index);
-	for (ListDataListener l:  listeners) {
-	    l.contentsChanged(e);
+
+    /** Event waiting for delivery, with the contents of the list after it happened */
+    private static class PendingEvent {
+	ListDataEvent event;
+	Object[] snapshot = null;
+	PendingEvent(ListDataEvent event) {
+	    this.event = event;
 	}
     }
 
     /*
-     * Overrides just to call listeners
+     * Modifications; copy the contents and notify listeners
      */
     @Override
     public boolean add(T o) {
-	boolean r = super.add(o);
-	if (r) notifyAdded(getSize()-1, getSize()-1);
-	return r;
+	synchronized(this) {
+	    Object[] els = Arrays.copyOf(elements, elements.length+1);
+	    els[els.length-1] = o;
+	    setElements(els, true);
+	    notifyAdded(els.length-1, els.length-1);
+	    publish();
+	}
+	return true;
+    }
+    @Override
+    public boolean addAll(Collection<? extends T> c) {
+	Object[] add = c.toArray();
+	if (add.length == 0) return false;
+	synchronized(this) {
+	    int start = elements.length;
+	    Object[] els = Arrays.copyOf(elements, start+add.length);
+	    System.arraycopy(add, 0, els, start, add.length);
+	    setElements(els, true);
+	    notifyAdded(start, els.length-1);
+	    publish();
+	}
+	return true;
     }
     @Override
     public void add(int index, T o) {
-	super.add(index, o);
-	notifyAdded(index, index);
+	synchronized(this) {
+	    Object[] old = elements;
+	    if (index < 0 || index > old.length)
+		throw new IndexOutOfBoundsException("Index: "+index+", Size: "+old.length);
+	    Object[] els = new Object[old.length+1];
+	    System.arraycopy(old, 0, els, 0, index);
+	    els[index] = o;
+	    System.arraycopy(old, index, els, index+1, old.length-index);
+	    setElements(els, true);
+	    notifyAdded(index, index);
+	    publish();
+	}
     }
+    @SuppressWarnings("unchecked")
     @Override
     public T remove(int index) {
-	notifyRemoved(index, index);
-	T o = super.remove(index);
-	return o;
+	synchronized(this) {
+	    Object[] old = elements;
+	    T o = (T)old[index];
+	    notifyRemoved(index, index);
+	    Object[] els = new Object[old.length-1];
+	    System.arraycopy(old, 0, els, 0, index);
+	    System.arraycopy(old, index+1, els, index, old.length-index-1);
+	    setElements(els, true);
+	    publish();
+	    return o;
+	}
     }
     @Override
-    public boolean remove(Object o) {
+    public synchronized boolean remove(Object o) {
 	int index = indexOf(o);
 	if (index<0) return false;
 	remove(index);
 	return true;
     }
     @Override
+    public boolean removeAll(Collection<?> c) {
+	return removeIf(c, true);
+    }
+    @Override
+    public boolean retainAll(Collection<?> c) {
+	return removeIf(c, false);
+    }
+    /** Remove elements that are (or are not) present in a collection.
+     * <p>
+     * Listeners are notified once for each range of neighbouring elements
+     * removed, starting with the last range, so that indices of events refer
+     * to the list before any element was removed.
+     */
+    private boolean removeIf(Collection<?> c, boolean present) {
+	if (!(c instanceof Set) && c.size() > 8)
+	    c = new HashSet<Object>(c);
+	synchronized(this) {
+	    Object[] old = elements;
+	    boolean[] remove = new boolean[old.length];
+	    int n = 0;
+	    for (int i=0; i<old.length; i++) {
+		if (c.contains(old[i]) == present) {
+		    remove[i] = true;
+		    n++;
+		}
+	    }
+	    if (n == 0) return false;
+	    for (int end=old.length-1; end>=0; end--) {
+		if (!remove[end]) continue;
+		int start = end;
+		while (start > 0 && remove[start-1]) start--;
+		notifyRemoved(start, end);
+		end = start;
+	    }
+	    Object[] els = new Object[old.length-n];
+	    for (int i=0, j=0; i<old.length; i++)
+		if (!remove[i]) els[j++] = old[i];
+	    setElements(els, true);
+	    publish();
+	}
+	return true;
+    }
+    @Override
     public void removeRange(int from, int to) {
-	notifyRemoved(from, to);
-	super.removeRange(from, to);
+	if (from >= to) return;
+	synchronized(this) {
+	    Object[] old = elements;
+	    notifyRemoved(from, to-1);
+	    Object[] els = new Object[old.length-(to-from)];
+	    System.arraycopy(old, 0, els, 0, from);
+	    System.arraycopy(old, to, els, from, old.length-to);
+	    setElements(els, true);
+	    publish();
+	}
     }
     @Override
     public void clear() {
-	int size = getSize();
-	notifyRemoved(0, size-1);
-	super.clear();
+	synchronized(this) {
+	    int size = size();
+	    if (size == 0) return;
+	    notifyRemoved(0, size()-1);
+	    setElements(new Object[0], true);
+	    publish();
+	}
     }
+    @SuppressWarnings("unchecked")
     @Override
     public T set(int index, T el) {
-	T o = super.set(index, el);
+	T o;
+	synchronized(this) {
+	    Object[] els = elements.clone();
+	    o = (T)els[index];
+	    els[index] = el;
+	    setElements(els, false);
+	}
 	notifyChanged(index);
 	return o;
     }
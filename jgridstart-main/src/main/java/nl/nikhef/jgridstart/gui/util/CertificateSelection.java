@@ -33,6 +33,9 @@ public class CertificateSelection extends DefaultListSelectionModel {
     public CertificatePair getCertificatePair() {
 	int i = getIndex();
 	if (i<0) return null;
-	return store.get(i);
+	// selection indices are those of the list as seen by the gui
+	if (i<store.getSize()) return store.getElementAt(i);
+	if (i<store.size()) return store.get(i);
+	return null;
     }
 }
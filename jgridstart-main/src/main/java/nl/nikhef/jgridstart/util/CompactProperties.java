@@ -0,0 +1,654 @@
+package nl.nikhef.jgridstart.util;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Compact {@linkplain Properties} for objects with many instances.
+ * <p>
+ * {@linkplain Properties} is a synchronised hashtable with an entry object for
+ * each property. This class keeps properties in an open-addressing table of
+ * parallel arrays instead, with keys shared between all instances. The shadow
+ * keys {@code foo.volatile} and {@code foo.lock} with value {@literal true}
+ * are stored as bits with {@code foo} rather than as entries of their own.
+ * They are still visible as ordinary properties: {@code getProperty("foo.lock")}
+ * returns {@literal true}, and enumerating the keys returns {@code foo.lock}.
+ * <p>
+ * Reading does not lock: the table is never changed once it is visible to
+ * readers. A modification works on a copy, which then replaces the table as
+ * a whole; {@link #putAll} makes a single copy for all its properties. Since
+ * instances typically hold a few dozen properties, this copy is small.
+ * Modifications are synchronised on the object, like {@linkplain java.util.Hashtable}
+ * does, so that a block synchronised on it still sees no changes while it iterates.
+ * <p>
+ * Keys and values must be strings. Only the methods of {@linkplain Properties}
+ * as of Java 6 are supported.
+ *
+ * @author wvengen
+ */
+public class CompactProperties extends Properties {
+
+    /** Flag for {@code .volatile} */
+    public static final int VOLATILE = 1;
+    /** Flag for {@code .lock} */
+    public static final int LOCK = 2;
+    /** Key suffixes of the flags, by bit */
+    protected static final String[] FLAG_SUFFIXES = { ".volatile", ".lock" };
+    /** Value of a property that is set by a flag */
+    protected static final String TRUE = "true";
+
+    /** Maximum number of distinct strings to keep in the pool */
+    protected static final int POOL_MAX = 4096;
+    /** Pool of shared strings */
+    private static final ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<String, String>();
+
+    /** Key of a removed slot, compared by identity */
+    private static final String REMOVED = new String("<removed>");
+
+    /** Hash table, replaced as a whole on each modification; not changed once set */
+    private transient volatile Table table = new Table(16);
+    /** Copy of the table being modified, or {@code null}; see {@link #draft} */
+    private transient Table draft = null;
+
+    public CompactProperties() {
+	super();
+    }
+
+    public CompactProperties(Properties defaults) {
+	super(defaults);
+    }
+
+    /** Hash table of keys, values and flags in parallel arrays.
+     * <p>
+     * A slot with a key but no value exists when only flags are set. */
+    private static class Table {
+	final String[] keys;
+	final String[] values;
+	final byte[] flags;
+	/** Number of slots with a key, including removed ones */
+	int used = 0;
+	/** Number of properties, including those set by flags */
+	int count = 0;
+
+	Table(int capacity) {
+	    keys = new String[capacity];
+	    values = new String[capacity];
+	    flags = new byte[capacity];
+	}
+
+	/** Return a copy with the same slots. */
+	Table copy() {
+	    Table n = new Table(keys.length);
+	    System.arraycopy(keys, 0, n.keys, 0, keys.length);
+	    System.arraycopy(values, 0, n.values, 0, values.length);
+	    System.arraycopy(flags, 0, n.flags, 0, flags.length);
+	    n.used = used;
+	    n.count = count;
+	    return n;
+	}
+
+	/** Return the slot of the first {@code len} characters of {@code key}, or -1. */
+	int find(String key, int len) {
+	    int mask = keys.length - 1;
+	    int i = hash(key, len) & mask;
+	    for (int n = 0; n < keys.length; n++, i = (i+1) & mask) {
+		String k = keys[i];
+		if (k == null) return -1;
+		if (k != REMOVED && k.length() == len && key.regionMatches(0, k, 0, len))
+		    return i;
+	    }
+	    return -1;
+	}
+
+	/** Return the slot for a new key that is not present. */
+	int free(String key) {
+	    int mask = keys.length - 1;
+	    int i = hash(key, key.length()) & mask;
+	    while (keys[i] != null && keys[i] != REMOVED)
+		i = (i+1) & mask;
+	    return i;
+	}
+    }
+
+    /** Return the hash of the first {@code len} characters of a string,
+     * which is the same as that of the corresponding substring. */
+    private static int hash(String key, int len) {
+	int h;
+	if (len == key.length()) {
+	    h = key.hashCode();
+	} else {
+	    h = 0;
+	    for (int i = 0; i < len; i++)
+		h = 31*h + key.charAt(i);
+	}
+	return h ^ (h >>> 16);
+    }
+
+    /** Return the flag that a key is the shadow key of, or 0. */
+    protected static int flagOf(String key) {
+	for (int b = 0; b < FLAG_SUFFIXES.length; b++) {
+	    if (key.endsWith(FLAG_SUFFIXES[b]) && key.length() > FLAG_SUFFIXES[b].length())
+		return 1 << b;
+	}
+	return 0;
+    }
+
+    /** Return the length of the key that a shadow key belongs to. */
+    private static int baseLength(String key, int flag) {
+	return key.length() - FLAG_SUFFIXES[Integer.numberOfTrailingZeros(flag)].length();
+    }
+
+    /** Return whether a flag is set for a key, e.g. if {@code key.volatile} is {@literal true}.
+     * <p>
+     * This is the same as checking the shadow key, but does not need to
+     * construct it. */
+    public boolean isFlagSet(String key, int flag) {
+	Table t = table;
+	int i = t.find(key, key.length());
+	return i >= 0 && (t.flags[i] & flag) != 0;
+    }
+
+    /** Return a property value, not looking at the defaults. */
+    protected String lookup(String key) {
+	Table t = table;
+	int i = t.find(key, key.length());
+	String v = i >= 0 ? t.values[i] : null;
+	if (v != null) return v;
+	int flag = flagOf(key);
+	if (flag != 0) {
+	    i = t.find(key, baseLength(key, flag));
+	    if (i >= 0 && (t.flags[i] & flag) != 0) return TRUE;
+	}
+	return null;
+    }
+
+    @Override
+    public Object get(Object key) {
+	return key instanceof String ? lookup((String)key) : null;
+    }
+
+    @Override
+    public String getProperty(String key) {
+	String v = lookup(key);
+	if (v == null && defaults != null) v = defaults.getProperty(key);
+	return v;
+    }
+
+    @Override
+    public String getProperty(String key, String defaultValue) {
+	String v = getProperty(key);
+	return v == null ? defaultValue : v;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+	return get(key) != null;
+    }
+
+    @Override
+    public boolean contains(Object value) {
+	if (value == null) throw new NullPointerException();
+	for (Iterator<Object> it = values().iterator(); it.hasNext(); ) {
+	    if (value.equals(it.next())) return true;
+	}
+	return false;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+	return contains(value);
+    }
+
+    @Override
+    public int size() {
+	return table.count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+	return table.count == 0;
+    }
+
+    /** {@inheritDoc}
+     * <p>
+     * Keys are shared between instances. */
+    @Override
+    public synchronized Object put(Object key, Object value) {
+	Object old = putDraft(key, value);
+	publish();
+	return old;
+    }
+
+    /** Store a property in the draft table, see {@link #put}. */
+    private Object putDraft(Object key, Object value) {
+	String k = (String)key, v = (String)value;
+	if (k == null || v == null) throw new NullPointerException();
+	Table t = draft != null ? draft : table;
+	int flag = flagOf(k);
+	if (flag != 0) {
+	    int j = t.find(k, baseLength(k, flag));
+	    boolean wasSet = j >= 0 && (t.flags[j] & flag) != 0;
+	    if (TRUE.equals(v)) {
+		if (wasSet) return TRUE;
+		String old = removeValue(k);
+		setFlag(k.substring(0, baseLength(k, flag)), flag);
+		return old;
+	    }
+	    if (wasSet) {
+		clearFlag(j, flag);
+		putValue(k, v);
+		return TRUE;
+	    }
+	}
+	// no copy needed when the value stays the same
+	int i = t.find(k, k.length());
+	if (i >= 0 && v.equals(t.values[i])) return t.values[i];
+	return putValue(k, v);
+    }
+
+    /** Return the copy of the table to modify, making it if needed.
+     * <p>
+     * Slots of the copy are the same as those of the table, so that slots
+     * found in the table can be used with it until {@link #ensureCapacity}.
+     * It becomes visible to readers by {@link #publish}. */
+    private Table draft() {
+	if (draft == null) draft = table.copy();
+	return draft;
+    }
+
+    /** Make the modified table visible to readers. */
+    private void publish() {
+	if (draft == null) return;
+	table = draft;
+	draft = null;
+    }
+
+    /** Store a value in the draft table, returning the old one. */
+    private String putValue(String key, String value) {
+	Table t = draft();
+	int i = t.find(key, key.length());
+	if (i >= 0) {
+	    String old = t.values[i];
+	    t.values[i] = value;
+	    if (old == null) t.count++;
+	    return old;
+	}
+	t = ensureCapacity();
+	i = t.free(key);
+	if (t.keys[i] == null) t.used++;
+	t.values[i] = value;
+	t.flags[i] = 0;
+	t.keys[i] = intern(key);
+	t.count++;
+	return null;
+    }
+
+    /** Remove a value from the draft table, keeping its flags, returning the old one. */
+    private String removeValue(String key) {
+	Table t = draft != null ? draft : table;
+	int i = t.find(key, key.length());
+	if (i < 0 || t.values[i] == null) return null;
+	t = draft();
+	String old = t.values[i];
+	t.values[i] = null;
+	t.count--;
+	if (t.flags[i] == 0) t.keys[i] = REMOVED;
+	return old;
+    }
+
+    /** Set a flag on a key in the draft table, adding it if needed. */
+    private void setFlag(String key, int flag) {
+	Table t = draft();
+	int i = t.find(key, key.length());
+	if (i < 0) {
+	    t = ensureCapacity();
+	    i = t.free(key);
+	    if (t.keys[i] == null) t.used++;
+	    t.values[i] = null;
+	    t.flags[i] = (byte)flag;
+	    t.keys[i] = intern(key);
+	} else {
+	    t.flags[i] |= flag;
+	}
+	t.count++;
+    }
+
+    /** Clear a flag of the key in a slot of the draft table, removing the slot when empty. */
+    private void clearFlag(int i, int flag) {
+	Table t = draft();
+	t.flags[i] &= ~flag;
+	t.count--;
+	if (t.flags[i] == 0 && t.values[i] == null) t.keys[i] = REMOVED;
+    }
+
+    /** Return a draft table with room for one more key, growing it if needed. */
+    private Table ensureCapacity() {
+	Table t = draft();
+	if ((t.used + 1) * 4 <= t.keys.length * 3) return t;
+	int live = 0;
+	for (int i = 0; i < t.keys.length; i++)
+	    if (t.keys[i] != null && t.keys[i] != REMOVED) live++;
+	int capacity = t.keys.length;
+	while ((live + 1) * 2 > capacity) capacity *= 2;
+	Table n = new Table(capacity);
+	for (int i = 0; i < t.keys.length; i++) {
+	    String k = t.keys[i];
+	    if (k == null || k == REMOVED) continue;
+	    int j = n.free(k);
+	    n.keys[j] = k;
+	    n.values[j] = t.values[i];
+	    n.flags[j] = t.flags[i];
+	    n.used++;
+	}
+	n.count = t.count;
+	draft = n;
+	return n;
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+	if (!(key instanceof String)) return null;
+	String k = (String)key;
+	String old = removeValue(k);
+	if (old == null) {
+	    int flag = flagOf(k);
+	    if (flag != 0) {
+		Table t = draft != null ? draft : table;
+		int j = t.find(k, baseLength(k, flag));
+		if (j >= 0 && (t.flags[j] & flag) != 0) {
+		    clearFlag(j, flag);
+		    old = TRUE;
+		}
+	    }
+	}
+	publish();
+	return old;
+    }
+
+    /** {@inheritDoc}
+     * <p>
+     * Readers see either none or all of the properties. */
+    @Override
+    public synchronized void putAll(Map<? extends Object, ? extends Object> t) {
+	try {
+	    for (Map.Entry<? extends Object, ? extends Object> e: t.entrySet())
+		putDraft(e.getKey(), e.getValue());
+	} finally {
+	    publish();
+	}
+    }
+
+    @Override
+    public synchronized void clear() {
+	draft = null;
+	table = new Table(16);
+    }
+
+    @Override
+    public synchronized Object clone() {
+	CompactProperties p = (CompactProperties)super.clone();
+	// the table is not changed once visible, so it can be shared
+	p.table = table;
+	p.draft = null;
+	return p;
+    }
+
+    /** Write the properties as key and value strings, since the table is transient. */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+	out.defaultWriteObject();
+	List<String> keys = keyList();
+	out.writeInt(keys.size());
+	for (String key: keys) {
+	    out.writeObject(key);
+	    out.writeObject(lookup(key));
+	}
+    }
+
+    /** Read the properties written by {@link #writeObject}. */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	table = new Table(16);
+	int n = in.readInt();
+	for (int i = 0; i < n; i++)
+	    putDraft(in.readObject(), in.readObject());
+	publish();
+    }
+
+    /** Return a snapshot of all keys, including shadow keys of flags. */
+    protected List<String> keyList() {
+	Table t = table;
+	List<String> keys = new ArrayList<String>(t.count);
+	for (int i = 0; i < t.keys.length; i++) {
+	    String k = t.keys[i];
+	    if (k == null || k == REMOVED) continue;
+	    if (t.values[i] != null) keys.add(k);
+	    for (int b = 0; b < FLAG_SUFFIXES.length; b++) {
+		if ((t.flags[i] & (1 << b)) != 0)
+		    keys.add(intern(k + FLAG_SUFFIXES[b]));
+	    }
+	}
+	return keys;
+    }
+
+    @Override
+    public Enumeration<Object> keys() {
+	return Collections.enumeration(new ArrayList<Object>(keyList()));
+    }
+
+    @Override
+    public Enumeration<Object> elements() {
+	return Collections.enumeration(values());
+    }
+
+    @Override
+    public Enumeration<?> propertyNames() {
+	return Collections.enumeration(stringPropertyNames());
+    }
+
+    @Override
+    public Set<String> stringPropertyNames() {
+	Set<String> names = new HashSet<String>();
+	if (defaults != null) names.addAll(defaults.stringPropertyNames());
+	names.addAll(keyList());
+	return names;
+    }
+
+    @Override
+    public Set<Object> keySet() {
+	return new AbstractSet<Object>() {
+	    @Override
+	    public Iterator<Object> iterator() {
+		return new KeyIterator();
+	    }
+	    @Override
+	    public int size() {
+		return CompactProperties.this.size();
+	    }
+	    @Override
+	    public boolean contains(Object o) {
+		return containsKey(o);
+	    }
+	    @Override
+	    public boolean remove(Object o) {
+		return CompactProperties.this.remove(o) != null;
+	    }
+	    @Override
+	    public void clear() {
+		CompactProperties.this.clear();
+	    }
+	};
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+	return new AbstractSet<Map.Entry<Object, Object>>() {
+	    @Override
+	    public Iterator<Map.Entry<Object, Object>> iterator() {
+		final KeyIterator it = new KeyIterator();
+		return new Iterator<Map.Entry<Object, Object>>() {
+		    public boolean hasNext() {
+			return it.hasNext();
+		    }
+		    public Map.Entry<Object, Object> next() {
+			final Object key = it.next();
+			return new AbstractMap.SimpleEntry<Object, Object>(key, get(key)) {
+			    @Override
+			    public Object setValue(Object value) {
+				super.setValue(value);
+				return put(key, value);
+			    }
+			};
+		    }
+		    public void remove() {
+			it.remove();
+		    }
+		};
+	    }
+	    @Override
+	    public int size() {
+		return CompactProperties.this.size();
+	    }
+	    @Override
+	    public void clear() {
+		CompactProperties.this.clear();
+	    }
+	};
+    }
+
+    @Override
+    public Collection<Object> values() {
+	return new AbstractCollection<Object>() {
+	    @Override
+	    public Iterator<Object> iterator() {
+		final KeyIterator it = new KeyIterator();
+		return new Iterator<Object>() {
+		    public boolean hasNext() {
+			return it.hasNext();
+		    }
+		    public Object next() {
+			return get(it.next());
+		    }
+		    public void remove() {
+			it.remove();
+		    }
+		};
+	    }
+	    @Override
+	    public int size() {
+		return CompactProperties.this.size();
+	    }
+	};
+    }
+
+    /** Iterator over a snapshot of the keys, that removes from this object. */
+    private class KeyIterator implements Iterator<Object> {
+	private final Iterator<String> it = keyList().iterator();
+	private String last = null;
+
+	public boolean hasNext() {
+	    return it.hasNext();
+	}
+	public Object next() {
+	    if (!it.hasNext()) throw new NoSuchElementException();
+	    return last = it.next();
+	}
+	public void remove() {
+	    if (last == null) throw new IllegalStateException();
+	    CompactProperties.this.remove(last);
+	    last = null;
+	}
+    }
+
+    /** {@inheritDoc}
+     * <p>
+     * The properties are copied first, since the implementation of
+     * {@linkplain Properties} may not use the methods overridden here. */
+    @Override
+    public void store(OutputStream out, String comments) throws IOException {
+	toProperties().store(out, comments);
+    }
+
+    /** {@inheritDoc}
+     * <p>
+     * The properties are copied first, since the implementation of
+     * {@linkplain Properties} may not use the methods overridden here. */
+    @Override
+    public void store(Writer writer, String comments) throws IOException {
+	toProperties().store(writer, comments);
+    }
+
+    @Override
+    public void storeToXML(OutputStream os, String comment, String encoding) throws IOException {
+	toProperties().storeToXML(os, comment, encoding);
+    }
+
+    /** Return a plain copy of these properties, without defaults. */
+    protected synchronized Properties toProperties() {
+	Properties p = new Properties();
+	for (String key: keyList())
+	    p.setProperty(key, lookup(key));
+	return p;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+	if (o == this) return true;
+	if (!(o instanceof Map<?, ?>)) return false;
+	Map<?, ?> m = (Map<?, ?>)o;
+	List<String> keys = keyList();
+	if (keys.size() != m.size()) return false;
+	for (String key: keys) {
+	    if (!lookup(key).equals(m.get(key))) return false;
+	}
+	return true;
+    }
+
+    @Override
+    public int hashCode() {
+	int h = 0;
+	for (String key: keyList())
+	    h += key.hashCode() ^ lookup(key).hashCode();
+	return h;
+    }
+
+    @Override
+    public String toString() {
+	StringBuffer buf = new StringBuffer("{");
+	for (String key: keyList()) {
+	    if (buf.length() > 1) buf.append(", ");
+	    buf.append(key).append('=').append(lookup(key));
+	}
+	return buf.append('}').toString();
+    }
+
+    /** Return the shared copy of a string.
+     * <p>
+     * When the pool is full, the string itself is returned so that
+     * arbitrary keys cannot make it grow without bounds.
+     */
+    public static String intern(String s) {
+	if (s == null) return null;
+	String shared = pool.get(s);
+	if (shared != null) return shared;
+	if (pool.size() >= POOL_MAX) return s;
+	shared = pool.putIfAbsent(s, s);
+	return shared == null ? s : shared;
+    }
+}
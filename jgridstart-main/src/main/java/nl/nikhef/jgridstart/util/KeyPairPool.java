@@ -0,0 +1,177 @@
+package nl.nikhef.jgridstart.util;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/** Pool of key pairs that are generated in the background.
+ * <p>
+ * Generating a key pair can take seconds. When it is known that a key will
+ * be needed soon, like when the user opens the request wizard, {@link #prefill}
+ * starts generating keys for an algorithm and key size on low-priority
+ * threads, up to {@link #getDepth} keys. {@link #get} returns one of these
+ * when available, and generates one on the spot otherwise. Each key pair is
+ * returned only once, and they are kept in memory only.
+ * <p>
+ * The depth is set by the system property {@code jgridstart.keypool.size};
+ * a depth of 0 disables background generation. The number of threads is one
+ * less than the number of processors, so that one remains for the program.
+ *
+ * @author wvengen
+ */
+public class KeyPairPool {
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart.util");
+
+    /** Singleton instance */
+    private static KeyPairPool instance = null;
+
+    /** Key pairs ready to use, by algorithm and key size */
+    protected ConcurrentHashMap<String, BlockingQueue<KeyPair>> ready = new ConcurrentHashMap<String, BlockingQueue<KeyPair>>();
+    /** Number of key pairs being generated, by algorithm and key size */
+    protected ConcurrentHashMap<String, AtomicInteger> busy = new ConcurrentHashMap<String, AtomicInteger>();
+    /** Maximum number of key pairs to keep ready for each algorithm and key size */
+    protected int depth;
+    /** Threads that generate key pairs, created when first needed */
+    protected ExecutorService executor = null;
+
+    /** Return the key pair pool. */
+    public static synchronized KeyPairPool getInstance() {
+	if (instance==null) {
+	    int depth = 1;
+	    try {
+		String s = System.getProperty("jgridstart.keypool.size");
+		if (s!=null) depth = Integer.parseInt(s);
+	    } catch (NumberFormatException e) { }
+	    instance = new KeyPairPool(depth);
+	}
+	return instance;
+    }
+
+    /** Create a new pool.
+     *
+     * @param depth maximum number of key pairs to keep for each algorithm and key size
+     */
+    public KeyPairPool(int depth) {
+	this.depth = Math.max(0, depth);
+    }
+
+    /** Return the maximum number of key pairs kept for each algorithm and key size. */
+    public int getDepth() {
+	return depth;
+    }
+
+    /** Return a key pair, from the pool when available.
+     * <p>
+     * When one was taken from the pool, a new one is generated in the background.
+     *
+     * @param keyalgname key algorithm, e.g. {@literal RSA}
+     * @param keysize key size in bits
+     */
+    public KeyPair get(String keyalgname, int keysize) throws GeneralSecurityException {
+	String id = getId(keyalgname, keysize);
+	BlockingQueue<KeyPair> q = ready.get(id);
+	KeyPair kp = q!=null ? q.poll() : null;
+	if (kp!=null) {
+	    logger.fine("Using pre-generated "+id+" key pair");
+	    prefill(keyalgname, keysize);
+	    return kp;
+	}
+	return generate(keyalgname, keysize);
+    }
+
+    /** Start generating key pairs in the background, until the pool is full.
+     *
+     * @param keyalgname key algorithm, e.g. {@literal RSA}
+     * @param keysize key size in bits
+     */
+    public void prefill(final String keyalgname, final int keysize) {
+	if (depth==0) return;
+	final String id = getId(keyalgname, keysize);
+	ready.putIfAbsent(id, new LinkedBlockingQueue<KeyPair>(depth));
+	busy.putIfAbsent(id, new AtomicInteger(0));
+	final BlockingQueue<KeyPair> q = ready.get(id);
+	final AtomicInteger n = busy.get(id);
+	while (true) {
+	    int cur = n.get();
+	    if (q.size() + cur >= depth) return;
+	    if (!n.compareAndSet(cur, cur+1)) continue;
+	    getExecutor().execute(new Runnable() {
+		public void run() {
+		    try {
+			q.offer(generate(keyalgname, keysize));
+		    } catch (GeneralSecurityException e) {
+			logger.warning("Could not generate "+id+" key pair: "+e.getLocalizedMessage());
+		    } finally {
+			n.decrementAndGet();
+		    }
+		}
+	    });
+	}
+    }
+
+    /** Start generating key pairs for the configured algorithm and key size.
+     * <p>
+     * These are taken from the system properties {@code jgridstart.keyalgname}
+     * and {@code jgridstart.keysize}.
+     */
+    public void prefill() {
+	try {
+	    String alg = System.getProperty("jgridstart.keyalgname", "RSA");
+	    int size = Integer.parseInt(System.getProperty("jgridstart.keysize", "2048"));
+	    prefill(alg, size);
+	} catch (NumberFormatException e) { }
+    }
+
+    /** Return the number of key pairs ready for an algorithm and key size. */
+    public int available(String keyalgname, int keysize) {
+	BlockingQueue<KeyPair> q = ready.get(getId(keyalgname, keysize));
+	return q!=null ? q.size() : 0;
+    }
+
+    /** Forget all key pairs in the pool. */
+    public void clear() {
+	for (BlockingQueue<KeyPair> q: ready.values())
+	    q.clear();
+    }
+
+    /** Generate a new key pair. */
+    protected KeyPair generate(String keyalgname, int keysize) throws GeneralSecurityException {
+	KeyPairGenerator keygen = KeyPairGenerator.getInstance(keyalgname);
+	keygen.initialize(keysize);
+	return keygen.genKeyPair();
+    }
+
+    /** Return the identifier of an algorithm and key size. */
+    protected static String getId(String keyalgname, int keysize) {
+	return keyalgname.toUpperCase()+"-"+keysize;
+    }
+
+    /** Return the background threads, starting them if needed. */
+    protected synchronized ExecutorService getExecutor() {
+	if (executor==null) {
+	    int nthreads = Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+	    ThreadPoolExecutor e = new ThreadPoolExecutor(nthreads, nthreads, 30, TimeUnit.SECONDS,
+		    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "jGridstart-keygen");
+		    t.setDaemon(true);
+		    t.setPriority(Thread.MIN_PRIORITY);
+		    return t;
+		}
+	    });
+	    e.allowCoreThreadTimeOut(true);
+	    executor = e;
+	}
+	return executor;
+    }
+}
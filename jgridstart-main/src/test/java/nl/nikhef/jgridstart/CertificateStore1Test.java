@@ -6,8 +6,17 @@ import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.DSAPublicKey;
 import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import nl.nikhef.jgridstart.ca.CAFactory;
 import nl.nikhef.jgridstart.osutils.FileUtils;
 import nl.nikhef.jgridstart.util.PKCS12KeyStoreUnlimited;
 import nl.nikhef.jgridstart.passwordcache.PasswordCache;
@@ -50,6 +59,115 @@ public class CertificateStore1Test extends CertificateBaseTest {
 	assertEquals(1, store.size());
     }
     
+    /** Load {@linkplain CertificateStore} using multiple threads */
+    @Test
+    public void testLoadParallel() throws Exception {
+	File path = newTestStore(5);
+	CertificateStore store1 = new CertificateStore();
+	store1.setLoadThreads(1);
+	store1.load(path);
+	CertificateStore store2 = new CertificateStore();
+	store2.setLoadThreads(3);
+	final int[] events = {0};
+	store2.addListDataListener(new ListDataListener() {
+	    public void intervalAdded(ListDataEvent e) { events[0]++; }
+	    public void intervalRemoved(ListDataEvent e) { }
+	    public void contentsChanged(ListDataEvent e) { }
+	});
+	store2.load(path);
+	assertEquals(5, store2.size());
+	assertEquals(1, events[0]);
+	// order must be the same as when loaded serially
+	for (int i=0; i<store1.size(); i++)
+	    assertEquals(store1.get(i).getPath(), store2.get(i).getPath());
+    }
+
+    /** Load {@linkplain CertificateStore} using its index */
+    @Test
+    public void testLoadIndex() throws Exception {
+	File path = newTestStore(2);
+	CertificateStore store1 = new CertificateStore(path);
+	assertTrue(new File(path, CertificateStoreIndex.indexFilename).exists());
+	// second load must not parse certificates but give the same information
+	CertificateStore store2 = new CertificateStore(path);
+	assertEquals(2, store2.size());
+	String[] keys = { "cert", "subject", "issuer", "cert.serial", "modulus", "valid", "valid.notafter", "state.icon" };
+	for (int i=0; i<store2.size(); i++) {
+	    for (int j=0; j<keys.length; j++)
+		assertEquals(store1.get(i).getProperty(keys[j]), store2.get(i).getProperty(keys[j]));
+	    assertNull(store2.get(i).cert);
+	}
+	// changed certificate must be parsed again
+	File certFile = store2.get(0).getCertFile();
+	certFile.setLastModified(certFile.lastModified() - 10000);
+	CertificateStore store3 = new CertificateStore(path);
+	assertNotNull(store3.get(0).cert);
+	assertNull(store3.get(1).cert);
+    }
+
+    /** Load {@linkplain CertificateStore} lazily */
+    @Test
+    public void testLoadLazy() throws Exception {
+	File path = newTestStore(2);
+	CertificateStore store1 = new CertificateStore();
+	store1.setUseIndex(false);
+	store1.setLazyLoad(false);
+	store1.load(path);
+	CertificateStore store2 = new CertificateStore();
+	store2.setUseIndex(false);
+	store2.setLazyLoad(true);
+	store2.load(path);
+	assertEquals(2, store2.size());
+	for (int i=0; i<store2.size(); i++) {
+	    // nothing parsed before it is needed
+	    assertNull(store2.get(i).cert);
+	    assertFalse(store2.get(i).validated);
+	    assertEquals(store1.get(i).getProperty("subject"), store2.get(i).getProperty("subject"));
+	    assertEquals(store1.get(i).getProperty("state.message"), store2.get(i).getProperty("state.message"));
+	    assertTrue(store2.get(i).validated);
+	}
+    }
+
+    /** Make sure derived properties are memoised until invalidated */
+    @Test
+    public void testPropertyCache() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(1));
+	CertificatePair cert = store.get(0);
+	String modulus = cert.getProperty("modulus");
+	assertNotNull(modulus);
+	assertSame(modulus, cert.getProperty("modulus"));
+	// setting a property discards memoised values
+	cert.setProperty("renewal.childstarted", "true");
+	assertNotSame(modulus, cert.getProperty("modulus"));
+	assertEquals(modulus, cert.getProperty("modulus"));
+	// reloading as well
+	modulus = cert.getProperty("modulus");
+	cert.reloadFiles();
+	assertNotSame(modulus, cert.getProperty("modulus"));
+    }
+
+    /** Make sure only changed certificates are stored */
+    @Test
+    public void testDirtyTracking() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(1));
+	CertificatePair cert = store.get(0);
+	assertFalse(CertificatePairFlusher.isDirty(cert));
+	// volatile properties are not stored
+	cert.setProperty("foo.volatile", "true");
+	cert.setProperty("foo", "bar");
+	assertFalse(CertificatePairFlusher.isDirty(cert));
+	// others are
+	cert.setProperty("foo2", "bar");
+	assertTrue(CertificatePairFlusher.isDirty(cert));
+	CertificatePairFlusher.flush();
+	assertFalse(CertificatePairFlusher.isDirty(cert));
+	assertTrue(cert.getPropertiesFile().exists());
+	cert.remove("foo2");
+	assertTrue(CertificatePairFlusher.isDirty(cert));
+	cert.store();
+	assertFalse(CertificatePairFlusher.isDirty(cert));
+    }
+
     /** Make sure user-stuff is not confusing the store */
     @Test
     public void testLitterIsOk() throws Exception {
@@ -104,7 +222,326 @@ public class CertificateStore1Test extends CertificateBaseTest {
 	assertTrue(cert.isCertificationRequestProcessed());
 	System.clearProperty("jgridstart.ca.local.hold");
     }
-    
+
+    /** Test if refresh of changes picks up added, removed and changed items */
+    @Test
+    public void testRefreshChanged() throws Exception {
+	File path = newTestStore(0);
+	CertificatePair cert = newTestCertificate(new File(path, "user-cert-0001"));
+	CertificateStore store = new CertificateStore(path);
+	store.refreshChanged();
+	assertEquals(1, store.size());
+	// add
+	CertificatePair other = newTestCertificate(new File(path, "user-cert-0002"));
+	store.refreshChanged();
+	assertEquals(2, store.size());
+	// change
+	String serial = store.get(0).getProperty("cert.serial");
+	File certFile = store.get(0).getCertFile();
+	FileUtils.CopyFile(other.getCertFile(), certFile);
+	certFile.setLastModified(certFile.lastModified() + 10000);
+	store.refreshChanged();
+	assertFalse(serial.equals(store.get(0).getProperty("cert.serial")));
+	assertEquals(other.getProperty("cert.serial"), store.get(0).getProperty("cert.serial"));
+	// remove
+	FileUtils.recursiveDelete(cert.getPath());
+	store.refreshChanged();
+	assertEquals(1, store.size());
+    }
+
+    /** Test finding certificates using lookups */
+    @Test
+    public void testLookup() throws Exception {
+	File path = newTestStore(2);
+	newTestRequest(new File(path, "user-cert-0003"));
+	CertificateStore store = new CertificateStore(path);
+	assertEquals(3, store.size());
+	CertificatePair cert = store.findByPath(new File(path, "user-cert-0002"));
+	assertNotNull(cert);
+	assertEquals(store.indexOf(cert), store.indexOf(new CertificatePair(cert.getPath())));
+	assertSame(cert, store.get(store.indexOf(cert)));
+	// by certificate properties
+	assertEquals(1, store.findBySerial(cert.getProperty("cert.serial")).size());
+	assertSame(cert, store.findBySerial(cert.getProperty("cert.serial")).get(0));
+	assertSame(cert, store.findByModulus(cert.getProperty("modulus")).get(0));
+	assertEquals(2, store.findIssuedBy(cert.getCA().getCACertificate()).size());
+	assertEquals(2, store.findExpiringBefore(new Date(Long.MAX_VALUE)).size());
+	assertEquals(0, store.findExpiringBefore(new Date()).size());
+	// request without certificate
+	assertEquals(1, store.findPendingRequests().size());
+	assertSame(store.findByPath(new File(path, "user-cert-0003")), store.findPendingRequests().get(0));
+	// removal is picked up
+	store.delete(cert);
+	assertNull(store.findByPath(cert.getPath()));
+	assertEquals(-1, store.indexOf(cert));
+    }
+
+    /** Test that lookups are updated for changed entries only */
+    @Test
+    public void testLookupIncremental() throws Exception {
+	File path = newTestStore(2);
+	CertificateStore store = new CertificateStore(path);
+	CertificatePair cert = store.get(0);
+	String serial = cert.getProperty("cert.serial");
+	assertSame(cert, store.findBySerial(serial).get(0));
+	CertificateLookup lookup = store.lookup;
+	// change certificate of an entry
+	CertificatePair other = newTestCertificate(new File(tmpBasePath, "other-cert"));
+	File certFile = cert.getCertFile();
+	FileUtils.CopyFile(other.getCertFile(), certFile);
+	certFile.setLastModified(certFile.lastModified() + 10000);
+	store.refreshChanged();
+	assertEquals(0, store.findBySerial(serial).size());
+	assertSame(cert, store.findBySerial(other.getProperty("cert.serial")).get(0));
+	// add and remove entries
+	CertificatePair req = newTestRequest(new File(path, "user-cert-0003"));
+	store.add(req);
+	assertSame(req, store.findPendingRequests().get(0));
+	store.remove(req);
+	assertEquals(0, store.findPendingRequests().size());
+	assertNull(store.findByPath(req.getPath()));
+	// replace an entry
+	CertificatePair old = store.get(1);
+	store.set(1, req);
+	assertEquals(0, store.findBySerial(old.getProperty("cert.serial")).size());
+	assertSame(req, store.findPendingRequests().get(0));
+	// all without rebuilding the indexes
+	assertSame(lookup, store.lookup);
+    }
+
+    /** Test renewal notification by the expiry scheduler */
+    @Test
+    public void testExpiryScheduler() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(2));
+	final List<CertificatePair> due = Collections.synchronizedList(new ArrayList<CertificatePair>());
+	CertificateExpiryScheduler scheduler = new CertificateExpiryScheduler(store);
+	scheduler.addExpiryListener(new CertificateExpiryScheduler.ExpiryListener() {
+	    public void renewalDue(CertificatePair cert) {
+		due.add(cert);
+	    }
+	    public void certificateExpired(CertificatePair cert) {
+		fail("Certificate should not be expired: "+cert);
+	    }
+	});
+	try {
+	    // test certificates are valid shorter than the warning period
+	    scheduler.start();
+	    Thread.sleep(500);
+	    assertEquals(2, due.size());
+	    assertTrue(Boolean.valueOf(store.get(0).getProperty("valid.notafter.warning")));
+	    // next is expiry
+	    long notAfter = Math.min(Long.valueOf(store.get(0).getProperty("valid.notafter.time")),
+		    Long.valueOf(store.get(1).getProperty("valid.notafter.time")));
+	    assertEquals(notAfter, scheduler.getNextTime());
+	    // each certificate is reported only once
+	    store.get(0).setProperty("foo", "bar");
+	    Thread.sleep(500);
+	    assertEquals(2, due.size());
+	} finally {
+	    scheduler.stop();
+	}
+    }
+
+    /** Test that the expiry scheduler only looks at changed certificates */
+    @Test
+    public void testExpirySchedulerIncremental() throws Exception {
+	File path = newTestStore(2);
+	CertificateStore store = new CertificateStore(path);
+	final List<CertificatePair> due = Collections.synchronizedList(new ArrayList<CertificatePair>());
+	final int[] rebuilds = new int[] { 0 };
+	CertificateExpiryScheduler scheduler = new CertificateExpiryScheduler(store) {
+	    @Override
+	    protected void rebuild() {
+		rebuilds[0]++;
+		super.rebuild();
+	    }
+	};
+	scheduler.addExpiryListener(new CertificateExpiryScheduler.ExpiryListener() {
+	    public void renewalDue(CertificatePair cert) {
+		due.add(cert);
+	    }
+	    public void certificateExpired(CertificatePair cert) {
+		fail("Certificate should not be expired: "+cert);
+	    }
+	});
+	try {
+	    scheduler.start();
+	    Thread.sleep(500);
+	    assertEquals(2, due.size());
+	    // added certificate is reported
+	    CertificatePair cert = newTestCertificate(new File(path, "user-cert-0003"));
+	    store.add(cert);
+	    Thread.sleep(500);
+	    assertEquals(3, due.size());
+	    assertSame(cert, due.get(2));
+	    // removed certificate is forgotten
+	    store.remove(cert);
+	    store.get(0).setProperty("foo", "bar");
+	    Thread.sleep(500);
+	    assertEquals(2, scheduler.queued.size());
+	    assertFalse(scheduler.reported.containsKey(cert));
+	    assertEquals(3, due.size());
+	    // without rebuilding the queue
+	    assertEquals(1, rebuilds[0]);
+	} finally {
+	    scheduler.stop();
+	}
+    }
+
+    /** Test creating many new entries on one day */
+    @Test
+    public void testNewItemMany() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(0));
+	HashSet<File> dirs = new HashSet<File>();
+	for (int i=0; i<150; i++) {
+	    File f = store.newItem();
+	    assertTrue(f.isDirectory());
+	    assertTrue(dirs.add(f));
+	}
+    }
+
+    /** Test creating and loading entries in shard subdirectories */
+    @Test
+    public void testNewItemSharded() throws Exception {
+	File path = newTestStore(1);
+	CertificateStore store = new CertificateStore(path);
+	store.setShards(4);
+	File f = store.newItem();
+	assertTrue(f.getParentFile().getName().startsWith(store.shardPrefix));
+	assertEquals(path, f.getParentFile().getParentFile());
+	newTestCertificate(f);
+	// both existing and sharded entries are loaded
+	store = new CertificateStore(path);
+	assertEquals(2, store.size());
+	assertNotNull(store.findByPath(f));
+	// and removed when gone
+	FileUtils.recursiveDelete(f);
+	store.refreshChanged();
+	assertEquals(1, store.size());
+    }
+
+    /** Test that stores with different numbers of shards create distinct entries */
+    @Test
+    public void testNewItemShardedOther() throws Exception {
+	File path = newTestStore(0);
+	CertificateStore[] stores = new CertificateStore[4];
+	for (int i=0; i<stores.length; i++) {
+	    stores[i] = new CertificateStore(path);
+	    stores[i].setShards(i*5);
+	}
+	HashSet<String> names = new HashSet<String>();
+	for (int j=0; j<10; j++) {
+	    for (int i=0; i<stores.length; i++)
+		assertTrue(names.add(stores[i].newItem().getName()));
+	}
+    }
+
+    /** Test that index entries are named by their path in the store */
+    @Test
+    public void testIndexNames() throws Exception {
+	File path = newTestStore(0);
+	CertificateStoreIndex index = new CertificateStoreIndex(path);
+	assertEquals("", index.getName(path));
+	assertEquals("user-cert-foo", index.getName(new File(path, "user-cert-foo")));
+	assertEquals("shard-0a/user-cert-foo", index.getName(new File(new File(path, "shard-0a"), "user-cert-foo")));
+    }
+
+    /** Test that an update of many properties notifies listeners once */
+    @Test
+    public void testUpdate() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(2));
+	final int[] events = { 0 };
+	store.addListDataListener(new ListDataListener() {
+	    public void intervalAdded(ListDataEvent e) { }
+	    public void intervalRemoved(ListDataEvent e) { }
+	    public void contentsChanged(ListDataEvent e) {
+		assertEquals(1, e.getIndex0());
+		events[0]++;
+	    }
+	});
+	CertificatePair cert = store.get(1);
+	cert.beginUpdate();
+	try {
+	    cert.beginUpdate();
+	    for (int i=0; i<10; i++)
+		cert.setProperty("foo"+i, "bar");
+	    cert.endUpdate();
+	    assertEquals(0, events[0]);
+	} finally {
+	    cert.endUpdate();
+	}
+	assertEquals(1, events[0]);
+	// no changes, no event
+	cert.beginUpdate();
+	cert.setProperty("foo1", "bar");
+	cert.endUpdate();
+	assertEquals(1, events[0]);
+    }
+
+    /** Test checking all pending requests at once */
+    @Test
+    public void testPollPendingRequests() throws Exception {
+	File path = newTestStore(1);
+	for (int i=0; i<3; i++)
+	    newTestRequest(new File(path, "user-cert-req-000"+i));
+	CertificateStore store = new CertificateStore(path);
+	assertEquals(3, store.findPendingRequests().size());
+	final CertificateRequestPoller.Result[] done = { null };
+	CertificateRequestPoller poller = new CertificateRequestPoller(store);
+	poller.setInterval(0);
+	poller.addPollListener(new CertificateRequestPoller.PollListener() {
+	    public void pollDone(CertificateRequestPoller.Result result) {
+		done[0] = result;
+	    }
+	});
+	// not yet signed
+	System.setProperty("jgridstart.ca.local.hold", "true");
+	try {
+	    CertificateRequestPoller.Result result = poller.poll();
+	    assertSame(result, done[0]);
+	    assertEquals(3, result.getPending().size());
+	    assertEquals(0, result.getIssued().size());
+	} finally {
+	    System.clearProperty("jgridstart.ca.local.hold");
+	}
+	// now signed
+	CertificateRequestPoller.Result result = poller.poll();
+	assertEquals(3, result.getIssued().size());
+	assertEquals(0, result.getFailed().size());
+	for (CertificatePair cert: result.getIssued())
+	    assertNotNull(cert.getCertificate());
+	assertEquals(0, store.findPendingRequests().size());
+    }
+
+    /** Test that certificates are routed to the CA that issued them */
+    @Test
+    public void testIssuerCA() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(2));
+	for (CertificatePair cert: store) {
+	    assertSame(CAFactory.getDefault(), cert.getCA());
+	    assertSame(CAFactory.getDefault(), CAFactory.getIssuer(cert.getCertificate()));
+	    assertEquals("true", cert.getProperty("ca_supported"));
+	    assertEquals(CAFactory.getDefault().getClass().getName(), cert.getProperty("ca.provider"));
+	}
+	// same instance by class name or short name
+	assertSame(CAFactory.getCA("LocalCA"), CAFactory.getCA("nl.nikhef.jgridstart.ca.LocalCA"));
+    }
+
+    /** Test that certificates share their property keys and flags */
+    @Test
+    public void testInternedProperties() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(2));
+	CertificatePair a = store.get(0), b = store.get(1);
+	a.setProperty(new String("foo.lock"), new String("true"));
+	b.setProperty(new String("foo.lock"), new String("true"));
+	String ka = null, kb = null;
+	for (Object k: a.keySet()) if (k.equals("foo.lock")) ka = (String)k;
+	for (Object k: b.keySet()) if (k.equals("foo.lock")) kb = (String)k;
+	assertSame(ka, kb);
+	assertSame(a.get("foo.lock"), b.get("foo.lock"));
+	assertEquals("true", b.getProperty("foo.lock"));
+    }
+
     /** Test removal by index */
     @Test
     public void testDeleteInt() throws Exception {
@@ -363,7 +800,23 @@ public class CertificateStore1Test extends CertificateBaseTest {
 	assertEquals(2048, ((RSAPublicKey)cert.getCertificate().getPublicKey()).getModulus().bitLength());
 	assertEquals("SHA256WithRSAEncryption", cert.getCertificate().getSigAlgName());
     }
-    
+
+    /** Check that setting the key algorithm as certificate property works as well */
+    @Test
+    public void testCryptoKeyAlgProperty() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(0));
+	setAlgorithm("DSA", 1024, "SHA1WithDSA");
+	Properties p = new Properties();
+	p.setProperty("subject", "/CN=testCryptoKeyAlgProperty");
+	p.setProperty("keyalgname", "RSA");
+	p.setProperty("keysize", "1024");
+	p.setProperty("sigalgname", "SHA1WithRSA");
+	assertEquals("RSA", CertificatePair.getKeyAlgorithm(p));
+	CertificatePair cert = store.generateRequest(p, "foobar123".toCharArray());
+	assertEquals("RSA", cert.getProperty("keyalgname"));
+	assertEquals("1024", cert.getProperty("keysize"));
+    }
+
     /** Verify that subject is a PRINTABLESTRING (and not UTF8STRING).
      * <p>
      * This is required for some grid software to work properly (mkproxy).
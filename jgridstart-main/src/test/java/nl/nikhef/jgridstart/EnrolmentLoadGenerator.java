@@ -0,0 +1,347 @@
+package nl.nikhef.jgridstart;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import nl.nikhef.jgridstart.ca.LocalCAServer;
+import nl.nikhef.jgridstart.osutils.FileUtils;
+import nl.nikhef.jgridstart.passwordcache.PasswordCache;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+
+/**
+ * Load generator for the complete enrolment process.
+ * <p>
+ * A number of virtual users concurrently generate a request in a
+ * {@link CertificateStore}, upload it, poll until it is processed, and
+ * download the certificate, using the same methods as the program does.
+ * The time of each stage is measured, and a {@link Report} with throughput,
+ * latency percentiles and error rates per stage is returned.
+ * <p>
+ * Any {@link nl.nikhef.jgridstart.ca.CA} implementation can be used, by default
+ * the one configured with {@code jgridstart.ca.provider}. From the command-line,
+ * an in-process {@link LocalCAServer} can be started to test the network part
+ * of {@code TestCA} or {@code DutchGridCA} as well; run with {@code --help}
+ * for options.
+ *
+ * @author wvengen
+ */
+public class EnrolmentLoadGenerator {
+
+    static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart");
+
+    /** Stages of an enrolment, in order */
+    public static final String[] STAGES = { "generate", "upload", "poll", "download" };
+    public static final int GENERATE = 0;
+    public static final int UPLOAD = 1;
+    public static final int POLL = 2;
+    public static final int DOWNLOAD = 3;
+
+    /** Store to create requests in */
+    protected CertificateStore store;
+    /** CA to upload to, or {@code null} for the default */
+    protected String caName = null;
+    /** Number of concurrent virtual users */
+    protected int users = 4;
+    /** Total number of enrolments */
+    protected int enrolments = 100;
+    /** Key size of requests, or 0 for the default */
+    protected int keysize = 0;
+    /** Time in milliseconds between polls */
+    protected long pollInterval = 100;
+    /** Maximum number of polls before an enrolment is considered failed */
+    protected int maxPolls = 100;
+
+    /** Create a new load generator.
+     *
+     * @param store certificate store to create requests in
+     */
+    public EnrolmentLoadGenerator(CertificateStore store) {
+	this.store = store;
+    }
+
+    /** Set the name of the CA to upload requests to, or {@code null} for the default. */
+    public void setCA(String name) {
+	caName = name;
+    }
+    public void setUsers(int n) {
+	users = Math.max(1, n);
+    }
+    public void setEnrolments(int n) {
+	enrolments = Math.max(0, n);
+    }
+    public void setKeysize(int n) {
+	keysize = n;
+    }
+    /** Set the time between polls and the maximum number of polls. */
+    public void setPolling(long interval, int max) {
+	pollInterval = Math.max(0, interval);
+	maxPolls = Math.max(1, max);
+    }
+
+    /** Run all enrolments and return the results. */
+    public Report run() throws InterruptedException {
+	final Report report = new Report(users);
+	final AtomicInteger next = new AtomicInteger(0);
+	Thread[] threads = new Thread[users];
+	long start = System.nanoTime();
+	for (int t=0; t<users; t++) {
+	    threads[t] = new Thread(new Runnable() {
+		public void run() {
+		    int i;
+		    while ((i = next.getAndIncrement()) < enrolments)
+			enrol(i, report);
+		}
+	    }, "enrolment-load-"+t);
+	    threads[t].start();
+	}
+	try {
+	    for (Thread t: threads)
+		t.join();
+	} finally {
+	    for (Thread t: threads)
+		t.interrupt();
+	}
+	report.elapsed = System.nanoTime() - start;
+	logger.info("Enrolment load test finished\n"+report);
+	return report;
+    }
+
+    /** Perform a single enrolment, recording each stage in the report.
+     * <p>
+     * When a stage fails, it is recorded as an error and the enrolment is
+     * stopped.
+     */
+    protected void enrol(int i, Report report) {
+	int stage = GENERATE;
+	long cycle = System.nanoTime();
+	long t = cycle;
+	try {
+	    Properties p = new Properties();
+	    p.setProperty("subject", "/O=dutchgrid/O=users/O=loadtest/CN=Load Test User #"+i);
+	    if (keysize > 0) p.setProperty("keysize", Integer.toString(keysize));
+	    char[] pw = ("loadtest-"+i).toCharArray();
+	    CertificatePair cert = store.generateRequest(p, pw);
+	    PasswordCache.getInstance().set(cert.getKeyFile().getCanonicalPath(), pw);
+	    cert.setProperty("fullname", "Load Test User #"+i);
+	    cert.setProperty("request.fullname", "Load Test User #"+i);
+	    cert.setProperty("email", "loadtest"+i+"@example.org");
+	    cert.setProperty("agreecps", "true");
+	    if (caName!=null) cert.setProperty("ca.provider", caName);
+	    t = report.record(stage, t);
+
+	    stage = UPLOAD;
+	    cert.uploadRequest();
+	    t = report.record(stage, t);
+
+	    stage = POLL;
+	    int polls = 0;
+	    while (!cert.isCertificationRequestProcessed()) {
+		if (++polls >= maxPolls)
+		    throw new IOException("Request not processed after "+polls+" polls");
+		Thread.sleep(pollInterval);
+	    }
+	    t = report.record(stage, t);
+
+	    stage = DOWNLOAD;
+	    cert.downloadCertificate();
+	    if (cert.getCertificate()==null)
+		throw new IOException("No certificate downloaded");
+	    report.record(stage, t);
+	    report.completed(cycle);
+
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    report.error(stage, e);
+	} catch (Exception e) {
+	    report.error(stage, e);
+	}
+    }
+
+    /** Results of a load test */
+    public static class Report {
+	/** Durations in nanoseconds, for each stage */
+	protected List<List<Long>> durations = new ArrayList<List<Long>>();
+	/** Duration in nanoseconds of complete enrolments */
+	protected List<Long> cycles = new ArrayList<Long>();
+	/** Number of errors, for each stage */
+	protected int[] errors = new int[STAGES.length];
+	/** First error message, for each stage */
+	protected String[] firstError = new String[STAGES.length];
+	/** Number of virtual users */
+	protected int users;
+	/** Total time in nanoseconds */
+	protected long elapsed = 0;
+
+	protected Report(int users) {
+	    this.users = users;
+	    for (int i=0; i<STAGES.length; i++)
+		durations.add(new ArrayList<Long>());
+	}
+
+	/** Record a successful stage that started at {@code start}, return the current time. */
+	protected synchronized long record(int stage, long start) {
+	    long now = System.nanoTime();
+	    durations.get(stage).add(now - start);
+	    return now;
+	}
+	/** Record a complete enrolment that started at {@code start}. */
+	protected synchronized void completed(long start) {
+	    cycles.add(System.nanoTime() - start);
+	}
+	/** Record a failed stage. */
+	protected synchronized void error(int stage, Exception e) {
+	    if (errors[stage]++ == 0)
+		firstError[stage] = e.toString();
+	    logger.fine("Enrolment failed at "+STAGES[stage]+": "+e);
+	}
+
+	/** Return the number of completed enrolments. */
+	public synchronized int getCompleted() {
+	    return cycles.size();
+	}
+	/** Return the number of stages that succeeded. */
+	public synchronized int getCount(int stage) {
+	    return durations.get(stage).size();
+	}
+	/** Return the number of stages that failed. */
+	public synchronized int getErrors(int stage) {
+	    return errors[stage];
+	}
+	/** Return the fraction of attempts of a stage that failed. */
+	public synchronized double getErrorRate(int stage) {
+	    int n = getCount(stage) + errors[stage];
+	    return n==0 ? 0 : (double)errors[stage] / n;
+	}
+	/** Return the total duration in milliseconds. */
+	public long getElapsed() {
+	    return elapsed / 1000000;
+	}
+	/** Return the number of completed enrolments per second. */
+	public synchronized double getThroughput() {
+	    return elapsed==0 ? 0 : cycles.size() * 1e9 / elapsed;
+	}
+	/** Return a latency percentile of a stage in milliseconds.
+	 *
+	 * @param stage stage, or {@code -1} for complete enrolments
+	 * @param pct percentile, between 0 and 100
+	 */
+	public synchronized double getPercentile(int stage, double pct) {
+	    return percentile(stage<0 ? cycles : durations.get(stage), pct) / 1e6;
+	}
+
+	/** Return a percentile of a list using the nearest-rank method, or 0 when empty. */
+	protected static long percentile(List<Long> values, double pct) {
+	    if (values.size()==0) return 0;
+	    Long[] sorted = values.toArray(new Long[values.size()]);
+	    Arrays.sort(sorted);
+	    int rank = (int)Math.ceil(pct / 100 * sorted.length);
+	    return sorted[Math.max(0, Math.min(sorted.length-1, rank-1))];
+	}
+
+	@Override
+	public synchronized String toString() {
+	    StringBuffer s = new StringBuffer();
+	    s.append(String.format("%d enrolments completed in %d ms by %d users: %.2f enrolments/s\n",
+		    getCompleted(), getElapsed(), users, getThroughput()));
+	    s.append(String.format("%-10s %7s %7s %7s %9s %9s %9s\n",
+		    "stage", "ok", "errors", "err%", "p50(ms)", "p95(ms)", "p99(ms)"));
+	    for (int i=-1; i<STAGES.length; i++) {
+		String name = i<0 ? "total" : STAGES[i];
+		int n = i<0 ? getCompleted() : getCount(i);
+		int e = 0;
+		for (int j=0; j<STAGES.length; j++)
+		    if (i<0 || i==j) e += errors[j];
+		double rate = i<0 ? (n+e==0 ? 0 : (double)e/(n+e)) : getErrorRate(i);
+		s.append(String.format("%-10s %7d %7d %6.1f%% %9.1f %9.1f %9.1f\n", name, n, e, rate*100,
+			getPercentile(i, 50), getPercentile(i, 95), getPercentile(i, 99)));
+	    }
+	    for (int i=0; i<STAGES.length; i++) {
+		if (firstError[i]!=null)
+		    s.append("first "+STAGES[i]+" error: "+firstError[i]+"\n");
+	    }
+	    return s.toString();
+	}
+    }
+
+    /** Command-line entry point */
+    public static void main(String[] args) throws Exception {
+	Options opts = getCLIOptions();
+	CommandLine line = new GnuParser().parse(opts, args);
+	if (line.hasOption("help")) {
+	    new HelpFormatter().printHelp("EnrolmentLoadGenerator", opts);
+	    return;
+	}
+
+	// do not ask for passwords
+	PasswordCache.getInstance().setUI(PasswordCache.UI_NONE);
+	PasswordCache.getInstance().setAlwaysAskForEncrypt(false);
+	if (System.getProperty("jgridstart.ca.provider")==null)
+	    System.setProperty("jgridstart.ca.provider", "LocalCA");
+
+	LocalCAServer server = null;
+	String caName = line.getOptionValue("ca");
+	if (line.hasOption("server")) {
+	    server = new LocalCAServer();
+	    server.start();
+	    caName = line.getOptionValue("server");
+	    System.getProperties().putAll(server.getProperties(caName));
+	}
+
+	File path = line.hasOption("store") ? new File(line.getOptionValue("store")) :
+	    FileUtils.createTempDir("loadtest");
+	try {
+	    CertificateStore store = new CertificateStore(path);
+	    EnrolmentLoadGenerator gen = new EnrolmentLoadGenerator(store);
+	    gen.setCA(caName);
+	    gen.setUsers(Integer.parseInt(line.getOptionValue("users", "4")));
+	    gen.setEnrolments(Integer.parseInt(line.getOptionValue("number", "100")));
+	    gen.setKeysize(Integer.parseInt(line.getOptionValue("keysize", "0")));
+	    gen.setPolling(Long.parseLong(line.getOptionValue("interval", "100")), 100);
+	    System.out.print(gen.run());
+	} finally {
+	    if (server!=null) server.stop();
+	    if (!line.hasOption("store")) FileUtils.recursiveDelete(path);
+	}
+    }
+
+    /** return the command-line Options for the load generator */
+    @SuppressWarnings("static-access") // to use OptionBuilder conveniently
+    protected static Options getCLIOptions() {
+	Options opts = new Options();
+	opts.addOption(new Option("h", "help", false, "show help message"));
+	opts.addOption(OptionBuilder.withArgName("n").hasArg()
+		.withDescription("number of concurrent virtual users (default 4)")
+		.withLongOpt("users").create('u'));
+	opts.addOption(OptionBuilder.withArgName("n").hasArg()
+		.withDescription("total number of enrolments (default 100)")
+		.withLongOpt("number").create('n'));
+	opts.addOption(OptionBuilder.withArgName("bits").hasArg()
+		.withDescription("key size of requests (default from configuration)")
+		.withLongOpt("keysize").create('k'));
+	opts.addOption(OptionBuilder.withArgName("ms").hasArg()
+		.withDescription("time between polls in milliseconds (default 100)")
+		.withLongOpt("interval").create('i'));
+	opts.addOption(OptionBuilder.withArgName("name").hasArg()
+		.withDescription("CA implementation to use (default from jgridstart.ca.provider, or LocalCA)")
+		.withLongOpt("ca").create('c'));
+	opts.addOption(OptionBuilder.withArgName("name").hasArg()
+		.withDescription("start a local CA server and use it with CA implementation TestCA or DutchGridCA")
+		.withLongOpt("server").create('S'));
+	opts.addOption(OptionBuilder.withArgName("store").hasArg()
+		.withDescription("certificate store to use (default temporary directory)")
+		.withLongOpt("store").create('s'));
+	return opts;
+    }
+}
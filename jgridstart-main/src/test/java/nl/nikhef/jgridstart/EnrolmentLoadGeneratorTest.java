@@ -0,0 +1,64 @@
+package nl.nikhef.jgridstart;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/** Test {@link EnrolmentLoadGenerator} using {@link nl.nikhef.jgridstart.ca.LocalCA} */
+public class EnrolmentLoadGeneratorTest extends CertificateBaseTest {
+
+    /** Helper method: return a generator with small keys on a new store */
+    protected EnrolmentLoadGenerator newGenerator(int users, int n) throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(0));
+	EnrolmentLoadGenerator gen = new EnrolmentLoadGenerator(store);
+	gen.setUsers(users);
+	gen.setEnrolments(n);
+	gen.setKeysize(512);
+	return gen;
+    }
+
+    /** All enrolments complete and each stage is measured */
+    @Test
+    public void testRun() throws Exception {
+	EnrolmentLoadGenerator.Report report = newGenerator(3, 8).run();
+	assertEquals(8, report.getCompleted());
+	for (int i=0; i<EnrolmentLoadGenerator.STAGES.length; i++) {
+	    assertEquals(8, report.getCount(i));
+	    assertEquals(0, report.getErrors(i));
+	    assertTrue(report.getPercentile(i, 50) <= report.getPercentile(i, 99));
+	}
+	assertTrue(report.getThroughput() > 0);
+	assertTrue(report.toString().contains("download"));
+    }
+
+    /** Requests that are not processed count as poll errors */
+    @Test
+    public void testPollErrors() throws Exception {
+	System.setProperty("jgridstart.ca.local.hold", "true");
+	try {
+	    EnrolmentLoadGenerator gen = newGenerator(2, 3);
+	    gen.setPolling(1, 2);
+	    EnrolmentLoadGenerator.Report report = gen.run();
+	    assertEquals(0, report.getCompleted());
+	    assertEquals(3, report.getCount(EnrolmentLoadGenerator.UPLOAD));
+	    assertEquals(3, report.getErrors(EnrolmentLoadGenerator.POLL));
+	    assertEquals(1.0, report.getErrorRate(EnrolmentLoadGenerator.POLL), 0.001);
+	    assertEquals(0, report.getCount(EnrolmentLoadGenerator.DOWNLOAD));
+	} finally {
+	    System.clearProperty("jgridstart.ca.local.hold");
+	}
+    }
+
+    /** Nearest-rank percentiles */
+    @Test
+    public void testPercentile() throws Exception {
+	List<Long> values = new ArrayList<Long>();
+	for (long i=100; i>=1; i--)
+	    values.add(i);
+	assertEquals(50, EnrolmentLoadGenerator.Report.percentile(values, 50));
+	assertEquals(95, EnrolmentLoadGenerator.Report.percentile(values, 95));
+	assertEquals(100, EnrolmentLoadGenerator.Report.percentile(values, 100));
+	assertEquals(1, EnrolmentLoadGenerator.Report.percentile(values, 0));
+    }
+}
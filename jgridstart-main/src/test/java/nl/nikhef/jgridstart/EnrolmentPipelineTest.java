@@ -0,0 +1,102 @@
+package nl.nikhef.jgridstart;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+/** Test {@link EnrolmentPipeline} using {@link nl.nikhef.jgridstart.ca.LocalCA} */
+public class EnrolmentPipelineTest extends CertificateBaseTest {
+
+    /** Helper method: return a pipeline with a number of enrolments */
+    protected EnrolmentPipeline newPipeline(CertificateStore store, int n) {
+	EnrolmentPipeline pipeline = new EnrolmentPipeline(store);
+	pipeline.setQueueSize(2);
+	for (int i=0; i<n; i++) {
+	    Properties p = new Properties();
+	    p.setProperty("subject", "/O=dutchgrid/O=users/O=nikhef/CN=Pipeline User #"+i);
+	    p.setProperty("keysize", "512");
+	    p.setProperty("email", "pipeline"+i+"@example.org");
+	    pipeline.add("user"+i, p, ("pipeline_password-"+i).toCharArray());
+	}
+	return pipeline;
+    }
+
+    /** All enrolments pass each stage */
+    @Test
+    public void testRun() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(0));
+	EnrolmentPipeline.Result result = newPipeline(store, 5).run();
+	assertEquals(5, result.getDone().size());
+	assertEquals(0, result.getFailed().size());
+	assertEquals(5, store.size());
+	for (CertificatePair cert: result.getDone().values()) {
+	    assertNotNull(cert.getCertificate());
+	    assertEquals("download", cert.getProperty("pipeline.stage"));
+	    assertNotNull(cert.getProperty("email"));
+	}
+    }
+
+    /** An interrupted run continues where it stopped */
+    @Test
+    public void testResume() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(0));
+	System.setProperty("jgridstart.ca.local.hold", "true");
+	try {
+	    EnrolmentPipeline pipeline = newPipeline(store, 3);
+	    pipeline.setPolling(1, 2);
+	    EnrolmentPipeline.Result result = pipeline.run();
+	    assertEquals(0, result.getDone().size());
+	    assertEquals(3, result.getFailed().size());
+	} finally {
+	    System.clearProperty("jgridstart.ca.local.hold");
+	}
+	// progress is kept on disk
+	store = new CertificateStore(store.getPath());
+	assertEquals(3, store.size());
+	for (CertificatePair cert: store) {
+	    assertEquals("upload", cert.getProperty("pipeline.stage"));
+	    assertNotNull(cert.getProperty("pipeline.error"));
+	}
+	// no new requests are created
+	EnrolmentPipeline.Result result = newPipeline(store, 3).run();
+	assertEquals(3, result.getDone().size());
+	assertEquals(3, store.size());
+	// and complete enrolments are left alone
+	result = newPipeline(store, 3).run();
+	assertEquals(3, result.getDone().size());
+	assertEquals(3, store.size());
+    }
+
+    /** An error in a stage fails the enrolment, but doesn't stop the run */
+    @Test
+    public void testError() throws Exception {
+	EnrolmentPipeline pipeline = new EnrolmentPipeline(new CertificateStore(newTestStore(0))) {
+	    @Override
+	    protected boolean process(int stage, Item item) throws Exception {
+		if (item.id.equals("user1")) throw new LinkageError("test error");
+		return super.process(stage, item);
+	    }
+	};
+	pipeline.setLastStage(EnrolmentPipeline.REQUEST);
+	for (int i=0; i<3; i++) {
+	    Properties p = new Properties();
+	    p.setProperty("subject", "/O=dutchgrid/O=users/O=nikhef/CN=Pipeline User #"+i);
+	    p.setProperty("keysize", "512");
+	    pipeline.add("user"+i, p, ("pipeline_password-"+i).toCharArray());
+	}
+	EnrolmentPipeline.Result result = pipeline.run();
+	assertEquals(2, result.getDone().size());
+	assertEquals(1, result.getFailed().size());
+	assertTrue(result.getFailed().get("user1") instanceof LinkageError);
+    }
+
+    /** Each enrolment needs a unique name */
+    @Test
+    public void testDuplicate() throws Exception {
+	EnrolmentPipeline pipeline = newPipeline(new CertificateStore(newTestStore(0)), 1);
+	try {
+	    pipeline.add("user0", new Properties(), null);
+	    fail("Duplicate enrolment must be refused");
+	} catch (IllegalArgumentException e) { }
+    }
+}
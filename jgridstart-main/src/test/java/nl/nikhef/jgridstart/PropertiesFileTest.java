@@ -0,0 +1,110 @@
+package nl.nikhef.jgridstart;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+import nl.nikhef.jgridstart.osutils.FileUtils;
+
+import org.junit.Test;
+
+/** Test {@link PropertiesFile} persistence */
+public class PropertiesFileTest extends TestCase {
+
+    /** temporary path, cleaned up on {@linkplain #tearDown} */
+    protected File tmpBasePath = null;
+
+    @Override
+    public void setUp() throws Exception {
+	tmpBasePath = FileUtils.createTempDir("testprops");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+	FileUtils.recursiveDelete(tmpBasePath);
+    }
+
+    /** Unchanged properties must not be written */
+    @Test
+    public void testUnchanged() throws Exception {
+	PropertiesFile pf = new PropertiesFile(new File(tmpBasePath, "test.properties"), false);
+	Properties p = new Properties();
+	p.setProperty("foo", "bar");
+	assertTrue(pf.write(p));
+	assertTrue(pf.getFile().exists());
+	assertFalse(pf.write(p));
+	// also after reading back
+	pf = new PropertiesFile(pf.getFile(), false);
+	assertEquals(p, pf.read());
+	assertFalse(pf.write(p));
+	// empty properties remove the file
+	assertTrue(pf.write(new Properties()));
+	assertFalse(pf.getFile().exists());
+    }
+
+    /** Changes are appended to the journal and read back */
+    @Test
+    public void testJournal() throws Exception {
+	PropertiesFile pf = new PropertiesFile(new File(tmpBasePath, "test.properties"), true);
+	Properties p = new Properties();
+	p.setProperty("foo", "bar");
+	p.setProperty("removed", "soon");
+	pf.write(p);
+	p.setProperty("foo", "bar baz;=%");
+	p.setProperty("new", "value");
+	p.remove("removed");
+	pf.write(p);
+	assertTrue(pf.journal.exists());
+	// file itself is unchanged, journal contains changes
+	Properties onfile = new Properties();
+	FileInputStream in = new FileInputStream(pf.getFile());
+	onfile.load(in);
+	in.close();
+	assertEquals("bar", onfile.getProperty("foo"));
+	assertEquals(p, new PropertiesFile(pf.getFile(), true).read());
+	// compaction merges the journal
+	pf.compact();
+	assertFalse(pf.journal.exists());
+	assertEquals(p, new PropertiesFile(pf.getFile(), false).read());
+    }
+
+    /** An incomplete journal record is ignored */
+    @Test
+    public void testJournalIncomplete() throws Exception {
+	PropertiesFile pf = new PropertiesFile(new File(tmpBasePath, "test.properties"), true);
+	Properties p = new Properties();
+	p.setProperty("foo", "bar");
+	pf.write(p);
+	p.setProperty("foo", "baz");
+	pf.write(p);
+	FileWriter w = new FileWriter(pf.journal, true);
+	w.write("+foo qu");
+	w.close();
+	assertEquals("baz", new PropertiesFile(pf.getFile(), true).read().getProperty("foo"));
+    }
+
+    /** Changes after an incomplete journal record are not appended to it */
+    @Test
+    public void testJournalIncompleteAppend() throws Exception {
+	PropertiesFile pf = new PropertiesFile(new File(tmpBasePath, "test.properties"), true);
+	Properties p = new Properties();
+	p.setProperty("foo", "bar");
+	pf.write(p);
+	FileWriter w = new FileWriter(pf.journal, true);
+	w.write("+foo qu");
+	w.close();
+	pf = new PropertiesFile(pf.getFile(), true);
+	p = pf.read();
+	assertEquals("bar", p.getProperty("foo"));
+	p.setProperty("foo", "baz");
+	pf.write(p);
+	assertEquals("baz", new PropertiesFile(pf.getFile(), true).read().getProperty("foo"));
+	// a journal where this already happened
+	w = new FileWriter(pf.journal, true);
+	w.write("+foo qu+foo baz2;\n");
+	w.close();
+	assertEquals("baz", new PropertiesFile(pf.getFile(), true).read().getProperty("foo"));
+    }
+}
@@ -0,0 +1,118 @@
+package nl.nikhef.jgridstart.ca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+
+import junit.framework.TestCase;
+import nl.nikhef.jgridstart.osutils.FileUtils;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMWriter;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** Test {@link CACertificateCache} against a local http server */
+public class CACertificateCacheTest extends TestCase {
+
+    protected File tmpBasePath = null;
+    protected HttpServer server = null;
+    protected URL url = null;
+    protected X509Certificate cacert = null;
+    /** Number of full downloads and of unmodified responses */
+    protected int downloads = 0, unmodified = 0;
+
+    @Override
+    public void setUp() throws Exception {
+	if (Security.getProvider("BC") == null)
+	    Security.addProvider(new BouncyCastleProvider());
+	tmpBasePath = FileUtils.createTempDir("testcacache");
+	cacert = new LocalCA().getCACertificate();
+	StringWriter out = new StringWriter();
+	PEMWriter w = new PEMWriter(out);
+	w.writeObject(cacert);
+	w.close();
+	final byte[] pem = out.toString().getBytes("US-ASCII");
+	server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+	server.createContext("/", new HttpHandler() {
+	    public void handle(HttpExchange ex) throws IOException {
+		ex.getResponseHeaders().set("ETag", "\"v1\"");
+		if ("\"v1\"".equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+		    unmodified++;
+		    ex.sendResponseHeaders(304, -1);
+		    ex.close();
+		    return;
+		}
+		downloads++;
+		ex.sendResponseHeaders(200, pem.length);
+		OutputStream os = ex.getResponseBody();
+		os.write(pem);
+		os.close();
+	    }
+	});
+	server.start();
+	url = new URL("http://127.0.0.1:"+server.getAddress().getPort()+"/cacert");
+	CACertificateCache.setDefaultDirectory(tmpBasePath);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+	CACertificateCache.setDefaultDirectory(null);
+	server.stop(0);
+	FileUtils.recursiveDelete(tmpBasePath);
+    }
+
+    protected String getDN() {
+	return cacert.getSubjectX500Principal().getName();
+    }
+
+    /** A second instance uses the certificate on disk */
+    @Test
+    public void testPersistent() throws Exception {
+	// test CA certificate is valid for a short time only
+	CACertificateCache cache = new CACertificateCache(url, getDN());
+	cache.setTTL(60*1000);
+	assertEquals(cacert, cache.get());
+	assertEquals(1, downloads);
+	cache = new CACertificateCache(url, getDN());
+	cache.setTTL(60*1000);
+	assertEquals(cacert, cache.get());
+	assertEquals(1, downloads);
+	assertEquals(0, unmodified);
+    }
+
+    /** After the time to live, an unmodified certificate is not downloaded again */
+    @Test
+    public void testRevalidate() throws Exception {
+	CACertificateCache cache = new CACertificateCache(url, getDN());
+	cache.setTTL(0);
+	assertEquals(cacert, cache.get());
+	assertEquals(cacert, cache.get());
+	assertEquals(1, downloads);
+	assertEquals(1, unmodified);
+	// also after a restart
+	cache = new CACertificateCache(url, getDN());
+	cache.setTTL(0);
+	assertEquals(cacert, cache.get());
+	assertEquals(1, downloads);
+	assertEquals(2, unmodified);
+    }
+
+    /** When the server is unreachable, the cached certificate is used */
+    @Test
+    public void testOffline() throws Exception {
+	new CACertificateCache(url, getDN()).get();
+	server.stop(0);
+	CACertificateCache cache = new CACertificateCache(url, getDN());
+	cache.setTTL(0);
+	assertEquals(cacert, cache.get());
+    }
+}
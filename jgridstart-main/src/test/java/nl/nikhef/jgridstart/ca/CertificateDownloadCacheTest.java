@@ -0,0 +1,53 @@
+package nl.nikhef.jgridstart.ca;
+
+import java.security.Security;
+import java.security.cert.X509Certificate;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Test;
+
+/** Test {@link CertificateDownloadCache} */
+public class CertificateDownloadCacheTest extends TestCase {
+
+    protected X509Certificate cert = null;
+
+    @Override
+    public void setUp() throws Exception {
+	if (Security.getProvider("BC") == null)
+	    Security.addProvider(new BouncyCastleProvider());
+	cert = new LocalCA().getCACertificate();
+    }
+
+    /** A certificate can be taken only once */
+    @Test
+    public void testTakeOnce() throws Exception {
+	CertificateDownloadCache cache = new CertificateDownloadCache();
+	cache.put("foo", cert);
+	assertNull(cache.take("bar"));
+	assertSame(cert, cache.take("foo"));
+	assertNull(cache.take("foo"));
+	// missing arguments are ignored
+	cache.put(null, cert);
+	cache.put("foo", null);
+	assertNull(cache.take("foo"));
+	assertNull(cache.take(null));
+    }
+
+    /** A certificate is forgotten after the timeout */
+    @Test
+    public void testExpiry() throws Exception {
+	CertificateDownloadCache cache = new CertificateDownloadCache(100);
+	assertEquals(100, cache.getTimeout());
+	cache.put("old", cert);
+	Thread.sleep(200);
+	cache.put("new", cert);
+	assertNull(cache.take("old"));
+	assertSame(cert, cache.take("new"));
+	// and when cleared
+	cache.put("foo", cert);
+	cache.clear();
+	assertNull(cache.take("foo"));
+    }
+}
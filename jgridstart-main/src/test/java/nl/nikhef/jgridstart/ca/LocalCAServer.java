@@ -0,0 +1,395 @@
+package nl.nikhef.jgridstart.ca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import nl.nikhef.jgridstart.util.PEMReader;
+
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.util.encoders.Base64;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process certificate authority web server for testing.
+ * <p>
+ * This speaks the protocols that {@link TestCA} and {@link DutchGridCA} use,
+ * and signs requests with a {@link LocalCA}. This allows testing the complete
+ * enrolment process, including network communication, against localhost
+ * without the PHP test CA or a production CA.
+ * <p>
+ * The following paths are served:
+ * <ul>
+ *   <li><tt>/testca/</tt> - TestCA {@code action=submit}, {@code action=retrieve_cert}
+ *     and {@code action=retrieve_ca_cert}, see {@code testca/index.php}
+ *   <li><tt>/dutchgrid/submit</tt> - DutchGrid submission form, including renewals
+ *   <li><tt>/dutchgrid/query/</tt> - DutchGrid certificate query by public key modulus
+ *   <li><tt>/dutchgrid/cacert</tt> - DutchGrid CA certificate
+ * </ul>
+ * Like the real ones, a certificate that is not yet signed results in a
+ * {@code 404 Not Found} response. Requests are signed as soon as they are
+ * submitted, unless {@link #setHold} is enabled; then they are signed on
+ * {@link #release}.
+ * <p>
+ * Use {@link #getProperties} to obtain the system properties that configure
+ * a CA implementation to use this server.
+ *
+ * @author wvengen
+ */
+public class LocalCAServer {
+
+    static final protected Logger logger = Logger.getLogger("nl.nikhef.jgridstart.ca");
+
+    /** CA that signs the requests */
+    protected LocalCA ca;
+    /** Web server, or {@code null} when not started */
+    protected HttpServer server = null;
+    /** Threads handling the web requests */
+    protected ExecutorService executor = null;
+    /** Number of threads handling web requests */
+    protected int nthreads;
+
+    /** Submitted requests, by TestCA request serial */
+    protected Map<String, Entry> bySerial = new ConcurrentHashMap<String, Entry>();
+    /** Submitted requests, by public key modulus in hex */
+    protected Map<String, Entry> byModulus = new ConcurrentHashMap<String, Entry>();
+    /** Last TestCA request serial */
+    protected AtomicInteger lastIndex = new AtomicInteger(1);
+    /** Whether to keep new requests unsigned until {@link #release} */
+    protected volatile boolean hold = false;
+
+    /** Number of web requests handled */
+    protected AtomicInteger hits = new AtomicInteger(0);
+
+    /** Submitted request and its certificate, if signed */
+    protected static class Entry {
+	final PKCS10CertificationRequest req;
+	volatile X509Certificate cert = null;
+	Entry(PKCS10CertificationRequest req) {
+	    this.req = req;
+	}
+    }
+
+    /** Create a new server with its own {@link LocalCA}, using a thread
+     * for each available processor. */
+    public LocalCAServer() throws Exception {
+	this(new LocalCA(), Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** Create a new server.
+     *
+     * @param ca CA to sign requests with
+     * @param nthreads number of threads to handle web requests
+     */
+    public LocalCAServer(LocalCA ca, int nthreads) {
+	this.ca = ca;
+	this.nthreads = nthreads;
+    }
+
+    /** Start listening on a free port on the loopback interface. */
+    public synchronized void start() throws IOException {
+	if (server!=null) return;
+	server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+	server.createContext("/testca/", new HttpHandler() {
+	    public void handle(HttpExchange ex) throws IOException {
+		handleTestCA(ex);
+	    }
+	});
+	server.createContext("/dutchgrid/submit", new HttpHandler() {
+	    public void handle(HttpExchange ex) throws IOException {
+		handleDutchGridSubmit(ex);
+	    }
+	});
+	server.createContext("/dutchgrid/query", new HttpHandler() {
+	    public void handle(HttpExchange ex) throws IOException {
+		handleDutchGridQuery(ex);
+	    }
+	});
+	server.createContext("/dutchgrid/cacert", new HttpHandler() {
+	    public void handle(HttpExchange ex) throws IOException {
+		hits.incrementAndGet();
+		respond(ex, 200, "application/x-x509-ca-cert", toPEM(ca.getCACertificate()));
+	    }
+	});
+	executor = Executors.newFixedThreadPool(nthreads);
+	server.setExecutor(executor);
+	server.start();
+	logger.info("Local CA server listening on "+getBase());
+    }
+
+    /** Stop the server. */
+    public synchronized void stop() {
+	if (server==null) return;
+	server.stop(0);
+	executor.shutdownNow();
+	server = null;
+	executor = null;
+    }
+
+    /** Return the port the server listens on. */
+    public synchronized int getPort() {
+	if (server==null) throw new IllegalStateException("Server not started");
+	return server.getAddress().getPort();
+    }
+
+    /** Return the base URL of the server, ending with a slash. */
+    public String getBase() {
+	return "http://127.0.0.1:"+getPort()+"/";
+    }
+
+    /** Return the CA that signs the requests. */
+    public LocalCA getCA() {
+	return ca;
+    }
+
+    /** Return the system properties that make a CA implementation use this server.
+     *
+     * @param provider {@code TestCA} or {@code DutchGridCA}
+     */
+    public Properties getProperties(String provider) {
+	Properties p = new Properties();
+	p.setProperty("jgridstart.ca.provider", provider);
+	p.setProperty("jgridstart.ca.dn", LocalCA.caDN);
+	if (provider.endsWith("TestCA")) {
+	    p.setProperty("jgridstart.ca.base", getBase()+"testca/");
+	    p.setProperty("jgridstart.ca.base.cacert", getBase()+"testca/?action=retrieve_ca_cert");
+	} else if (provider.endsWith("DutchGridCA")) {
+	    p.setProperty("jgridstart.ca.base.submit", getBase()+"dutchgrid/submit");
+	    p.setProperty("jgridstart.ca.base.query", getBase()+"dutchgrid/query/");
+	    p.setProperty("jgridstart.ca.base.cacert", getBase()+"dutchgrid/cacert");
+	} else {
+	    throw new IllegalArgumentException("Unsupported CA: "+provider);
+	}
+	return p;
+    }
+
+    /** Keep new requests unsigned until {@link #release} is called. */
+    public void setHold(boolean hold) {
+	this.hold = hold;
+    }
+
+    /** Sign all requests that were not signed yet.
+     *
+     * @return number of requests signed
+     */
+    public synchronized int release() throws IOException {
+	List<Entry> pending = new ArrayList<Entry>();
+	List<PKCS10CertificationRequest> reqs = new ArrayList<PKCS10CertificationRequest>();
+	for (Entry e: bySerial.values()) {
+	    if (e.cert==null) {
+		pending.add(e);
+		reqs.add(e.req);
+	    }
+	}
+	if (pending.size()==0) return 0;
+	List<X509Certificate> certs = ca.signAll(reqs);
+	for (int i=0; i<pending.size(); i++)
+	    pending.get(i).cert = certs.get(i);
+	return pending.size();
+    }
+
+    /** Return the number of requests submitted. */
+    public int getSubmitted() {
+	return bySerial.size();
+    }
+
+    /** Return the number of web requests handled. */
+    public int getHits() {
+	return hits.get();
+    }
+
+    /** Store a submitted request, and sign it unless on hold.
+     *
+     * @return TestCA request serial
+     */
+    protected String submit(PKCS10CertificationRequest req) throws IOException {
+	Entry e = new Entry(req);
+	if (!hold)
+	    e.cert = ca.sign(req, BigInteger.valueOf(LocalCA.nextSerial()));
+	String serial = String.format("%02X", lastIndex.incrementAndGet());
+	bySerial.put(serial, e);
+	byModulus.put(getModulus(req), e);
+	return serial;
+    }
+
+    /** TestCA protocol */
+    protected void handleTestCA(HttpExchange ex) throws IOException {
+	hits.incrementAndGet();
+	Map<String, String> params = getParameters(ex);
+	String action = params.get("action");
+	if ("retrieve_ca_cert".equals(action)) {
+	    respond(ex, 200, "application/x-x509-ca-cert", toPEM(ca.getCACertificate()));
+
+	} else if ("retrieve_cert".equals(action)) {
+	    Entry e = params.get("serial")!=null ? bySerial.get(params.get("serial")) : null;
+	    if (e==null)
+		respond(ex, 404, "text/plain", "no certificate matches query\n");
+	    else if (e.cert==null)
+		respond(ex, 404, "text/plain", "certificate not accessible; please enable in web interface\n");
+	    else
+		respond(ex, 200, "text/plain", toPEM(e.cert));
+
+	} else if ("submit".equals(action)) {
+	    StringBuffer out = new StringBuffer();
+	    out.append("<html><body><h2>Submitting request for signing by the authority</h2>\n");
+	    PKCS10CertificationRequest req = parseRequest(params.get("request"));
+	    if (req==null) {
+		out.append("<p class='error'>Error: empty certificate request</p>\n");
+	    } else {
+		out.append("<p>Saving request as "+submit(req)+".</p>");
+		out.append("<p>finished</p>\n");
+	    }
+	    out.append("</body></html>\n");
+	    respond(ex, 200, "text/html", out.toString());
+
+	} else {
+	    respond(ex, 400, "text/plain", "unsupported action: "+action+"\n");
+	}
+    }
+
+    /** DutchGrid submission form protocol */
+    protected void handleDutchGridSubmit(HttpExchange ex) throws IOException {
+	hits.incrementAndGet();
+	Map<String, String> params = getParameters(ex);
+	String email = params.get("email_1");
+	if (email==null || email.length()==0 || !email.equals(params.get("email_2"))) {
+	    respond(ex, 200, "text/plain", "400 email addresses missing or not equal\n");
+	    return;
+	}
+	if (!"ja".equals(params.get("confirm-submit"))) {
+	    respond(ex, 200, "text/plain", "400 privacy policy not accepted\n");
+	    return;
+	}
+	String text = params.get("requesttext");
+	if (text!=null && text.contains("BEGIN DUTCHGRID RENEWAL BLOB")) {
+	    // S/MIME signature is not verified, the request is in its clear-text part
+	    String blob = text.replaceAll("=====[^=]*=====", "").replaceAll("\\s", "");
+	    text = new String(Base64.decode(blob));
+	}
+	PKCS10CertificationRequest req = parseRequest(text);
+	if (req==null) {
+	    respond(ex, 200, "text/plain", "400 no valid certificate request found\n");
+	    return;
+	}
+	submit(req);
+	respond(ex, 200, "text/plain", "200 OK request received\n");
+    }
+
+    /** DutchGrid certificate query protocol */
+    protected void handleDutchGridQuery(HttpExchange ex) throws IOException {
+	hits.incrementAndGet();
+	Map<String, String> params = getParameters(ex);
+	String id = params.get("id");
+	Entry e = id!=null ? byModulus.get(id.toLowerCase()) : null;
+	if (e==null || e.cert==null)
+	    respond(ex, 404, "text/plain", "no certificate found\n");
+	else
+	    respond(ex, 200, "text/plain", toPEM(e.cert));
+    }
+
+    /** Return the public key modulus of a request in hex, as DutchGridCA uses. */
+    protected static String getModulus(PKCS10CertificationRequest req) throws IOException {
+	try {
+	    return ((RSAPublicKey)req.getPublicKey()).getModulus().toString(16);
+	} catch (Exception e) {
+	    throw new IOException("Unsupported certificate request: "+e.getLocalizedMessage());
+	}
+    }
+
+    /** Parse the first PEM-encoded certificate request in a text, or return {@code null}. */
+    protected static PKCS10CertificationRequest parseRequest(String text) {
+	if (text==null) return null;
+	int start = text.indexOf("-----BEGIN CERTIFICATE REQUEST-----");
+	if (start < 0) return null;
+	try {
+	    PEMReader r = new PEMReader(new StringReader(text.substring(start)));
+	    try {
+		Object o = r.readObject();
+		return o instanceof PKCS10CertificationRequest ? (PKCS10CertificationRequest)o : null;
+	    } finally {
+		r.close();
+	    }
+	} catch (IOException e) {
+	    return null;
+	}
+    }
+
+    /** Return the query string and form parameters of a web request. */
+    protected static Map<String, String> getParameters(HttpExchange ex) throws IOException {
+	Map<String, String> params = new HashMap<String, String>();
+	parseQuery(ex.getRequestURI().getRawQuery(), params);
+	if ("POST".equals(ex.getRequestMethod()))
+	    parseQuery(new String(readAll(ex.getRequestBody()), "US-ASCII"), params);
+	return params;
+    }
+
+    /** Add the parameters of an url-encoded query string to a map. */
+    protected static void parseQuery(String query, Map<String, String> params) throws IOException {
+	if (query==null) return;
+	for (String pair: query.split("&")) {
+	    if (pair.length()==0) continue;
+	    int i = pair.indexOf('=');
+	    String key = i<0 ? pair : pair.substring(0, i);
+	    String value = i<0 ? "" : pair.substring(i+1);
+	    params.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+	}
+    }
+
+    /** Send a response and close the exchange. */
+    protected static void respond(HttpExchange ex, int code, String type, String body) throws IOException {
+	byte[] data = body.getBytes("UTF-8");
+	ex.getResponseHeaders().set("Content-Type", type);
+	ex.sendResponseHeaders(code, data.length);
+	OutputStream os = ex.getResponseBody();
+	try {
+	    os.write(data);
+	} finally {
+	    os.close();
+	}
+    }
+
+    /** Return the PEM-encoding of an object. */
+    protected static String toPEM(Object o) throws IOException {
+	StringWriter out = new StringWriter();
+	PEMWriter w = new PEMWriter(out);
+	w.writeObject(o);
+	w.close();
+	return out.toString();
+    }
+
+    /** Read a stream completely and close it. */
+    protected static byte[] readAll(InputStream in) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	try {
+	    byte[] buf = new byte[4096];
+	    int n;
+	    while ((n = in.read(buf)) >= 0)
+		out.write(buf, 0, n);
+	} finally {
+	    in.close();
+	}
+	return out.toByteArray();
+    }
+}
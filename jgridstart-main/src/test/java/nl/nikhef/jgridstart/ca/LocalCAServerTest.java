@@ -0,0 +1,134 @@
+package nl.nikhef.jgridstart.ca;
+
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+
+import javax.security.auth.x500.X500Principal;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Test;
+
+/** Test {@link TestCA} and {@link DutchGridCA} against a {@link LocalCAServer} */
+public class LocalCAServerTest extends TestCase {
+
+    protected LocalCAServer server = null;
+    protected Properties oldProps = null;
+
+    @Override
+    public void setUp() throws Exception {
+	if (Security.getProvider("BC") == null)
+	    Security.addProvider(new BouncyCastleProvider());
+	oldProps = (Properties)System.getProperties().clone();
+	server = new LocalCAServer();
+	server.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+	server.stop();
+	System.setProperties(oldProps);
+    }
+
+    /** Helper method: generate a certificate signing request */
+    protected PKCS10CertificationRequest newRequest() throws Exception {
+	KeyPairGenerator keygen = KeyPairGenerator.getInstance("RSA");
+	keygen.initialize(1024);
+	KeyPair kp = keygen.generateKeyPair();
+	return new PKCS10CertificationRequest("SHA1WithRSA",
+		new X500Principal("CN=Server Test User"), kp.getPublic(), null, kp.getPrivate(), "BC");
+    }
+
+    /** Helper method: configure a CA to use the server */
+    protected CA newCA(String provider) throws Exception {
+	System.getProperties().putAll(server.getProperties(provider));
+	return (CA)Class.forName(getClass().getPackage().getName()+"."+provider).newInstance();
+    }
+
+    /** Helper method: upload a request and return its properties */
+    protected Properties upload(CA ca, PKCS10CertificationRequest req) throws Exception {
+	Properties info = new Properties();
+	info.setProperty("request.fullname", "Server Test User");
+	info.setProperty("fullname", "Server Test User");
+	info.setProperty("email", "test@example.org");
+	info.setProperty("agreecps", "true");
+	ca.uploadCertificationRequest(ca.encodeCertificationRequest(req, info), info);
+	return info;
+    }
+
+    /** Complete enrolment with TestCA */
+    @Test
+    public void testTestCA() throws Exception {
+	CA ca = newCA("TestCA");
+	PKCS10CertificationRequest req = newRequest();
+	Properties info = upload(ca, req);
+	assertNotNull(info.getProperty("request.serial"));
+	int hits = server.getHits();
+	assertTrue(ca.isCertificationRequestProcessed(req, info));
+	X509Certificate cert = ca.downloadCertificate(req, info);
+	// certificate found when checking is not fetched again
+	assertEquals(hits+1, server.getHits());
+	assertEquals(req.getPublicKey(), cert.getPublicKey());
+	// but only once
+	assertEquals(cert, ca.downloadCertificate(req, info));
+	assertEquals(hits+2, server.getHits());
+	assertEquals(server.getCA().getCACertificate(), ca.getCACertificate());
+	cert.verify(ca.getCACertificate().getPublicKey());
+	assertTrue(ca.isIssuer(cert));
+    }
+
+    /** Complete enrolment with DutchGridCA */
+    @Test
+    public void testDutchGridCA() throws Exception {
+	CA ca = newCA("DutchGridCA");
+	PKCS10CertificationRequest req = newRequest();
+	Properties info = upload(ca, req);
+	int hits = server.getHits();
+	assertTrue(ca.isCertificationRequestProcessed(req, info));
+	X509Certificate cert = ca.downloadCertificate(req, info);
+	// certificate found when checking is not fetched again
+	assertEquals(hits+1, server.getHits());
+	assertEquals(req.getPublicKey(), cert.getPublicKey());
+	// but only once
+	assertEquals(cert, ca.downloadCertificate(req, info));
+	assertEquals(hits+2, server.getHits());
+	assertEquals(server.getCA().getCACertificate(), ca.getCACertificate());
+	assertTrue(ca.isIssuer(cert));
+    }
+
+    /** DutchGridCA refuses submission without agreeing to the policy */
+    @Test
+    public void testDutchGridNoAgree() throws Exception {
+	CA ca = newCA("DutchGridCA");
+	Properties info = new Properties();
+	info.setProperty("fullname", "Server Test User");
+	info.setProperty("email", "test@example.org");
+	try {
+	    ca.uploadCertificationRequest(ca.encodeCertificationRequest(newRequest(), info), info);
+	    fail("Upload without agreeing to policy must fail");
+	} catch (IOException e) { }
+	assertEquals(0, server.getSubmitted());
+    }
+
+    /** Requests on hold are not available until released */
+    @Test
+    public void testHold() throws Exception {
+	server.setHold(true);
+	CA ca = newCA("TestCA");
+	PKCS10CertificationRequest req = newRequest();
+	Properties info = upload(ca, req);
+	try {
+	    ca.isCertificationRequestProcessed(req, info);
+	    fail("Request on hold must not be retrievable");
+	} catch (IOException e) { }
+	assertEquals(1, server.release());
+	assertTrue(ca.isCertificationRequestProcessed(req, info));
+	assertEquals(req.getPublicKey(), ca.downloadCertificate(req, info).getPublicKey());
+    }
+}
@@ -0,0 +1,87 @@
+package nl.nikhef.jgridstart.ca;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+import junit.framework.TestCase;
+import nl.nikhef.jgridstart.osutils.FileUtils;
+
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Test;
+
+/** Test {@link LocalCA} batch signing */
+public class LocalCATest extends TestCase {
+
+    protected File tmpBasePath = null;
+
+    @Override
+    public void setUp() throws Exception {
+	if (Security.getProvider("BC") == null)
+	    Security.addProvider(new BouncyCastleProvider());
+	tmpBasePath = FileUtils.createTempDir("testlocalca");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+	System.clearProperty("jgridstart.ca.local.dir");
+	LocalCA.caDir = null;
+	FileUtils.recursiveDelete(tmpBasePath);
+    }
+
+    /** Helper method: generate certificate signing requests */
+    protected List<PKCS10CertificationRequest> newRequests(int n) throws Exception {
+	KeyPairGenerator keygen = KeyPairGenerator.getInstance("RSA");
+	keygen.initialize(1024);
+	List<PKCS10CertificationRequest> reqs = new ArrayList<PKCS10CertificationRequest>();
+	for (int i=0; i<n; i++) {
+	    KeyPair kp = keygen.generateKeyPair();
+	    reqs.add(new PKCS10CertificationRequest("SHA1WithRSA",
+		    new X500Principal("CN=Batch Test User #"+i), kp.getPublic(), null, kp.getPrivate(), "BC"));
+	}
+	return reqs;
+    }
+
+    /** Sign many requests at once */
+    @Test
+    public void testSignAll() throws Exception {
+	LocalCA ca = new LocalCA();
+	List<PKCS10CertificationRequest> reqs = newRequests(20);
+	List<X509Certificate> certs = ca.signAll(reqs);
+	assertEquals(reqs.size(), certs.size());
+	HashSet<Object> serials = new HashSet<Object>();
+	for (int i=0; i<certs.size(); i++) {
+	    X509Certificate cert = certs.get(i);
+	    assertEquals(reqs.get(i).getPublicKey(), cert.getPublicKey());
+	    cert.verify(ca.getCACertificate().getPublicKey());
+	    assertTrue(ca.isIssuer(cert));
+	    serials.add(cert.getSerialNumber());
+	}
+	assertEquals(certs.size(), serials.size());
+    }
+
+    /** CA key and serial number are kept in a directory */
+    @Test
+    public void testPersistent() throws Exception {
+	System.setProperty("jgridstart.ca.local.dir", tmpBasePath.getPath());
+	LocalCA ca1 = new LocalCA();
+	X509Certificate cert1 = ca1.signAll(newRequests(1)).get(0);
+	assertTrue(new File(tmpBasePath, "serial").exists());
+	// new instance in new program run
+	LocalCA.caDir = null;
+	LocalCA.serial.set(1);
+	LocalCA ca2 = new LocalCA();
+	assertEquals(ca1.getCACertificate(), ca2.getCACertificate());
+	X509Certificate cert2 = ca2.signAll(newRequests(1)).get(0);
+	cert2.verify(ca1.getCACertificate().getPublicKey());
+	assertTrue(cert2.getSerialNumber().compareTo(cert1.getSerialNumber()) > 0);
+    }
+}
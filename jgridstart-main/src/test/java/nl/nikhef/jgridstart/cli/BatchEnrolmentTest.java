@@ -0,0 +1,116 @@
+package nl.nikhef.jgridstart.cli;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Map;
+
+import nl.nikhef.jgridstart.CertificateBaseTest;
+import nl.nikhef.jgridstart.CertificatePair;
+import nl.nikhef.jgridstart.CertificateStore;
+import nl.nikhef.jgridstart.EnrolmentPipeline;
+import nl.nikhef.jgridstart.osutils.FileUtils;
+
+import org.junit.Test;
+
+/** Test {@link BatchEnrolment} using {@link nl.nikhef.jgridstart.ca.LocalCA} */
+public class BatchEnrolmentTest extends CertificateBaseTest {
+
+    protected static final String manifest =
+	"# test users\n" +
+	"id,givenname,surname,email,org,password,keysize\n" +
+	"jdoe,John,Doe,jdoe@example.org,\"nikhef, pdp\",batch_password1,512\n" +
+	"jroe,Jane,Roe,jroe@example.org,nikhef,batch_password2,512\n" +
+	"\n" +
+	"bad,Bad,Mail,no-email,nikhef,batch_password3,512\n" +
+	",No,Password,nopw@example.org,nikhef,,512\n";
+
+    /** Valid entries are submitted, invalid ones reported */
+    @Test
+    public void testBatch() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(0));
+	BatchEnrolment batch = new BatchEnrolment(store);
+	batch.load(new StringReader(manifest));
+	assertEquals(2, batch.run());
+	assertEquals(2, store.size());
+
+	Map<String, String[]> results = batch.getResults();
+	assertEquals(4, results.size());
+	assertEquals("submitted", results.get("jdoe")[1]);
+	assertEquals("upload", results.get("jdoe")[2]);
+	assertEquals("O=dutchgrid, O=users, O=nikhef, OU=pdp, CN=John Doe", results.get("jdoe")[4]);
+	assertEquals("submitted", results.get("jroe")[1]);
+	assertEquals("invalid", results.get("bad")[1]);
+	// line number is used when there is no id
+	assertEquals("invalid", results.get("line7")[1]);
+	assertTrue(results.get("line7")[6].contains("password"));
+
+	// password is not kept with the certificate
+	for (CertificatePair cert: store) {
+	    assertNull(cert.getProperty("password"));
+	    assertNotNull(cert.getProperty("request.serial"));
+	}
+
+	File out = new File(tmpBasePath, "result.csv");
+	batch.writeResults(out);
+	String contents = FileUtils.readFile(out);
+	assertTrue(contents.startsWith("id,status,stage,certificate,subject,request.serial,error\n"));
+	assertTrue(contents.contains("jdoe,submitted,upload,"));
+	assertTrue(contents.contains("\"O=dutchgrid, O=users, O=nikhef, CN=Jane Roe\""));
+    }
+
+    /** Running the same manifest again completes the enrolments */
+    @Test
+    public void testResume() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(0));
+	BatchEnrolment batch = new BatchEnrolment(store);
+	batch.load(new StringReader(manifest));
+	batch.run();
+	batch = new BatchEnrolment(store);
+	batch.getPipeline().setLastStage(EnrolmentPipeline.DOWNLOAD);
+	batch.load(new StringReader(manifest));
+	assertEquals(2, batch.run());
+	assertEquals(2, store.size());
+	assertEquals("certificate", batch.getResults().get("jdoe")[1]);
+	assertEquals("certificate", batch.getResults().get("jroe")[1]);
+	for (CertificatePair cert: store)
+	    assertNotNull(cert.getCertificate());
+    }
+
+    /** Each entry with a duplicate id gets its own result */
+    @Test
+    public void testDuplicate() throws Exception {
+	CertificateStore store = new CertificateStore(newTestStore(0));
+	BatchEnrolment batch = new BatchEnrolment(store);
+	batch.load(new StringReader(manifest +
+		"jdoe,John,Doe,other@example.org,nikhef,batch_password4,512\n" +
+		"jdoe,John,Doe,third@example.org,nikhef,batch_password5,512\n"));
+	assertEquals(4, batch.run());
+	assertEquals(2, store.size());
+	Map<String, String[]> results = batch.getResults();
+	assertEquals(6, results.size());
+	assertEquals("submitted", results.get("jdoe")[1]);
+	assertEquals("O=dutchgrid, O=users, O=nikhef, OU=pdp, CN=John Doe", results.get("jdoe")[4]);
+	for (String key: new String[] { "jdoe#2", "jdoe#3" }) {
+	    assertEquals("jdoe", results.get(key)[0]);
+	    assertEquals("invalid", results.get(key)[1]);
+	    assertNull(results.get(key)[4]);
+	    assertEquals("Duplicate id", results.get(key)[6]);
+	}
+	// each is written
+	File out = new File(tmpBasePath, "result.csv");
+	batch.writeResults(out);
+	String contents = FileUtils.readFile(out);
+	assertEquals(7, contents.split("\n").length);
+    }
+
+    /** Quoted fields may contain commas and quotes */
+    @Test
+    public void testParseCSV() throws Exception {
+	assertEquals(3, BatchEnrolment.parseCSVLine("a,b,c").size());
+	assertEquals("x, \"y\"", BatchEnrolment.parseCSVLine("a,\"x, \"\"y\"\"\",c").get(1));
+	assertEquals("", BatchEnrolment.parseCSVLine("a,,c").get(1));
+	StringBuffer out = new StringBuffer();
+	BatchEnrolment.appendCSVLine(out, new String[] { "a", "x, \"y\"", null });
+	assertEquals("a,\"x, \"\"y\"\"\",\n", out.toString());
+    }
+}
@@ -0,0 +1,192 @@
+package nl.nikhef.jgridstart.gui.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/** Test {@link ArrayListModel} with concurrent modifications */
+public class ArrayListModelTest extends TestCase {
+
+    /** Listener that keeps track of the size as known from events */
+    protected static class CountingListener implements ListDataListener {
+	int size = 0;
+	boolean consistent = true;
+	boolean onEDT = true;
+	ArrayListModel<?> model;
+
+	CountingListener(ArrayListModel<?> model) {
+	    this.model = model;
+	}
+	public void intervalAdded(ListDataEvent e) {
+	    size += e.getIndex1() - e.getIndex0() + 1;
+	    check();
+	}
+	public void intervalRemoved(ListDataEvent e) {
+	    size -= e.getIndex1() - e.getIndex0() + 1;
+	    check();
+	}
+	public void contentsChanged(ListDataEvent e) {
+	    check();
+	}
+	protected void check() {
+	    if (!SwingUtilities.isEventDispatchThread()) onEDT = false;
+	    if (model.getSize() != size) consistent = false;
+	}
+    }
+
+    /** Modify from multiple threads, events must be delivered on the EDT */
+    @Test
+    public void testConcurrentEDT() throws Exception {
+	final ArrayListModel<Integer> model = new ArrayListModel<Integer>();
+	model.setNotifyOnEDT(true);
+	CountingListener l = new CountingListener(model);
+	model.addListDataListener(l);
+	List<Thread> threads = new ArrayList<Thread>();
+	for (int t=0; t<4; t++) {
+	    final int base = t*1000;
+	    threads.add(new Thread() {
+		@Override
+		public void run() {
+		    for (int i=0; i<250; i++) {
+			model.add(base+i);
+			if (i%10 == 0) model.remove(Integer.valueOf(base+i));
+			// iterating while others modify must not fail
+			for (Integer n: model) assertNotNull(n);
+		    }
+		}
+	    });
+	}
+	for (Thread t: threads) t.start();
+	for (Thread t: threads) t.join();
+	// wait for pending events
+	SwingUtilities.invokeAndWait(new Runnable() {
+	    public void run() { }
+	});
+	assertEquals(4*225, model.size());
+	assertEquals(model.size(), model.getSize());
+	assertEquals(model.size(), l.size);
+	assertTrue(l.onEDT);
+	assertTrue(l.consistent);
+    }
+
+    /** By default, events are delivered right away */
+    @Test
+    public void testDirect() throws Exception {
+	ArrayListModel<Integer> model = new ArrayListModel<Integer>();
+	CountingListener l = new CountingListener(model);
+	model.addListDataListener(l);
+	model.add(1);
+	model.add(2);
+	model.add(3);
+	model.remove(0);
+	assertEquals(2, l.size);
+	assertFalse(l.onEDT);
+	model.removeAll(model);
+	assertEquals(0, model.size());
+    }
+
+    /** Listener that records events as strings */
+    protected static class RecordingListener implements ListDataListener {
+	List<String> events = new ArrayList<String>();
+	public void intervalAdded(ListDataEvent e) {
+	    events.add("+"+e.getIndex0()+"-"+e.getIndex1());
+	}
+	public void intervalRemoved(ListDataEvent e) {
+	    events.add("-"+e.getIndex0()+"-"+e.getIndex1());
+	}
+	public void contentsChanged(ListDataEvent e) {
+	    events.add("*"+e.getIndex0()+"-"+e.getIndex1());
+	}
+    }
+
+    /** Removing multiple elements notifies once per range */
+    @Test
+    public void testRemoveAllRanges() throws Exception {
+	ArrayListModel<Integer> model = new ArrayListModel<Integer>();
+	for (int i=0; i<10; i++) model.add(i);
+	RecordingListener l = new RecordingListener();
+	model.addListDataListener(l);
+	model.removeAll(Arrays.asList(1, 2, 3, 7, 8));
+	assertEquals(Arrays.asList("-7-8", "-1-3"), l.events);
+	assertEquals(Arrays.asList(0, 4, 5, 6, 9), model);
+    }
+
+    /** Modifications in a batch are merged */
+    @Test
+    public void testBatch() throws Exception {
+	ArrayListModel<Integer> model = new ArrayListModel<Integer>();
+	RecordingListener l = new RecordingListener();
+	model.addListDataListener(l);
+	model.beginBatch();
+	try {
+	    for (int i=0; i<5; i++) model.add(i);
+	    model.set(3, 30);
+	    model.set(2, 20);
+	    model.remove(4);
+	    model.remove(3);
+	    assertEquals(0, l.events.size());
+	} finally {
+	    model.endBatch();
+	}
+	assertEquals(Arrays.asList("+0-4", "*2-3", "-3-4"), l.events);
+    }
+
+    /** Listener that keeps a copy of the list using ranges from events */
+    protected static class MirrorListener implements ListDataListener {
+	List<Object> mirror = new ArrayList<Object>();
+	ArrayListModel<?> model;
+
+	MirrorListener(ArrayListModel<?> model) {
+	    this.model = model;
+	}
+	public void intervalAdded(ListDataEvent e) {
+	    for (int i=e.getIndex0(); i<=e.getIndex1(); i++)
+		mirror.add(i, model.getElementAt(i));
+	}
+	public void intervalRemoved(ListDataEvent e) {
+	    for (int i=e.getIndex1(); i>=e.getIndex0(); i--)
+		mirror.remove(i);
+	}
+	public void contentsChanged(ListDataEvent e) {
+	    for (int i=e.getIndex0(); i<=e.getIndex1(); i++)
+		mirror.set(i, model.getElementAt(i));
+	}
+    }
+
+    /** Merged events describe the modifications in a batch exactly */
+    @Test
+    public void testBatchMirror() throws Exception {
+	ArrayListModel<Integer> model = new ArrayListModel<Integer>();
+	MirrorListener l = new MirrorListener(model);
+	model.addListDataListener(l);
+	model.beginBatch();
+	try {
+	    for (int i=0; i<10; i++) model.add(i);
+	} finally {
+	    model.endBatch();
+	}
+	assertEquals(model, l.mirror);
+	// neighbouring removals, as by refreshing a store
+	model.beginBatch();
+	try {
+	    model.remove(Integer.valueOf(5));
+	    model.remove(Integer.valueOf(4));
+	    model.remove(Integer.valueOf(6));
+	    model.add(2, 20);
+	    model.set(0, 100);
+	    model.remove(Integer.valueOf(9));
+	} finally {
+	    model.endBatch();
+	}
+	assertEquals(Arrays.asList(100, 1, 20, 2, 3, 7, 8), model);
+	assertEquals(model, l.mirror);
+    }
+}
@@ -0,0 +1,229 @@
+package nl.nikhef.jgridstart.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/** Test {@link CompactProperties} */
+public class CompactPropertiesTest extends TestCase {
+
+    /** Helper method: return the keys of an enumeration */
+    protected Set<Object> toSet(Enumeration<?> en) {
+	return new HashSet<Object>(Collections.list(en));
+    }
+
+    /** Basic operations */
+    @Test
+    public void testProperties() throws Exception {
+	CompactProperties p = new CompactProperties();
+	assertTrue(p.isEmpty());
+	assertNull(p.setProperty("foo", "bar"));
+	assertEquals("bar", p.setProperty("foo", "baz"));
+	assertEquals("baz", p.getProperty("foo"));
+	assertEquals("def", p.getProperty("none", "def"));
+	assertTrue(p.containsKey("foo"));
+	assertTrue(p.contains("baz"));
+	assertEquals(1, p.size());
+	assertEquals("baz", p.remove("foo"));
+	assertNull(p.getProperty("foo"));
+	assertNull(p.remove("foo"));
+	assertTrue(p.isEmpty());
+    }
+
+    /** The table grows and keeps all properties */
+    @Test
+    public void testGrow() throws Exception {
+	CompactProperties p = new CompactProperties();
+	for (int i=0; i<1000; i++)
+	    p.setProperty("key"+i, "value"+i);
+	for (int i=0; i<1000; i+=2)
+	    p.remove("key"+i);
+	for (int i=0; i<1000; i++)
+	    p.setProperty("key"+i+".volatile", "true");
+	assertEquals(1500, p.size());
+	for (int i=0; i<1000; i++) {
+	    assertEquals(i%2==0 ? null : "value"+i, p.getProperty("key"+i));
+	    assertEquals("true", p.getProperty("key"+i+".volatile"));
+	}
+	assertEquals(1500, toSet(p.keys()).size());
+    }
+
+    /** Flags are stored as bits, but visible as shadow keys */
+    @Test
+    public void testFlags() throws Exception {
+	CompactProperties p = new CompactProperties();
+	p.setProperty("foo.volatile", "true");
+	p.setProperty("foo.lock", "true");
+	assertNull(p.getProperty("foo"));
+	assertEquals("true", p.getProperty("foo.volatile"));
+	assertTrue(p.isFlagSet("foo", CompactProperties.VOLATILE));
+	assertTrue(p.isFlagSet("foo", CompactProperties.LOCK));
+	assertEquals(2, p.size());
+	assertEquals(toSet(Collections.enumeration(p.keySet())), toSet(p.propertyNames()));
+	assertTrue(p.keySet().contains("foo.lock"));
+	assertFalse(p.keySet().contains("foo"));
+	// other values are stored as they are
+	p.setProperty("foo.lock", "false");
+	assertFalse(p.isFlagSet("foo", CompactProperties.LOCK));
+	assertEquals("false", p.getProperty("foo.lock"));
+	p.setProperty("foo.lock", "true");
+	assertTrue(p.isFlagSet("foo", CompactProperties.LOCK));
+	assertEquals(2, p.size());
+	// the property itself is independent of its flags
+	p.setProperty("foo", "bar");
+	assertEquals(3, p.size());
+	assertEquals("true", p.remove("foo.volatile"));
+	assertEquals("bar", p.getProperty("foo"));
+	assertFalse(p.isFlagSet("foo", CompactProperties.VOLATILE));
+	p.remove("foo");
+	assertEquals("true", p.getProperty("foo.lock"));
+	p.remove("foo.lock");
+	assertTrue(p.isEmpty());
+	assertFalse(p.keys().hasMoreElements());
+    }
+
+    /** Keys are shared between instances */
+    @Test
+    public void testInterned() throws Exception {
+	CompactProperties a = new CompactProperties(), b = new CompactProperties();
+	a.setProperty(new String("foo.bar"), "1");
+	b.setProperty(new String("foo.bar"), "2");
+	assertSame(a.keys().nextElement(), b.keys().nextElement());
+    }
+
+    /** Behaves like {@linkplain Properties} when compared, copied and stored */
+    @Test
+    public void testPropertiesView() throws Exception {
+	CompactProperties p = new CompactProperties();
+	p.setProperty("foo", "bar");
+	p.setProperty("foo.lock", "true");
+	p.setProperty("name", "with spaces = and ;");
+	Properties plain = new Properties();
+	plain.putAll(p);
+	assertEquals(3, plain.size());
+	assertEquals(plain, p);
+	assertEquals(p, plain);
+	assertEquals(plain.hashCode(), p.hashCode());
+	// store and load
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	p.store(out, null);
+	Properties loaded = new Properties();
+	loaded.load(new ByteArrayInputStream(out.toByteArray()));
+	assertEquals(plain, loaded);
+	CompactProperties reloaded = new CompactProperties();
+	reloaded.load(new ByteArrayInputStream(out.toByteArray()));
+	assertEquals(plain, reloaded);
+	assertTrue(reloaded.isFlagSet("foo", CompactProperties.LOCK));
+	// clone is independent
+	CompactProperties c = (CompactProperties)p.clone();
+	c.setProperty("foo", "other");
+	c.remove("foo.lock");
+	assertEquals("bar", p.getProperty("foo"));
+	assertEquals("true", p.getProperty("foo.lock"));
+	// removal through the key set
+	for (Iterator<Object> it = p.keySet().iterator(); it.hasNext(); ) {
+	    if (it.next().equals("foo.lock")) it.remove();
+	}
+	assertNull(p.getProperty("foo.lock"));
+	assertEquals(2, p.entrySet().size());
+    }
+
+    /** Defaults are used for missing properties */
+    @Test
+    public void testDefaults() throws Exception {
+	Properties defaults = new Properties();
+	defaults.setProperty("foo", "default");
+	defaults.setProperty("bar", "default");
+	CompactProperties p = new CompactProperties(defaults);
+	p.setProperty("foo", "set");
+	assertEquals("set", p.getProperty("foo"));
+	assertEquals("default", p.getProperty("bar"));
+	assertNull(p.get("bar"));
+	assertEquals(2, toSet(p.propertyNames()).size());
+    }
+
+    /** Serialisation keeps properties, flags and defaults */
+    @Test
+    public void testSerializable() throws Exception {
+	Properties defaults = new Properties();
+	defaults.setProperty("bar", "default");
+	CompactProperties p = new CompactProperties(defaults);
+	p.setProperty("foo", "bar");
+	p.setProperty("foo.volatile", "true");
+	p.setProperty("other.lock", "false");
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	ObjectOutputStream oout = new ObjectOutputStream(out);
+	oout.writeObject(p);
+	oout.close();
+	ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()));
+	CompactProperties q = (CompactProperties)in.readObject();
+	assertEquals(p, q);
+	assertEquals(3, q.size());
+	assertTrue(q.isFlagSet("foo", CompactProperties.VOLATILE));
+	assertEquals("false", q.getProperty("other.lock"));
+	assertEquals("default", q.getProperty("bar"));
+	// and can be modified
+	q.setProperty("new", "value");
+	assertEquals(4, q.size());
+    }
+
+    /** Tables seen by readers are not modified */
+    @Test
+    public void testCopyOnWrite() throws Exception {
+	CompactProperties p = new CompactProperties();
+	p.setProperty("foo", "bar");
+	p.setProperty("foo.lock", "true");
+	Enumeration<Object> keys = p.keys();
+	CompactProperties c = (CompactProperties)p.clone();
+	p.setProperty("foo", "baz");
+	p.remove("foo.lock");
+	p.setProperty("foo.volatile", "true");
+	assertEquals("bar", c.getProperty("foo"));
+	assertTrue(c.isFlagSet("foo", CompactProperties.LOCK));
+	assertFalse(c.isFlagSet("foo", CompactProperties.VOLATILE));
+	assertEquals(2, toSet(keys).size());
+	// many properties at once
+	Properties plain = new Properties();
+	for (int i=0; i<100; i++)
+	    plain.setProperty("key"+i, "value"+i);
+	p.putAll(plain);
+	assertEquals(102, p.size());
+	assertEquals(2, c.size());
+    }
+
+    /** Reading while another thread writes */
+    @Test
+    public void testConcurrentRead() throws Exception {
+	final CompactProperties p = new CompactProperties();
+	p.setProperty("fixed", "value");
+	Thread writer = new Thread() {
+	    @Override
+	    public void run() {
+		for (int i=0; i<20000; i++) {
+		    p.setProperty("key"+(i%500), Integer.toString(i));
+		    p.setProperty("key"+(i%500)+".volatile", "true");
+		    if (i%3==0) p.remove("key"+((i+250)%500));
+		}
+	    }
+	};
+	writer.start();
+	while (writer.isAlive()) {
+	    assertEquals("value", p.getProperty("fixed"));
+	    for (Enumeration<?> en = p.propertyNames(); en.hasMoreElements(); )
+		assertNotNull(en.nextElement());
+	}
+	writer.join();
+	assertEquals("value", p.getProperty("fixed"));
+    }
+}
@@ -0,0 +1,49 @@
+package nl.nikhef.jgridstart.util;
+
+import java.security.KeyPair;
+import java.security.interfaces.RSAPublicKey;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/** Test {@link KeyPairPool} */
+public class KeyPairPoolTest extends TestCase {
+
+    /** Helper method: wait until a number of key pairs is available */
+    protected void waitAvailable(KeyPairPool pool, int n) throws InterruptedException {
+	for (int i=0; i<200 && pool.available("RSA", 512) < n; i++)
+	    Thread.sleep(50);
+	assertEquals(n, pool.available("RSA", 512));
+    }
+
+    /** Pool is filled in the background, and refilled when a key is taken */
+    @Test
+    public void testPrefill() throws Exception {
+	KeyPairPool pool = new KeyPairPool(2);
+	pool.prefill("RSA", 512);
+	waitAvailable(pool, 2);
+	// no more than depth
+	pool.prefill("RSA", 512);
+	assertEquals(2, pool.available("RSA", 512));
+	KeyPair kp1 = pool.get("RSA", 512);
+	KeyPair kp2 = pool.get("RSA", 512);
+	assertNotNull(kp1);
+	assertFalse(kp1.getPublic().equals(kp2.getPublic()));
+	assertEquals(512, ((RSAPublicKey)kp1.getPublic()).getModulus().bitLength());
+	waitAvailable(pool, 2);
+	// other key sizes are not in the pool
+	assertEquals(0, pool.available("RSA", 1024));
+    }
+
+    /** Without pre-generated keys, a key is generated on the spot */
+    @Test
+    public void testInline() throws Exception {
+	KeyPairPool pool = new KeyPairPool(0);
+	pool.prefill("RSA", 512);
+	assertEquals(0, pool.available("RSA", 512));
+	KeyPair kp = pool.get("RSA", 512);
+	assertEquals(512, ((RSAPublicKey)kp.getPublic()).getModulus().bitLength());
+	assertEquals(0, pool.available("RSA", 512));
+    }
+}
@@ -2,21 +2,48 @@ package nl.nikhef.jgridstart.osutils;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 
-/** Helper methods for reading (external) URLs */
+/** Helper methods for reading (external) URLs
+ * <p>
+ * Connections are opened by a {@link Transport}, by default a
+ * {@link DefaultTransport}. HTTP connections are kept alive and reused for
+ * subsequent requests to the same server by Java's
+ * {@linkplain HttpURLConnection}, as long as each response is read completely
+ * and closed; {@link #pageContents} takes care of that, callers of
+ * {@link #pageReader} should close the reader when done.
+ */
 public class ConnectionUtils {
     
     static private Logger logger = Logger.getLogger("nl.nikhef.jgridstart.util");
     
+    /** Platform line separator, used by {@link #pageContents} */
+    private static final String lineSeparator = System.getProperty("line.separator");
+    
+    /** Transport used to open connections */
+    private static volatile Transport transport = new DefaultTransport();
+    
+    /** Set the transport used to open connections */
+    public static void setTransport(Transport t) {
+	if (t == null) throw new NullPointerException("Transport cannot be null");
+	transport = t;
+    }
+    /** Return the transport used to open connections */
+    public static Transport getTransport() {
+	return transport;
+    }
+    
     /** Return a Reader for a URL */
     public static Reader pageReader(URL url) throws IOException {
 	return pageReader(url, (String)null, false);
@@ -35,7 +62,20 @@ public class ConnectionUtils {
      * @throws IOException 
      */
     public static Reader pageReader(URL url, String[] data, boolean post) throws IOException {
-	return pageReader(url, createQueryString(data, post), post);
+	if (!post)
+	    return pageReader(url, createQueryString(data, post), post);
+	// post: encode data directly to the connection
+	URLConnection conn = URLopenConnection(url);
+	conn.setDoOutput(true);
+	conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+	Writer wr = new OutputStreamWriter(conn.getOutputStream(), "US-ASCII");
+	try {
+	    appendQueryString(wr, data);
+	} finally {
+	    wr.close();
+	}
+	logger.fine("Creating Reader for url: "+url);
+	return new InputStreamReader(getInputStream(conn));
     }
     /** Return the contents of a URL with pre or post data
      * 
@@ -50,6 +90,8 @@ public class ConnectionUtils {
     }
     
     /** Return the contents of a URL with pre or post data
+     * <p>
+     * Line endings are converted to those of the platform.
      * 
      * @param url URL to submit to
      * @param data String of "{@code key=value&amp;otherkey=othervalue}" post data
@@ -58,16 +100,26 @@ public class ConnectionUtils {
      * @throws IOException
      */
     public static String pageContents(URL url, String data, boolean post) throws IOException {
-	Reader reader = pageReader(url, data, post);
-	StringBuffer result = new StringBuffer();
+	return readContents(pageReader(url, data, post));
+    }
+    
+    /** Read all lines from a reader and close it */
+    protected static String readContents(Reader reader) throws IOException {
+	StringBuilder result = new StringBuilder();
 	BufferedReader breader = new BufferedReader(reader);
-	String line = null;
-	while ((line = breader.readLine()) != null) {
-	    result.append(line);
-	    result.append(System.getProperty("line.separator"));
+	try {
+	    String line = null;
+	    while ((line = breader.readLine()) != null) {
+		result.append(line);
+		result.append(lineSeparator);
+	    }
+	} finally {
+	    // closing a fully read stream allows the connection to be reused
+	    breader.close();
 	}
 	return result.toString();
     }
+    
     /** Return a Reader for a URL with pre or post data
      * 
      * @param url URL to submit to
@@ -82,11 +134,12 @@ public class ConnectionUtils {
 	    if (post) {
 		// post: write data to stream
 		conn = URLopenConnection(url);
-		// send post data if present
-		if (post) {
-		    conn.setDoOutput(true);
-		    OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
+		try {
 		    wr.write(data);
+		} finally {
 		    wr.close();
 		}
 	    } else {
@@ -98,26 +151,41 @@ public class ConnectionUtils {
 	    conn = URLopenConnection(url);
 	logger.fine("Creating Reader for url: "+url);
 	// return reader for response
-	return new InputStreamReader(conn.getInputStream());
+	return new InputStreamReader(getInputStream(conn));
     }
     
-    /** Open connection with workarounds.
-     * <p>
-     * Currently specifically sets user-agent because with Java Web Start
-     * the system property <tt>http.agent</tt> does not properly set the
-     * user-agent for connections.
+    /** Return the response body of a connection.
      * <p>
-     * See also <a href="http://www.noizeramp.com/article.php?article=se-networking_specifics_under_Java_Web_Start">Networking specifics under Java Web Start</a>.
+     * Compressed responses are decompressed. When the server returns an
+     * error, its response is discarded so that the connection can be reused.
      */
-    protected static URLConnection URLopenConnection(URL url) throws IOException {
-	URLConnection conn = url.openConnection();
-	if (conn instanceof HttpURLConnection) {
-	    String agent = System.getProperty("http.agent") +
-	    	" Java/"+System.getProperty("java.version");
-	    if (agent != null)
-		((HttpURLConnection)conn).setRequestProperty("User-Agent", agent);
+    public static InputStream getInputStream(URLConnection conn) throws IOException {
+	InputStream in;
+	try {
+	    in = conn.getInputStream();
+	} catch (IOException e) {
+	    if (conn instanceof HttpURLConnection)
+		discard(((HttpURLConnection)conn).getErrorStream());
+	    throw e;
 	}
-	return conn;
+	if ("gzip".equalsIgnoreCase(conn.getContentEncoding()))
+	    in = new GZIPInputStream(in);
+	return in;
+    }
+    
+    /** Read a stream until its end and close it; {@code null} is ignored. */
+    private static void discard(InputStream in) {
+	if (in == null) return;
+	try {
+	    byte[] buf = new byte[4096];
+	    while (in.read(buf) >= 0) ;
+	    in.close();
+	} catch (IOException e) { }
+    }
+    
+    /** Open connection using the current {@link Transport}. */
+    protected static URLConnection URLopenConnection(URL url) throws IOException {
+	return transport.openConnection(url);
     }
     
     /** Return a query string from arguments for pre or post
@@ -127,15 +195,86 @@ public class ConnectionUtils {
      * @throws UnsupportedEncodingException 
      */
     protected static String createQueryString(String[] data, boolean post) throws UnsupportedEncodingException {
-	String sdata = "";
-	String sep = "&";
+	StringBuilder sdata = new StringBuilder();
+	try {
+	    appendQueryString(sdata, data);
+	} catch (UnsupportedEncodingException e) {
+	    throw e;
+	} catch (IOException e) {
+	    // StringBuilder doesn't throw
+	    throw new RuntimeException(e);
+	}
+	return sdata.toString();
+    }
+    
+    /** Append urlencoded data to a query string
+     * 
+     * @param out destination, e.g. a {@linkplain StringBuilder} or {@linkplain Writer}
+     * @param data Array of {@code "key","value","key2","value2",...}
+     * @throws IOException
+     */
+    protected static void appendQueryString(Appendable out, String[] data) throws IOException {
 	for (int i=0; i<(data.length-1); i+=2) {
 	    String key = data[i]!=null ? data[i] : "";
 	    String val = data[i+1]!=null ? data[i+1] : "";
-	    sdata += sep + URLEncoder.encode(key, "UTF-8")
-	                 + "=" + URLEncoder.encode(val, "UTF-8");
+	    if (i>0) out.append('&');
+	    out.append(URLEncoder.encode(key, "UTF-8"));
+	    out.append('=');
+	    out.append(URLEncoder.encode(val, "UTF-8"));
+	}
+    }
+    
+    /** Opens connections for {@linkplain ConnectionUtils} */
+    public interface Transport {
+	/** Return a new connection for a URL.
+	 * <p>
+	 * The connection must not be connected yet, so that post data can
+	 * still be written to it.
+	 */
+	URLConnection openConnection(URL url) throws IOException;
+    }
+    
+    /** Transport using Java's {@linkplain URLConnection}.
+     * <p>
+     * Sets timeouts, which default to the system properties
+     * {@literal jgridstart.http.timeout.connect} and
+     * {@literal jgridstart.http.timeout.read} in milliseconds, and accepts
+     * compressed responses.
+     * <p>
+     * Also sets the user-agent, because with Java Web Start the system
+     * property <tt>http.agent</tt> does not properly set the user-agent for
+     * connections. See also <a href="http://www.noizeramp.com/article.php?article=se-networking_specifics_under_Java_Web_Start">Networking specifics under Java Web Start</a>.
+     */
+    public static class DefaultTransport implements Transport {
+	/** Connect timeout in milliseconds, 0 for none */
+	protected int connectTimeout = Integer.getInteger("jgridstart.http.timeout.connect", 30000);
+	/** Read timeout in milliseconds, 0 for none */
+	protected int readTimeout = Integer.getInteger("jgridstart.http.timeout.read", 60000);
+	
+	public void setConnectTimeout(int ms) {
+	    connectTimeout = ms;
+	}
+	public int getConnectTimeout() {
+	    return connectTimeout;
+	}
+	public void setReadTimeout(int ms) {
+	    readTimeout = ms;
+	}
+	public int getReadTimeout() {
+	    return readTimeout;
+	}
+	
+	public URLConnection openConnection(URL url) throws IOException {
+	    URLConnection conn = url.openConnection();
+	    conn.setConnectTimeout(connectTimeout);
+	    conn.setReadTimeout(readTimeout);
+	    if (conn instanceof HttpURLConnection) {
+		String agent = System.getProperty("http.agent") +
+			" Java/"+System.getProperty("java.version");
+		conn.setRequestProperty("User-Agent", agent);
+		conn.setRequestProperty("Accept-Encoding", "gzip");
+	    }
+	    return conn;
 	}
-	sdata = sdata.substring(sep.length());
-	return sdata;
     }
 }
@@ -3,6 +3,7 @@ package nl.nikhef.jgridstart.osutils;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -298,6 +299,42 @@ public class FileUtils {
 	writer.close();
     }
 
+    /**
+     * Write data to a file atomically, possibly overwriting it.
+     * <p>
+     * The data is first written to a temporary file in the same directory,
+     * which is synced to disk and then renamed to the destination. So either
+     * the old or the new contents are present, also after a crash.
+     * 
+     * @param file File to write
+     * @param data contents to write
+     * @param ownerOnly true to make the file accessible to the user only
+     */
+    public static void writeFileAtomic(File file, byte[] data, boolean ownerOnly) throws IOException {
+	File dir = file.getAbsoluteFile().getParentFile();
+	File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+	try {
+	    // set permissions before writing any data
+	    if (ownerOnly) chmod(tmp, true, true, false, true);
+	    FileOutputStream out = new FileOutputStream(tmp);
+	    try {
+		out.write(data);
+		out.flush();
+		out.getFD().sync();
+	    } finally {
+		out.close();
+	    }
+	    // rename doesn't overwrite on Windows
+	    if (!tmp.renameTo(file)) {
+		file.delete();
+		if (!tmp.renameTo(file))
+		    throw new IOException("Could not write file: "+file);
+	    }
+	} finally {
+	    if (tmp.exists()) tmp.delete();
+	}
+    }
+
     /**
      * Change file permissions
      * <p>
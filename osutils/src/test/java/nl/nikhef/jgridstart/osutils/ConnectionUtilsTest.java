@@ -0,0 +1,109 @@
+package nl.nikhef.jgridstart.osutils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** Test {@link ConnectionUtils} against a local http server */
+public class ConnectionUtilsTest extends TestCase {
+
+    protected HttpServer server = null;
+    protected URL base = null;
+    /** Body of the last request */
+    protected String lastBody = null;
+    /** Query of the last request */
+    protected String lastQuery = null;
+
+    @Override
+    public void setUp() throws Exception {
+	server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+	server.createContext("/", new HttpHandler() {
+	    public void handle(HttpExchange ex) throws IOException {
+		lastQuery = ex.getRequestURI().getRawQuery();
+		lastBody = new String(readAll(ex.getRequestBody()), "US-ASCII");
+		byte[] body = "hello\nworld\n".getBytes("US-ASCII");
+		String enc = ex.getRequestHeaders().getFirst("Accept-Encoding");
+		if (enc!=null && enc.contains("gzip")) {
+		    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		    GZIPOutputStream gz = new GZIPOutputStream(bout);
+		    gz.write(body);
+		    gz.close();
+		    body = bout.toByteArray();
+		    ex.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		ex.sendResponseHeaders(200, body.length);
+		OutputStream out = ex.getResponseBody();
+		out.write(body);
+		out.close();
+	    }
+	});
+	server.start();
+	base = new URL("http://127.0.0.1:"+server.getAddress().getPort()+"/test");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+	server.stop(0);
+	ConnectionUtils.setTransport(new ConnectionUtils.DefaultTransport());
+    }
+
+    protected static byte[] readAll(InputStream in) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	byte[] buf = new byte[1024];
+	int n;
+	while ((n = in.read(buf)) >= 0) out.write(buf, 0, n);
+	in.close();
+	return out.toByteArray();
+    }
+
+    /** Compressed responses are decompressed, line endings normalised */
+    @Test
+    public void testGzip() throws Exception {
+	String s = System.getProperty("line.separator");
+	assertEquals("hello"+s+"world"+s, ConnectionUtils.pageContents(base));
+    }
+
+    /** Post data is urlencoded */
+    @Test
+    public void testPost() throws Exception {
+	ConnectionUtils.pageContents(base, new String[] { "a b", "c&d", "e", null }, true);
+	assertEquals("a+b=c%26d&e=", lastBody);
+    }
+
+    /** Get data is put in the url */
+    @Test
+    public void testGet() throws Exception {
+	ConnectionUtils.pageContents(base, new String[] { "x", "1", "y", "2" }, false);
+	assertEquals("x=1&y=2", lastQuery);
+	assertEquals("", lastBody);
+    }
+
+    /** A custom transport is used for all connections */
+    @Test
+    public void testTransport() throws Exception {
+	final int[] opened = { 0 };
+	ConnectionUtils.setTransport(new ConnectionUtils.Transport() {
+	    public URLConnection openConnection(URL url) throws IOException {
+		opened[0]++;
+		return url.openConnection();
+	    }
+	});
+	String s = System.getProperty("line.separator");
+	assertEquals("hello"+s+"world"+s, ConnectionUtils.pageContents(base));
+	ConnectionUtils.pageContents(base, new String[] { "x", "1" }, true);
+	assertEquals(2, opened[0]);
+    }
+}